@@ -0,0 +1,56 @@
+package com.filestorage.demo.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+@Getter
+@AllArgsConstructor
+public class CachedContent {
+    private final String fileHash;
+    // Read-only direct buffer, the bytes live outside the Java heap
+    private final ByteBuffer content;
+
+    public long getLength() {
+        return content.capacity();
+    }
+
+    public InputStream openStream(long start, long end) {
+        ByteBuffer range = content.duplicate();
+        range.limit((int) end + 1).position((int) start);
+        return new ByteBufferInputStream(range.slice());
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int toCopy = Math.min(len, buffer.remaining());
+            buffer.get(b, off, toCopy);
+            return toCopy;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
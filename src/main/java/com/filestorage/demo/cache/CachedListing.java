@@ -0,0 +1,14 @@
+package com.filestorage.demo.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A listing page as sent to clients: its JSON body and the cursor of the next page, null on the last page.
+ */
+@Getter
+@AllArgsConstructor
+public class CachedListing {
+    private final byte[] body;
+    private final String nextCursor;
+}
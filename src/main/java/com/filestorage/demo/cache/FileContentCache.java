@@ -0,0 +1,103 @@
+package com.filestorage.demo.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the content of frequently downloaded files in direct memory, bounded by a byte budget.
+ * Caffeine's W-TinyLFU policy decides admission and eviction, and concurrent misses for the same
+ * file wait for a single GridFS read.
+ */
+@Component
+public class FileContentCache {
+    private static final Logger logger = LoggerFactory.getLogger(FileContentCache.class);
+    private static final String CACHE_NAME = "fileContent";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final boolean enabled;
+    private final long maxObjectBytes;
+    private final Cache<String, CachedContent> cache;
+
+    public FileContentCache(@Value("${filestorage.cache.content.enabled:true}") boolean enabled,
+                            @Value("${filestorage.cache.content.max-size:256MB}") DataSize maxSize,
+                            @Value("${filestorage.cache.content.max-object-size:8MB}") DataSize maxObjectSize,
+                            MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        // Direct buffers are int indexed
+        this.maxObjectBytes = Math.min(maxObjectSize.toBytes(), Integer.MAX_VALUE);
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.toBytes())
+                .weigher((String fileId, CachedContent content) -> (int) Math.min(content.getLength(), Integer.MAX_VALUE))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        // Weights are updated by Caffeine's asynchronous maintenance, which is run first so the value is exact
+        Gauge.builder("cache.weighted.size", cache, c -> {
+                    c.cleanUp();
+                    return c.policy().eviction()
+                            .map(eviction -> eviction.weightedSize().orElse(0L))
+                            .orElse(0L);
+                })
+                .tag("cache", CACHE_NAME)
+                .baseUnit("bytes")
+                .description("Bytes of file content held by the cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the cached content of the file, loading it on a miss.
+     * Returns null when caching is disabled or the file is too large to be cached, callers should then stream from GridFS.
+     */
+    public CachedContent get(String fileId, String fileHash, long length, Supplier<InputStream> loader) {
+        if (!enabled || length > maxObjectBytes) {
+            return null;
+        }
+
+        CachedContent cached = cache.get(fileId, key -> load(fileHash, length, loader));
+        if (cached != null && !Objects.equals(cached.getFileHash(), fileHash)) {
+            // The entry was populated from a previous version of the file
+            cache.asMap().remove(fileId, cached);
+            cached = cache.get(fileId, key -> load(fileHash, length, loader));
+        }
+        return cached != null && Objects.equals(cached.getFileHash(), fileHash) ? cached : null;
+    }
+
+    public void invalidate(String fileId) {
+        cache.invalidate(fileId);
+    }
+
+    private CachedContent load(String fileHash, long length, Supplier<InputStream> loader) {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) length);
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream inputStream = loader.get()) {
+            int read;
+            while (content.hasRemaining() && (read = inputStream.read(buffer, 0, Math.min(buffer.length, content.remaining()))) != -1) {
+                content.put(buffer, 0, read);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Failed to load file content into cache", ex);
+        }
+
+        if (content.hasRemaining()) {
+            logger.warn("File content is shorter than its stored length, not caching it");
+            return null;
+        }
+        return new CachedContent(fileHash, content.flip().asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,63 @@
+package com.filestorage.demo.cache;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.dto.FileFacetsDTO;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the facet counts of recent listings for a short time, per owner and for the public files. Writes invalidate
+ * the counts of the owner, and the public ones when the file is public; an invalidation waits for a count of the same
+ * listing in progress, so counts read before the write are never left behind. Other instances only catch up on expiry.
+ */
+@Component
+public class FileFacetCache {
+    private static final String CACHE_NAME = "fileFacets";
+    private static final String PUBLIC_KEY = "public";
+    private static final String OWNER_KEY_PREFIX = "owner:";
+
+    private final boolean enabled;
+    private final Cache<String, FileFacetsDTO> cache;
+
+    public FileFacetCache(@Value("${filestorage.cache.facets.enabled:true}") boolean enabled,
+                          @Value("${filestorage.cache.facets.max-entries:10000}") long maxEntries,
+                          @Value("${filestorage.cache.facets.ttl:PT30S}") Duration ttl,
+                          MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Returns the counts of the listing of the owner, or of the public files, loading them on a miss.
+     */
+    public FileFacetsDTO get(String owner, AccessLevel accessLevel, Supplier<FileFacetsDTO> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        return cache.get(key(owner, accessLevel), key -> loader.get());
+    }
+
+    public void invalidate(String owner, AccessLevel accessLevel) {
+        cache.invalidate(OWNER_KEY_PREFIX + owner);
+        if (accessLevel == AccessLevel.PUBLIC) {
+            cache.invalidate(PUBLIC_KEY);
+        }
+    }
+
+    // Listings of PUBLIC files are the same for everyone, other listings are the files of the owner
+    private String key(String owner, AccessLevel accessLevel) {
+        return accessLevel == AccessLevel.PUBLIC ? PUBLIC_KEY : OWNER_KEY_PREFIX + owner;
+    }
+}
@@ -0,0 +1,88 @@
+package com.filestorage.demo.cache;
+
+import com.filestorage.demo.repository.FileInfo;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Keeps the file records of recent lookups by file id, so downloads and updates of a file just looked up skip the
+ * {@code fs.files} round trip. Ids with no file are cached too, for a shorter time. Every write to a record must
+ * {@link #invalidate} it; an invalidation waits for a lookup of the same id in progress, so a record read before
+ * the write is never left behind. Other instances do not see those invalidations and may serve a record until it expires.
+ */
+@Component
+public class FileMetadataCache {
+    private static final String CACHE_NAME = "fileMetadata";
+
+    private final boolean enabled;
+    private final Cache<String, Optional<FileInfo>> cache;
+    private final Timer loadTimer;
+
+    public FileMetadataCache(@Value("${filestorage.cache.metadata.enabled:true}") boolean enabled,
+                             @Value("${filestorage.cache.metadata.max-entries:10000}") long maxEntries,
+                             @Value("${filestorage.cache.metadata.ttl:PT1M}") Duration ttl,
+                             @Value("${filestorage.cache.metadata.negative-ttl:PT5S}") Duration negativeTtl,
+                             MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfter(new Expiry<String, Optional<FileInfo>>() {
+                    @Override
+                    public long expireAfterCreate(String fileId, Optional<FileInfo> fileInfo, long currentTime) {
+                        return (fileInfo.isPresent() ? ttl : negativeTtl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String fileId, Optional<FileInfo> fileInfo, long currentTime, long currentDuration) {
+                        return expireAfterCreate(fileId, fileInfo, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String fileId, Optional<FileInfo> fileInfo, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        this.loadTimer = Timer.builder("cache.load.latency")
+                .tag("cache", CACHE_NAME)
+                .description("Time to read a file record from the database on a cache miss")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the record of the file, loading it on a miss, or null if there is no such file.
+     */
+    public FileInfo get(String fileId, Function<String, FileInfo> loader) {
+        if (!enabled) {
+            return loader.apply(fileId);
+        }
+        return cache.get(fileId, key -> Optional.ofNullable(loadTimer.record(() -> loader.apply(key)))).orElse(null);
+    }
+
+    /**
+     * Like {@link #get}, but returns null as well when the file belongs to another user.
+     */
+    public FileInfo getOwned(String fileId, String ownerEmail, Function<String, FileInfo> loader) {
+        FileInfo fileInfo = get(fileId, loader);
+        return fileInfo != null && Objects.equals(fileInfo.getOwner(), ownerEmail) ? fileInfo : null;
+    }
+
+    public void invalidate(String fileId) {
+        cache.invalidate(fileId);
+    }
+}
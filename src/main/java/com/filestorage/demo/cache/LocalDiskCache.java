@@ -0,0 +1,459 @@
+package com.filestorage.demo.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Optional read-through copy of downloaded files on local disk, bounded by an LRU byte budget.
+ * A file is written while its first full download streams from GridFS, into a temporary file that is
+ * renamed into place only once complete, so a crash never leaves a truncated entry behind.
+ * Files are stored under {@code <directory>/<hash[0..2]>/<hash[2..4]>/<fileId>.<hash>}.
+ * <p>
+ * Evicted and invalidated files are deleted by a sweep, run every {@code filestorage.cache.disk.sweep-interval}, once
+ * no stream opened by {@link #openRange} reads them and they were already waiting at the previous sweep. Downloads
+ * sent with sendfile close their stream before the container opens the file by name, right after the handler returns;
+ * waiting one sweep lets it do so, and once opened the file stays readable however long the transfer takes, as
+ * deleting it only removes its name. Files waiting to be deleted are listed in a journal, so a restart deletes them
+ * instead of loading them back as cached copies.
+ */
+@Component
+public class LocalDiskCache {
+    private static final Logger logger = LoggerFactory.getLogger(LocalDiskCache.class);
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern SAFE_NAME = Pattern.compile("^[A-Za-z0-9-]+$");
+    private static final String PENDING_DELETES_JOURNAL = "pending-deletes";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long maxBytes;
+    private final Path journal;
+
+    // Access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Copies being written, by fileId, removed by invalidate so the copy is dropped instead of committed
+    private final Map<String, Object> populating = new HashMap<>();
+    // Open streams per file, only files being read are present
+    private final Map<Path, Integer> readers = new HashMap<>();
+    // Removed from the cache and deleted by the sweep, mapped to whether a sweep has seen them already
+    private final Map<Path, Boolean> pendingDeletes = new LinkedHashMap<>();
+    private long totalBytes;
+
+    private record Entry(String fileHash, Path path, long size) {
+    }
+
+    public LocalDiskCache(@Value("${filestorage.cache.disk.enabled:false}") boolean enabled,
+                          @Value("${filestorage.cache.disk.directory:${java.io.tmpdir}/filestorage-cache}") Path directory,
+                          @Value("${filestorage.cache.disk.max-size:10GB}") DataSize maxSize) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.maxBytes = maxSize.toBytes();
+        this.journal = directory.resolve(PENDING_DELETES_JOURNAL);
+        if (enabled) {
+            loadExistingEntries();
+        }
+    }
+
+    /**
+     * Returns the local copy of the file, or null if there is none for this version of the content.
+     */
+    public synchronized Path find(String fileId, String fileHash) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(fileId);
+        return entry != null && entry.fileHash().equals(fileHash) ? entry.path() : null;
+    }
+
+    /**
+     * Opens a region of a local copy. The file is not deleted while the stream is open.
+     */
+    public InputStream openRange(Path file, long start, long end) {
+        synchronized (this) {
+            readers.merge(file, 1, Integer::sum);
+        }
+        try {
+            return new FileRegionInputStream(FileChannel.open(file, StandardOpenOption.READ), start, end - start + 1, file);
+        } catch (IOException ex) {
+            closeReader(file);
+            throw new UncheckedIOException("Failed to open cached file " + file, ex);
+        }
+    }
+
+    /**
+     * Wraps the full content stream of a file so that reading it to the end also stores a local copy.
+     * The source is returned untouched if the tier is disabled or another request is already storing this file.
+     */
+    public InputStream populateWhileReading(String fileId, String fileHash, long length, InputStream source) {
+        if (!enabled || fileHash == null || length > maxBytes
+                || !SAFE_NAME.matcher(fileId).matches() || !SAFE_NAME.matcher(fileHash).matches()) {
+            return source;
+        }
+        Object token = new Object();
+        synchronized (this) {
+            if (find(fileId, fileHash) != null || populating.putIfAbsent(fileId, token) != null) {
+                return source;
+            }
+        }
+
+        try {
+            Path target = pathFor(fileId, fileHash);
+            Files.createDirectories(target.getParent());
+            Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+            FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return new PopulatingInputStream(source, channel, temp, target, fileId, fileHash, length, token);
+        } catch (IOException ex) {
+            logger.warn("Failed to start caching file " + fileId + " on disk", ex);
+            release(fileId, token);
+            return source;
+        }
+    }
+
+    /**
+     * Removes the local copy of the file, and drops a copy still being written instead of adding it once complete.
+     */
+    public void invalidate(String fileId) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            populating.remove(fileId);
+            Entry removed = entries.remove(fileId);
+            if (removed != null) {
+                totalBytes -= removed.size();
+                deleteLater(removed.path());
+            }
+        }
+    }
+
+    private Path pathFor(String fileId, String fileHash) {
+        return directory.resolve(fileHash.substring(0, 2)).resolve(fileHash.substring(2, 4)).resolve(fileId + "." + fileHash);
+    }
+
+    private synchronized void release(String fileId, Object token) {
+        populating.remove(fileId, token);
+    }
+
+    /**
+     * Moves a complete copy into place, unless the file was invalidated while it was written.
+     */
+    private boolean commit(String fileId, String fileHash, Path temp, Path target, long size, Object token) throws IOException {
+        synchronized (this) {
+            if (!populating.remove(fileId, token)) {
+                return false;
+            }
+            // Under the lock, so a copy dropped by invalidate can never be renamed over a newer one
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            add(fileId, fileHash, target, size);
+        }
+        return true;
+    }
+
+    private synchronized void add(String fileId, String fileHash, Path path, long size) {
+        Entry previous = entries.put(fileId, new Entry(fileHash, path, size));
+        totalBytes += size - (previous != null ? previous.size() : 0);
+        // Written again after it was removed, the journal may still list it, a restart then only drops the copy
+        pendingDeletes.remove(path);
+        if (previous != null && !previous.path().equals(path)) {
+            deleteLater(previous.path());
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            totalBytes -= eldest.size();
+            deleteLater(eldest.path());
+        }
+    }
+
+    private synchronized void closeReader(Path file) {
+        readers.computeIfPresent(file, (path, open) -> open > 1 ? open - 1 : null);
+    }
+
+    private synchronized void deleteLater(Path path) {
+        if (pendingDeletes.putIfAbsent(path, false) == null) {
+            try {
+                Files.writeString(journal, path + System.lineSeparator(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                logger.warn("Failed to record " + path + " for deletion, a restart may load it again", ex);
+            }
+        }
+    }
+
+    /**
+     * Deletes the removed files no stream reads and that were already waiting at the previous sweep, then rewrites
+     * the journal with the files still waiting.
+     */
+    @Scheduled(fixedDelayString = "${filestorage.cache.disk.sweep-interval:PT1M}",
+            initialDelayString = "${filestorage.cache.disk.sweep-interval:PT1M}")
+    public void sweep() {
+        if (!enabled) {
+            return;
+        }
+        List<Path> deletable = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Path, Boolean> pending : pendingDeletes.entrySet()) {
+                if (readers.containsKey(pending.getKey())) {
+                    continue;
+                }
+                if (pending.getValue()) {
+                    deletable.add(pending.getKey());
+                } else {
+                    pending.setValue(true);
+                }
+            }
+        }
+        List<Path> deleted = deletable.stream().filter(this::delete).toList();
+        synchronized (this) {
+            deleted.forEach(pendingDeletes::remove);
+            writeJournal();
+        }
+    }
+
+    private void writeJournal() {
+        try {
+            if (pendingDeletes.isEmpty()) {
+                Files.deleteIfExists(journal);
+            } else {
+                Files.write(journal, pendingDeletes.keySet().stream().map(Path::toString).toList());
+            }
+        } catch (IOException ex) {
+            logger.warn("Failed to write the journal of cached files to delete", ex);
+        }
+    }
+
+    // Returns false if the file is still there, such as on systems that refuse to delete an open file
+    private boolean delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+            return true;
+        } catch (IOException ex) {
+            logger.warn("Failed to delete cached file " + path, ex);
+            return false;
+        }
+    }
+
+    // Files removed from the cache before the last shutdown are garbage, not cached copies
+    private void deleteJournaledFiles() throws IOException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+        for (String line : Files.readAllLines(journal)) {
+            // Never anything outside the cache, whatever the journal says
+            if (!line.isBlank() && Path.of(line).normalize().startsWith(directory.normalize())) {
+                delete(Path.of(line));
+            }
+        }
+        Files.delete(journal);
+    }
+
+    private void loadExistingEntries() {
+        try {
+            Files.createDirectories(directory);
+            deleteJournaledFiles();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.filter(Files::isRegularFile)
+                        .filter(path -> !path.equals(journal))
+                        .map(path -> {
+                            try {
+                                return Map.entry(path, Files.readAttributes(path, BasicFileAttributes.class));
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                        })
+                        .sorted(Comparator.comparing(file -> file.getValue().lastAccessTime()))
+                        .forEach(file -> {
+                            Path path = file.getKey();
+                            String name = path.getFileName().toString();
+                            int separator = name.lastIndexOf('.');
+                            if (name.endsWith(TEMP_SUFFIX) || separator < 1) {
+                                // Left over by a download interrupted by a crash
+                                delete(path);
+                                return;
+                            }
+                            add(name.substring(0, separator), name.substring(separator + 1), path, file.getValue().size());
+                        });
+            }
+            // Over the budget, with a smaller max-size than before, deleted right away as nothing reads them yet
+            List<Path> evicted = new ArrayList<>(pendingDeletes.keySet());
+            evicted.stream().filter(this::delete).forEach(pendingDeletes::remove);
+            writeJournal();
+            logger.info("Loaded " + entries.size() + " cached files (" + totalBytes + " bytes) from " + directory);
+        } catch (IOException | UncheckedIOException ex) {
+            logger.error("Failed to load disk cache from " + directory, ex);
+        }
+    }
+
+    /**
+     * Copies every byte read by the caller into a temporary file, and moves it into the cache once the whole file was read.
+     */
+    private class PopulatingInputStream extends FilterInputStream {
+        private final FileChannel channel;
+        private final Path temp;
+        private final Path target;
+        private final String fileId;
+        private final String fileHash;
+        private final long length;
+        private final Object token;
+        private long written;
+        private boolean failed;
+        private boolean finished;
+
+        PopulatingInputStream(InputStream source, FileChannel channel, Path temp, Path target,
+                              String fileId, String fileHash, long length, Object token) {
+            super(source);
+            this.channel = channel;
+            this.temp = temp;
+            this.target = target;
+            this.fileId = fileId;
+            this.fileHash = fileHash;
+            this.length = length;
+            this.token = token;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0 && !failed) {
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, read);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    written += read;
+                } catch (IOException ex) {
+                    // The download itself must not fail because the local copy could not be written
+                    logger.warn("Failed to write cached copy of file " + fileId, ex);
+                    failed = true;
+                }
+            }
+            if ((read == -1 || written == length) && !finished) {
+                finish();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would leave a hole in the copy
+            failed = true;
+            return super.skip(n);
+        }
+
+        private void finish() {
+            finished = true;
+            try {
+                channel.force(true);
+                channel.close();
+                if (!failed && written == length && commit(fileId, fileHash, temp, target, length, token)) {
+                    return;
+                }
+            } catch (IOException ex) {
+                logger.warn("Failed to store cached copy of file " + fileId, ex);
+            }
+            delete(temp);
+            release(fileId, token);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!finished) {
+                    // The client went away before the end of the file
+                    failed = true;
+                    finish();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a region of a local file with positional reads, closing the channel and releasing the file when done.
+     */
+    private class FileRegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private final Path file;
+        private long position;
+        private long remaining;
+        private boolean closed;
+
+        FileRegionInputStream(FileChannel channel, long start, long count, Path file) {
+            this.channel = channel;
+            this.position = start;
+            this.remaining = count;
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (read == -1) {
+                throw new IOException("Cached file is shorter than expected");
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } finally {
+                closeReader(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.filestorage.demo.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.filestorage.demo.dto.FileListPage;
+import com.filestorage.demo.dto.FileOrderBy;
+import com.filestorage.demo.dto.TagMatch;
+import com.filestorage.demo.exception.InternalServerError;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps recent pages of PUBLIC listings, which are the same for every user, as the JSON bytes sent to clients.
+ * <p>
+ * Every key includes a generation that each write to a public file increments, so a write makes all earlier pages
+ * unreachable at once and they age out of the cache. A page loaded while a write is in progress is stored under the
+ * generation read before it, so it is never served after the write completes. Writes of other instances are only
+ * seen once the pages expire.
+ */
+@Component
+public class PublicListingCache {
+    private static final String CACHE_NAME = "publicListings";
+
+    private final boolean enabled;
+    private final ObjectMapper objectMapper;
+    private final Cache<Key, CachedListing> cache;
+    private final AtomicLong generation = new AtomicLong();
+
+    public PublicListingCache(@Value("${filestorage.cache.public-listings.enabled:true}") boolean enabled,
+                              @Value("${filestorage.cache.public-listings.max-size:64MB}") DataSize maxSize,
+                              @Value("${filestorage.cache.public-listings.ttl:PT10S}") Duration ttl,
+                              ObjectMapper objectMapper,
+                              MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.objectMapper = objectMapper;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.toBytes())
+                .weigher((Key key, CachedListing listing) -> listing.getBody().length)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    /**
+     * Returns the page of the listing, loading and serializing it on a miss. Download URLs are absolute, so pages
+     * are also keyed by the base URL they were generated for. A null cursor selects offset pagination.
+     */
+    public CachedListing get(String baseUrl, Set<String> tags, TagMatch tagMatch, FileOrderBy orderBy, Sort.Direction order,
+                             String cursor, int page, int size, Supplier<FileListPage> loader) {
+        if (!enabled) {
+            return serialize(loader.get());
+        }
+        // Tags are matched lower case and in any order, and how they match does not matter without tags
+        List<String> tagKey = tags == null ? List.of()
+                : tags.stream().map(tag -> tag.toLowerCase(Locale.ROOT)).distinct().sorted().toList();
+        TagMatch tagMatchKey = tagKey.isEmpty() || tagMatch == null ? TagMatch.ANY : tagMatch;
+        Key key = new Key(generation.get(), baseUrl, tagKey, tagMatchKey, orderBy, orderBy != null ? order : null,
+                cursor, cursor == null ? page : 0, size);
+        return cache.get(key, ignored -> serialize(loader.get()));
+    }
+
+    /**
+     * Makes every cached page stale. Called after a write that adds, changes or removes a public file.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    private CachedListing serialize(FileListPage page) {
+        try {
+            return new CachedListing(objectMapper.writeValueAsBytes(page.getFiles()), page.getNextCursor());
+        } catch (JsonProcessingException ex) {
+            throw new InternalServerError("Failed to serialize the file listing", ex);
+        }
+    }
+
+    private record Key(long generation, String baseUrl, List<String> tags, TagMatch tagMatch, FileOrderBy orderBy,
+                       Sort.Direction order, String cursor, int page, int size) {
+    }
+}
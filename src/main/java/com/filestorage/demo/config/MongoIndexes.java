@@ -0,0 +1,316 @@
+package com.filestorage.demo.config;
+
+import com.filestorage.demo.dto.FileOrderBy;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.FileMetaData;
+import com.filestorage.demo.repository.FileRepository;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.result.UpdateResult;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Declares the indexes behind every repository query and creates them, creating an index that already exists is a no-op.
+ * <p>
+ * The unique indexes on file names and content per owner and on blob hashes are what rejects duplicate uploads and
+ * duplicate blobs, so they are created while the application starts, before it accepts requests, and startup fails if
+ * any cannot be created, reporting the duplicates that prevent it. With index creation disabled they must already exist. The other indexes only make queries
+ * fast: they are created in the background once the application is up, after filling in the indexed fields that records
+ * written by earlier versions lack, and failures are only logged.
+ */
+@Component
+public class MongoIndexes {
+    private static Logger logger = LoggerFactory.getLogger(MongoIndexes.class);
+    private static final String META = "metadata.";
+    private static final int NAMESPACE_NOT_FOUND = 26;
+    private static final int INDEX_NOT_FOUND = 27;
+    private static final int INDEX_OPTIONS_CONFLICT = 85;
+    private static final int INDEX_KEY_SPECS_CONFLICT = 86;
+    private static final int DUPLICATE_KEY = 11000;
+    private static final int MAX_REPORTED_DUPLICATES = 10;
+    private static final String FILES_COLLECTION = "fs.files";
+    private static final String BLOBS_COLLECTION = "blobs.files";
+    private static final Map<String, List<String>> RETIRED_INDEXES = Map.of(
+            FILES_COLLECTION, List.of("metadata.owner_1_metadata.fileHash_1"),
+            "upload_sessions", List.of("expiresAt_1_committing_1"));
+    // Backfills done once per database, recorded so they do not scan fs.files again on every start
+    private static final String MIGRATIONS_COLLECTION = "migrations";
+    private static final String SORT_TAG_BACKFILL = "fs.files.sortTag";
+
+    private final MongoDatabase mongoDatabase;
+    private final boolean enabled;
+
+    public MongoIndexes(MongoDatabase mongoDatabase,
+                        @Value("${filestorage.mongo.create-indexes:true}") boolean enabled) {
+        this.mongoDatabase = mongoDatabase;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Creates the unique indexes, or checks they exist when index creation is disabled. Runs while the context starts,
+     * so the application never accepts an upload without them.
+     */
+    @PostConstruct
+    public void ensureUniqueIndexes() {
+        if (enabled) {
+            createUniqueIndexes();
+            return;
+        }
+        for (Map.Entry<String, List<IndexModel>> collection : uniqueIndexes().entrySet()) {
+            Set<String> existing = new HashSet<>();
+            mongoDatabase.getCollection(collection.getKey()).listIndexes().forEach(index -> existing.add(index.getString("name")));
+            for (IndexModel index : collection.getValue()) {
+                if (!existing.contains(index.getOptions().getName())) {
+                    throw new IllegalStateException("Unique index " + index.getOptions().getName() + " is missing on "
+                            + collection.getKey() + ", create it or enable filestorage.mongo.create-indexes");
+                }
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexesInBackground() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(this::createIndexesQuietly, "mongo-index-bootstrap");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void createIndexesQuietly() {
+        try {
+            createIndexes();
+        } catch (RuntimeException ex) {
+            logger.error("Failed to create MongoDB indexes, queries will fall back to collection scans", ex);
+        }
+    }
+
+    public void createIndexes() {
+        createUniqueIndexes();
+        backfillSortTags();
+        for (Map.Entry<String, List<IndexModel>> collection : declaredIndexes().entrySet()) {
+            for (IndexModel index : collection.getValue()) {
+                try {
+                    mongoDatabase.getCollection(collection.getKey()).createIndexes(List.of(index));
+                } catch (MongoCommandException ex) {
+                    // Such as a unique index the existing data violates, the other indexes are still created
+                    logger.error("Failed to create index " + index.getKeys() + " on " + collection.getKey(), ex);
+                }
+            }
+            logger.info("Ensured " + collection.getValue().size() + " indexes on " + collection.getKey());
+        }
+        RETIRED_INDEXES.keySet().forEach(this::dropRetiredIndexes);
+    }
+
+    private void createUniqueIndexes() {
+        for (Map.Entry<String, List<IndexModel>> collection : uniqueIndexes().entrySet()) {
+            MongoCollection<Document> indexed = mongoDatabase.getCollection(collection.getKey());
+            for (IndexModel index : collection.getValue()) {
+                try {
+                    indexed.createIndexes(List.of(index));
+                } catch (MongoCommandException ex) {
+                    if (ex.getErrorCode() != INDEX_OPTIONS_CONFLICT && ex.getErrorCode() != INDEX_KEY_SPECS_CONFLICT) {
+                        throw creationFailure(collection.getKey(), index, ex);
+                    }
+                    // Servers before 5.0 keep a single index per key pattern, so the retired one has to go first
+                    replaceRetiredIndexes(collection.getKey(), index);
+                }
+            }
+            // Only once their replacements exist, so the keys are never left without an index
+            dropRetiredIndexes(collection.getKey());
+        }
+    }
+
+    private void replaceRetiredIndexes(String collectionName, IndexModel index) {
+        MongoCollection<Document> indexed = mongoDatabase.getCollection(collectionName);
+        List<String> retiredNames = RETIRED_INDEXES.getOrDefault(collectionName, List.of());
+        List<Document> retired = new ArrayList<>();
+        indexed.listIndexes().forEach(existing -> {
+            if (retiredNames.contains(existing.getString("name"))) {
+                retired.add(existing);
+            }
+        });
+        retired.forEach(existing -> indexed.dropIndex(existing.getString("name")));
+        try {
+            indexed.createIndexes(List.of(index));
+        } catch (MongoCommandException ex) {
+            // Retired indexes were plain ones, restored as they were
+            retired.forEach(existing -> indexed.createIndex(existing.get("key", Document.class),
+                    new IndexOptions().name(existing.getString("name"))));
+            throw creationFailure(collectionName, index, ex);
+        }
+    }
+
+    private RuntimeException creationFailure(String collectionName, IndexModel index, MongoCommandException ex) {
+        if (ex.getErrorCode() != DUPLICATE_KEY) {
+            return ex;
+        }
+        return new IllegalStateException("Cannot create unique index " + index.getOptions().getName() + " on "
+                + collectionName + ", these records have to be renamed or removed first: "
+                + findDuplicates(collectionName, index), ex);
+    }
+
+    // Up to MAX_REPORTED_DUPLICATES key values held by more than one record, with the ids of those records: the file ids
+    // for file records, the _id of anything else
+    private List<Document> findDuplicates(String collectionName, IndexModel index) {
+        Document keys = index.getKeys().toBsonDocument().keySet().stream()
+                .collect(Document::new, (group, key) -> group.append(key.replace('.', '_'), "$" + key), Document::putAll);
+        String id = FILES_COLLECTION.equals(collectionName) ? "$" + META + FileMetaData.ID.getKey() : "$_id";
+        List<Document> duplicates = new ArrayList<>();
+        mongoDatabase.getCollection(collectionName).aggregate(List.of(
+                        new Document("$match", index.getOptions().getPartialFilterExpression()),
+                        new Document("$group", new Document("_id", keys)
+                                .append("count", new Document("$sum", 1))
+                                .append("ids", new Document("$push", id))),
+                        new Document("$match", new Document("count", new Document("$gt", 1))),
+                        new Document("$limit", MAX_REPORTED_DUPLICATES)))
+                .allowDiskUse(true)
+                .forEach(duplicates::add);
+        return duplicates;
+    }
+
+    // Indexes replaced by another, dropped once that one exists
+    private void dropRetiredIndexes(String collectionName) {
+        for (String index : RETIRED_INDEXES.getOrDefault(collectionName, List.of())) {
+            try {
+                mongoDatabase.getCollection(collectionName).dropIndex(index);
+                logger.info("Dropped retired index " + index + " on " + collectionName);
+            } catch (MongoCommandException ex) {
+                if (ex.getErrorCode() != INDEX_NOT_FOUND && ex.getErrorCode() != NAMESPACE_NOT_FOUND) {
+                    logger.error("Failed to drop retired index " + index + " on " + collectionName, ex);
+                }
+            }
+        }
+    }
+
+    // Records written before the sort key existed get the lowest of their tags, computed by the database from the
+    // stored array. Records without tags keep no sort key, which sorts the same as a null one.
+    private void backfillSortTags() {
+        MongoCollection<Document> migrations = mongoDatabase.getCollection(MIGRATIONS_COLLECTION);
+        if (migrations.find(Filters.eq("_id", SORT_TAG_BACKFILL)).first() != null) {
+            return;
+        }
+        String sortTag = META + FileMetaData.SORT_TAG.getKey();
+        String tags = META + FileMetaData.TAGS.getKey();
+        try {
+            UpdateResult result = mongoDatabase.getCollection(FILES_COLLECTION).updateMany(
+                    Filters.and(Filters.exists(sortTag, false), Filters.exists(tags)),
+                    List.of(new Document("$set", new Document(sortTag, new Document("$min", "$" + tags)))));
+            migrations.replaceOne(Filters.eq("_id", SORT_TAG_BACKFILL),
+                    new Document("_id", SORT_TAG_BACKFILL).append("completedAt", new Date()).append("modified", result.getModifiedCount()),
+                    new ReplaceOptions().upsert(true));
+            logger.info("Backfilled the tag sort key of " + result.getModifiedCount() + " files");
+        } catch (MongoException ex) {
+            // Retried on the next start, meanwhile those files sort as untagged
+            logger.error("Failed to backfill the tag sort key", ex);
+        }
+    }
+
+    /**
+     * The unique indexes on file names and content per owner, the duplicate checks of inserts and updates.
+     */
+    public static List<IndexModel> uniqueFileIndexes() {
+        String owner = META + FileMetaData.OWNER.getKey();
+        // Partial, so records written before these fields existed are not considered
+        String fileName = META + FileMetaData.FILE_NAME.getKey();
+        String fileHash = META + FileMetaData.FILE_HASH.getKey();
+        return List.of(
+                new IndexModel(Indexes.ascending(owner, fileName), new IndexOptions()
+                        .name(FileRepository.OWNER_FILE_NAME_INDEX)
+                        .unique(true)
+                        .partialFilterExpression(new Document(fileName, new Document("$exists", true)))),
+                new IndexModel(Indexes.ascending(owner, fileHash), new IndexOptions()
+                        .name(FileRepository.OWNER_FILE_HASH_INDEX)
+                        .unique(true)
+                        .partialFilterExpression(new Document(fileHash, new Document("$exists", true)))));
+    }
+
+    /**
+     * Every unique index a write relies on to reject duplicates, per collection: the file name and content per owner,
+     * and the blob hash that makes concurrent commits of the same new content share a single blob.
+     */
+    public static Map<String, List<IndexModel>> uniqueIndexes() {
+        Map<String, List<IndexModel>> indexes = new LinkedHashMap<>();
+        indexes.put(FILES_COLLECTION, uniqueFileIndexes());
+        // Partial, so pending blobs, which have no hash yet, are not considered
+        indexes.put(BLOBS_COLLECTION, List.of(
+                new IndexModel(Indexes.ascending("metadata.hash"), new IndexOptions()
+                        .name(BlobRepository.HASH_INDEX)
+                        .unique(true)
+                        .partialFilterExpression(new Document("metadata.hash", new Document("$exists", true))))));
+        return indexes;
+    }
+
+    public static Map<String, List<IndexModel>> declaredIndexes() {
+        Map<String, List<IndexModel>> indexes = new LinkedHashMap<>();
+
+        String owner = META + FileMetaData.OWNER.getKey();
+        String accessLevel = META + FileMetaData.ACCESS_LEVEL.getKey();
+        List<IndexModel> files = new ArrayList<>();
+        files.add(new IndexModel(Indexes.ascending(META + FileMetaData.ID.getKey()), new IndexOptions().unique(true)));
+        files.addAll(uniqueFileIndexes());
+        files.add(new IndexModel(Indexes.ascending(META + FileMetaData.FILE_HASH.getKey(), accessLevel)));
+        // Listings filter on the owner or on the access level, and sort on any FileOrderBy key then _id for cursor pages
+        files.add(new IndexModel(Indexes.ascending(owner, "_id")));
+        files.add(new IndexModel(Indexes.ascending(accessLevel, "_id")));
+        // Tag filters, whether any or all of the tags must match, scan the files holding one of them
+        String tags = META + FileMetaData.TAGS.getKey();
+        files.add(new IndexModel(Indexes.ascending(owner, tags, "_id")));
+        files.add(new IndexModel(Indexes.ascending(accessLevel, tags, "_id")));
+        for (FileOrderBy orderBy : FileOrderBy.values()) {
+            files.add(new IndexModel(Indexes.ascending(owner, META + orderBy.getSearchKey(), "_id")));
+            files.add(new IndexModel(Indexes.ascending(accessLevel, META + orderBy.getSearchKey(), "_id")));
+        }
+        indexes.put(FILES_COLLECTION, files);
+        // Created by the driver on the first GridFS upload only, records pointing to blobs never trigger it
+        indexes.put("fs.chunks", List.of(
+                new IndexModel(Indexes.ascending("files_id", "n"), new IndexOptions().unique(true))));
+
+        List<IndexModel> blobs = new ArrayList<>(uniqueIndexes().get(BLOBS_COLLECTION));
+        blobs.add(new IndexModel(Indexes.ascending("metadata.refCount", "uploadDate")));
+        indexes.put(BLOBS_COLLECTION, blobs);
+        indexes.put("blobs.chunks", List.of(
+                new IndexModel(Indexes.ascending("files_id", "n"), new IndexOptions().unique(true))));
+
+        // Owners whose counters may miss a change that was never applied
+        indexes.put("owner_stats", List.of(
+                new IndexModel(Indexes.ascending("pendingUntil"))));
+
+        // Versions of a file newest first, and the pruner's walk over every file
+        indexes.put("file_versions", List.of(
+                new IndexModel(Indexes.compoundIndex(Indexes.ascending("fileId"), Indexes.descending("replacedAt")))));
+
+        indexes.put("upload_sessions", List.of(
+                new IndexModel(Indexes.ascending("expiresAt", "committingSince"))));
+        indexes.put("upload_parts.files", List.of(
+                new IndexModel(Indexes.ascending("metadata.sessionId", "metadata.partNumber", "uploadDate")),
+                // The sweep for parts whose session is gone
+                new IndexModel(Indexes.ascending("uploadDate"))));
+        indexes.put("upload_parts.chunks", List.of(
+                new IndexModel(Indexes.ascending("files_id", "n"), new IndexOptions().unique(true))));
+        return indexes;
+    }
+}
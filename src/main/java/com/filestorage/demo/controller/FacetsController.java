@@ -0,0 +1,29 @@
+package com.filestorage.demo.controller;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.dto.FileFacetsDTO;
+import com.filestorage.demo.service.FileService;
+import lombok.AllArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/facets")
+@AllArgsConstructor
+public class FacetsController {
+
+    FileService fileService;
+
+    /**
+     * File counts per tag, content type and size bucket of the files /files/list returns for the same parameters.
+     */
+    @GetMapping("")
+    public ResponseEntity<FileFacetsDTO> getFacets(
+            @RequestParam("email") String userEmail,
+            @RequestParam("accessLevel") AccessLevel accessLevel) {
+        return ResponseEntity.ok(fileService.getFileFacets(userEmail, accessLevel));
+    }
+}
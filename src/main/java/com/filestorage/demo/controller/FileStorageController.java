@@ -1,22 +1,31 @@
 package com.filestorage.demo.controller;
 
+import com.filestorage.demo.cache.CachedListing;
 import com.filestorage.demo.dto.*;
 import com.filestorage.demo.exception.FileDownloadDTO;
 import com.filestorage.demo.service.FileService;
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.constraints.NotBlank;
 import lombok.AllArgsConstructor;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.UriUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Set;
@@ -29,6 +38,16 @@ public class FileStorageController {
     FileService fileService;
     private static final String DOWNLOAD_ENDPOINT = "/download";
     private static final String CONTROLLER_NAME = "/files";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    // Metadata of streaming uploads, sent as headers so it stays out of access logs that record the URL
+    private static final String FILE_NAME_HEADER = "X-File-Name";
+    private static final String ACCESS_LEVEL_HEADER = "X-Access-Level";
+    private static final String TAGS_HEADER = "X-File-Tags";
+    private static final String SHA256_HEADER = "X-Content-SHA256";
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
 
     @PostMapping(
             path = "/upload",
@@ -45,13 +64,99 @@ public class FileStorageController {
         return ResponseEntity.created(response.getFileDownloadUrl()).body(response);
     }
 
+    @PostMapping(
+            path = "/upload/check",
+            consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<UploadCheckResultDTO>> checkUploads(
+            @RequestParam("email") String userEmail,
+            @RequestBody List<UploadCheckDTO> files) {
+        return ResponseEntity.ok(fileService.checkUploads(userEmail, files, CONTROLLER_NAME + DOWNLOAD_ENDPOINT));
+    }
+
+    /**
+     * Uploads the raw request body, which is streamed straight into GridFS instead of being spooled
+     * to a temporary file first as multipart parts are. Metadata is passed as query parameters and the
+     * Content-Type header describes the file, application/octet-stream lets the server detect it.
+     */
+    @PutMapping("/upload")
+    public ResponseEntity<FileUploadResponse> uploadFileStream(
+            @RequestParam("email") String userEmail,
+            @RequestHeader(ACCESS_LEVEL_HEADER) AccessLevel accessLevel,
+            // Percent-encoded UTF-8, header values are limited to ISO-8859-1
+            @RequestHeader(FILE_NAME_HEADER) String fileName,
+            @RequestHeader(required = false, value = TAGS_HEADER) Set<String> tags,
+            @RequestHeader(required = false, value = SHA256_HEADER) String sha256,
+            @RequestHeader(required = false, value = HttpHeaders.CONTENT_TYPE) String contentType,
+            InputStream body) throws IOException, NoSuchAlgorithmException {
+
+        FileUploadDTO fileMeta = new FileUploadDTO(accessLevel, UriUtils.decode(fileName, StandardCharsets.UTF_8), tags);
+        FileUploadResponse response = fileService.uploadFileStream(body, contentType, fileMeta, userEmail,
+                sha256, CONTROLLER_NAME + DOWNLOAD_ENDPOINT);
+        return ResponseEntity.created(response.getFileDownloadUrl()).body(response);
+    }
+
     @GetMapping(DOWNLOAD_ENDPOINT + "/{fileId}")
-    public ResponseEntity<InputStreamResource> downloadFile(@PathVariable String fileId) {
-        FileDownloadDTO fileDownloadDTO = fileService.downloadFile(fileId);
+    public ResponseEntity<InputStreamResource> downloadFile(
+            @PathVariable String fileId,
+            @RequestHeader(required = false, value = HttpHeaders.RANGE) String range,
+            @RequestHeader(required = false, value = HttpHeaders.IF_RANGE) String ifRange,
+            @RequestHeader(required = false, value = HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+            @RequestHeader(required = false, value = HttpHeaders.IF_MODIFIED_SINCE) String ifModifiedSince,
+            HttpServletRequest request) throws IOException {
+        DownloadPreconditions preconditions = DownloadPreconditions.builder()
+                .range(range)
+                .ifRange(ifRange)
+                .ifNoneMatch(ifNoneMatch)
+                .ifModifiedSince(ifModifiedSince)
+                .build();
+        FileDownloadDTO fileDownloadDTO = fileService.downloadFile(fileId, preconditions);
+
+        if (fileDownloadDTO.isNotModified()) {
+            ResponseEntity.HeadersBuilder<?> notModified = ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .lastModified(fileDownloadDTO.getLastModified());
+            if (fileDownloadDTO.getETag() != null) {
+                notModified.eTag(fileDownloadDTO.getETag());
+            }
+            return notModified.build();
+        }
 
-        return ResponseEntity.ok()
+        // InputStreamResource is copied to the response through a fixed size buffer, so the file is never materialized
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(fileDownloadDTO.isPartial() ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileDownloadDTO.getFileName() + "\"")
-                .body(new InputStreamResource(new java.io.ByteArrayInputStream(fileDownloadDTO.getFileStream().toByteArray())));
+                .contentLength(fileDownloadDTO.getFileLength());
+        if (fileDownloadDTO.getContentType() != null) {
+            response.contentType(MediaType.parseMediaType(fileDownloadDTO.getContentType()));
+        }
+        if (fileDownloadDTO.getLastModified() != null) {
+            response.lastModified(fileDownloadDTO.getLastModified());
+        }
+        if (fileDownloadDTO.getETag() != null) {
+            response.eTag(fileDownloadDTO.getETag());
+        }
+        if (fileDownloadDTO.getContentRange() != null) {
+            response.header(HttpHeaders.CONTENT_RANGE, fileDownloadDTO.getContentRange());
+        }
+
+        if (fileDownloadDTO.getLocalFile() != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // Tomcat sends the file region from the page cache with FileChannel.transferTo once the handler returns,
+            // the disk cache deletes an evicted file no sooner than one sweep after this stream is closed
+            fileDownloadDTO.getFileStream().close();
+            request.setAttribute(SENDFILE_FILENAME, fileDownloadDTO.getLocalFile().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, fileDownloadDTO.getLocalFileStart());
+            request.setAttribute(SENDFILE_END, fileDownloadDTO.getLocalFileStart() + fileDownloadDTO.getFileLength());
+            return response.build();
+        }
+        return response.body(new InputStreamResource(fileDownloadDTO.getFileStream()));
+    }
+
+    /**
+     * SHA-256 of each chunk of the file and the root of the hash tree over them, so clients can tell which chunks
+     * changed from a local copy without downloading it.
+     */
+    @GetMapping("/{fileId}/manifest")
+    public ResponseEntity<FileManifestDTO> getFileManifest(@PathVariable String fileId) throws IOException, NoSuchAlgorithmException {
+        return ResponseEntity.ok(fileService.getFileManifest(fileId));
     }
 
     @PatchMapping(
@@ -68,17 +173,83 @@ public class FileStorageController {
     }
 
     @GetMapping("/list")
-    public ResponseEntity<List<FileInfoDTO>> listFiles(
+    // PUBLIC pages are sent as bytes, so the response schema is declared
+    @Operation(responses = @ApiResponse(responseCode = "200", content = @Content(mediaType = MediaType.APPLICATION_JSON_VALUE,
+            array = @ArraySchema(schema = @Schema(implementation = FileInfoDTO.class)))))
+    public ResponseEntity<?> listFiles(
             @RequestParam(required = true, value = "email") String userEmail,
             @RequestParam(required = true, value = "accessLevel") AccessLevel accessLevel,
             @RequestParam(required = true, value = "page", defaultValue = "0") int page,
             @RequestParam(required = true, value = "size", defaultValue = "50") int size,
             @RequestParam(required = false, value = "sortBy") FileOrderBy sortBy,
             @RequestParam(required = false, value = "order") Sort.Direction order,
-            @RequestParam(required = false, value = "tag") Set<String> tags
+            @RequestParam(required = false, value = "tag") Set<String> tags,
+            @RequestParam(required = false, value = "tagMatch", defaultValue = "ANY") TagMatch tagMatch,
+            @RequestParam(required = false, value = "cursor") String cursor
     ) {
 
-        return ResponseEntity.ok(fileService.getFileList(userEmail, accessLevel, tags, sortBy, order, page, size, DOWNLOAD_ENDPOINT));
+        // PUBLIC listings are the same for everyone, so they are served as already serialized pages
+        if (accessLevel == AccessLevel.PUBLIC) {
+            CachedListing listing = fileService.getPublicFileListing(tags, tagMatch, sortBy, order, cursor, page, size, DOWNLOAD_ENDPOINT);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+            if (listing.getNextCursor() != null) {
+                response.header(NEXT_CURSOR_HEADER, listing.getNextCursor());
+            }
+            return response.body(listing.getBody());
+        }
+
+        // Passing a cursor, even empty for the first page, switches from page offsets to cursor pagination
+        if (cursor != null) {
+            FileListPage filePage = fileService.getFileListPage(userEmail, accessLevel, tags, tagMatch, sortBy, order, cursor, size, DOWNLOAD_ENDPOINT);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (filePage.getNextCursor() != null) {
+                response.header(NEXT_CURSOR_HEADER, filePage.getNextCursor());
+            }
+            return response.body(filePage.getFiles());
+        }
+        return ResponseEntity.ok(fileService.getFileList(userEmail, accessLevel, tags, tagMatch, sortBy, order, page, size, DOWNLOAD_ENDPOINT));
+    }
+
+    /**
+     * Every file /list returns for the same filters, as newline-delimited JSON written while it is read from the
+     * database, so a whole inventory takes a single request.
+     */
+    @GetMapping(path = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public void exportFiles(
+            @RequestParam(required = true, value = "email") String userEmail,
+            @RequestParam(required = true, value = "accessLevel") AccessLevel accessLevel,
+            @RequestParam(required = false, value = "sortBy") FileOrderBy sortBy,
+            @RequestParam(required = false, value = "order") Sort.Direction order,
+            @RequestParam(required = false, value = "tag") Set<String> tags,
+            @RequestParam(required = false, value = "tagMatch", defaultValue = "ANY") TagMatch tagMatch,
+            HttpServletResponse response
+    ) throws IOException {
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        fileService.exportFiles(userEmail, accessLevel, tags, tagMatch, sortBy, order, DOWNLOAD_ENDPOINT, response.getOutputStream());
+    }
+
+    /**
+     * Files whose name contains the query, best matches first: exact names, then names starting with it,
+     * then names where it starts a word. Takes the same owner and access level as /list.
+     */
+    @GetMapping("/search")
+    public ResponseEntity<List<FileInfoDTO>> searchFiles(
+            @RequestParam(required = true, value = "email") String userEmail,
+            @RequestParam(required = true, value = "accessLevel") AccessLevel accessLevel,
+            @RequestParam(required = true, value = "q") String query,
+            @RequestParam(required = true, value = "page", defaultValue = "0") int page,
+            @RequestParam(required = true, value = "size", defaultValue = "50") int size) {
+        return ResponseEntity.ok(fileService.searchFiles(userEmail, accessLevel, query, page, size, DOWNLOAD_ENDPOINT));
+    }
+
+    /**
+     * Files and bytes the user stores, with the bytes per tag and per content type, read from counters kept up to date
+     * by every upload, update and delete.
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<OwnerStatsDTO> getStats(@RequestParam("email") String userEmail) {
+        return ResponseEntity.ok(fileService.getOwnerStats(userEmail));
     }
 
     @DeleteMapping("/{fileId}")
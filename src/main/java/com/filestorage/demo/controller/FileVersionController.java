@@ -0,0 +1,66 @@
+package com.filestorage.demo.controller;
+
+import com.filestorage.demo.dto.FileVersionDTO;
+import com.filestorage.demo.exception.FileDownloadDTO;
+import com.filestorage.demo.service.FileService;
+import com.filestorage.demo.service.FileVersionService;
+import lombok.AllArgsConstructor;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.List;
+
+@RestController
+@RequestMapping("/files/{fileId}")
+@AllArgsConstructor
+public class FileVersionController {
+    FileService fileService;
+    FileVersionService fileVersionService;
+
+    /**
+     * Turns version history on or off for the file. Turning it off keeps the versions already recorded until they
+     * are pruned.
+     */
+    @PutMapping("/versioning")
+    public ResponseEntity<String> setVersioning(
+            @PathVariable String fileId,
+            @RequestParam("email") String userEmail,
+            @RequestParam("enabled") boolean enabled) {
+        fileService.setVersioning(userEmail, fileId, enabled);
+        return ResponseEntity.ok(enabled ? "Versioning enabled" : "Versioning disabled");
+    }
+
+    @GetMapping("/versions")
+    public ResponseEntity<List<FileVersionDTO>> getVersions(
+            @PathVariable String fileId,
+            @RequestParam("email") String userEmail) {
+        return ResponseEntity.ok(fileVersionService.getVersions(userEmail, fileId));
+    }
+
+    @GetMapping("/versions/{versionId}")
+    public ResponseEntity<InputStreamResource> downloadVersion(
+            @PathVariable String fileId,
+            @PathVariable String versionId,
+            @RequestParam("email") String userEmail) {
+        FileDownloadDTO version = fileVersionService.downloadVersion(userEmail, fileId, versionId);
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + version.getFileName() + "\"")
+                .contentType(MediaType.parseMediaType(version.getContentType()))
+                .contentLength(version.getFileLength())
+                .eTag(version.getETag())
+                .body(new InputStreamResource(version.getFileStream()));
+    }
+
+    @PostMapping("/versions/{versionId}/restore")
+    public ResponseEntity<String> restoreVersion(
+            @PathVariable String fileId,
+            @PathVariable String versionId,
+            @RequestParam("email") String userEmail) throws IOException {
+        fileVersionService.restoreVersion(userEmail, fileId, versionId);
+        return ResponseEntity.ok("Version restored");
+    }
+}
@@ -0,0 +1,74 @@
+package com.filestorage.demo.controller;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.dto.FileUploadDTO;
+import com.filestorage.demo.dto.FileUploadResponse;
+import com.filestorage.demo.dto.UploadPartDTO;
+import com.filestorage.demo.dto.UploadSessionDTO;
+import com.filestorage.demo.service.UploadSessionService;
+import lombok.AllArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+@RestController
+@RequestMapping("/files/uploads")
+@AllArgsConstructor
+public class UploadSessionController {
+    UploadSessionService uploadSessionService;
+    private static final String DOWNLOAD_ENDPOINT = "/files/download";
+
+    @PostMapping("")
+    public ResponseEntity<UploadSessionDTO> createSession(
+            @RequestParam("email") String userEmail,
+            @RequestParam("accessLevel") AccessLevel accessLevel,
+            @RequestParam("fileName") String fileName,
+            @RequestParam(required = false, value = "tags") Set<String> tags,
+            @RequestParam(required = false, value = "contentType") String contentType,
+            @RequestParam(required = false, value = "sha256") String sha256) {
+
+        FileUploadDTO fileMeta = new FileUploadDTO(accessLevel, fileName, tags);
+        return ResponseEntity.status(HttpStatus.CREATED)
+                .body(uploadSessionService.createSession(userEmail, fileMeta, contentType, sha256));
+    }
+
+    @PutMapping(
+            path = "/{sessionId}/parts/{partNumber}",
+            consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<UploadPartDTO> uploadPart(
+            @PathVariable String sessionId,
+            @PathVariable int partNumber,
+            @RequestParam("email") String userEmail,
+            InputStream body) throws IOException, NoSuchAlgorithmException {
+        return ResponseEntity.ok(uploadSessionService.uploadPart(userEmail, sessionId, partNumber, body));
+    }
+
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<UploadSessionDTO> getSession(
+            @PathVariable String sessionId,
+            @RequestParam("email") String userEmail) {
+        return ResponseEntity.ok(uploadSessionService.getSession(userEmail, sessionId));
+    }
+
+    @PostMapping("/{sessionId}/commit")
+    public ResponseEntity<FileUploadResponse> commit(
+            @PathVariable String sessionId,
+            @RequestParam("email") String userEmail) throws IOException, NoSuchAlgorithmException {
+        FileUploadResponse response = uploadSessionService.commit(userEmail, sessionId, DOWNLOAD_ENDPOINT);
+        return ResponseEntity.created(response.getFileDownloadUrl()).body(response);
+    }
+
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<String> abort(
+            @PathVariable String sessionId,
+            @RequestParam("email") String userEmail) {
+        uploadSessionService.abort(userEmail, sessionId);
+        return ResponseEntity.ok("Upload session deleted");
+    }
+}
@@ -0,0 +1,16 @@
+package com.filestorage.demo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+// Raw values of the range and conditional request headers sent with a download
+@Data
+@Builder
+@AllArgsConstructor
+public class DownloadPreconditions {
+    private String range;
+    private String ifRange;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+}
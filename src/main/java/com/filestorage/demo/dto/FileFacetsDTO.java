@@ -0,0 +1,17 @@
+package com.filestorage.demo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+@AllArgsConstructor
+public class FileFacetsDTO {
+    private long fileCount;
+    // Most used first
+    private Map<String, Long> tags;
+    private Map<String, Long> contentTypes;
+    // From the smallest files to the largest, empty buckets included
+    private Map<String, Long> sizes;
+}
@@ -0,0 +1,14 @@
+package com.filestorage.demo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class FileListPage {
+    private List<FileInfoDTO> files;
+    // Null on the last page
+    private String nextCursor;
+}
@@ -0,0 +1,25 @@
+package com.filestorage.demo.dto;
+
+import com.filestorage.demo.repository.ChunkManifest;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class FileManifestDTO {
+    private String fileId;
+    private String fileHash;
+    private long size;
+    private int chunkSize;
+    private String algorithm;
+    private String rootHash;
+    // One per chunk in order, chunk i covers the bytes [i * chunkSize, (i + 1) * chunkSize)
+    private List<String> chunkHashes;
+
+    public static FileManifestDTO fromManifest(String fileId, String fileHash, ChunkManifest manifest) {
+        return new FileManifestDTO(fileId, fileHash, manifest.getSize(), manifest.getChunkSize(), "SHA-256",
+                manifest.getRootHash(), manifest.getChunkHashes());
+    }
+}
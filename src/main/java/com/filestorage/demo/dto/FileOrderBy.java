@@ -7,7 +7,7 @@ import lombok.Getter;
 public enum FileOrderBy {
     FILE_NAME(FileMetaData.FILE_NAME.getKey()),
     UPLOAD_DATE(FileMetaData.CREATE_TIME.getKey()),
-    TAG(FileMetaData.TAGS.getKey()),
+    TAG(FileMetaData.SORT_TAG.getKey()),
     CONTENT_TYPE(FileMetaData.CONTENT_TYPE.getKey()),
     FILE_SIZE(FileMetaData.FILE_SIZE.getKey());
 
@@ -0,0 +1,24 @@
+package com.filestorage.demo.dto;
+
+import com.filestorage.demo.repository.FileVersion;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.Instant;
+
+@Data
+@AllArgsConstructor
+public class FileVersionDTO {
+    private String versionId;
+    private String fileName;
+    private String contentType;
+    private long size;
+    private String fileHash;
+    private Instant uploadDate;
+    private Instant replacedAt;
+
+    public static FileVersionDTO fromFileVersion(FileVersion version) {
+        return new FileVersionDTO(version.getVersionId().toHexString(), version.getFileName(), version.getContentType(), version.getSize(),
+                version.getFileHash(), version.getUploadDate(), version.getReplacedAt());
+    }
+}
@@ -0,0 +1,23 @@
+package com.filestorage.demo.dto;
+
+import com.filestorage.demo.repository.OwnerStats;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+
+@Data
+@AllArgsConstructor
+public class OwnerStatsDTO {
+    private long fileCount;
+    private long totalBytes;
+    // Null when there is no quota
+    private Long quotaBytes;
+    private Map<String, Long> bytesByTag;
+    private Map<String, Long> bytesByContentType;
+
+    public static OwnerStatsDTO fromOwnerStats(OwnerStats ownerStats, Long quotaBytes) {
+        return new OwnerStatsDTO(ownerStats.getFileCount(), ownerStats.getTotalBytes(), quotaBytes,
+                ownerStats.getBytesByTag(), ownerStats.getBytesByContentType());
+    }
+}
@@ -0,0 +1,8 @@
+package com.filestorage.demo.dto;
+
+public enum TagMatch {
+    // Files with at least one of the tags
+    ANY,
+    // Files with every one of the tags
+    ALL
+}
@@ -0,0 +1,23 @@
+package com.filestorage.demo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Set;
+
+/**
+ * A file a client is about to upload, described by its content hash. When the file metadata is given
+ * and the content is already available, the file is created without sending its bytes.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UploadCheckDTO {
+    private String sha256;
+    private Long size;
+    private String fileName;
+    private AccessLevel accessLevel;
+    private Set<String> tags;
+    private String contentType;
+}
@@ -0,0 +1,17 @@
+package com.filestorage.demo.dto;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.net.URI;
+
+@Data
+@Builder
+public class UploadCheckResultDTO {
+    private String sha256;
+    private String fileName;
+    private UploadCheckStatus status;
+    private String message;
+    private String fileId;
+    private URI fileDownloadUrl;
+}
@@ -0,0 +1,13 @@
+package com.filestorage.demo.dto;
+
+public enum UploadCheckStatus {
+    // The file was created from content already stored, nothing has to be uploaded
+    LINKED,
+    // The content is stored and can be linked by repeating the check with the file metadata
+    AVAILABLE,
+    // The content has to be uploaded, with its sha256 so that content already stored is not written again
+    UPLOAD_REQUIRED,
+    // The user already has a file with this content or this name
+    DUPLICATE,
+    INVALID
+}
@@ -0,0 +1,17 @@
+package com.filestorage.demo.dto;
+
+import com.filestorage.demo.repository.UploadPart;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class UploadPartDTO {
+    private int partNumber;
+    private long size;
+    private String sha256;
+
+    public static UploadPartDTO fromUploadPart(UploadPart part) {
+        return new UploadPartDTO(part.getPartNumber(), part.getSize(), part.getFileHash());
+    }
+}
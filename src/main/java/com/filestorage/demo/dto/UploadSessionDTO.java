@@ -0,0 +1,16 @@
+package com.filestorage.demo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class UploadSessionDTO {
+    private String sessionId;
+    private String fileName;
+    private Instant expiresAt;
+    private List<UploadPartDTO> parts;
+}
@@ -2,6 +2,7 @@ package com.filestorage.demo.exception;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -42,6 +43,34 @@ public class ApiExceptionHandler {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.NOT_FOUND);
     }
 
+    @ExceptionHandler(value = {
+            QuotaExceededException.class,
+    })
+    @ResponseStatus(HttpStatus.INSUFFICIENT_STORAGE)
+    public ResponseEntity<String> handleQuotaExceeded(Exception ex) {
+        logger.error(ex.getMessage(), ex);
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.INSUFFICIENT_STORAGE);
+    }
+
+    @ExceptionHandler(value = {
+            RangeNotSatisfiableException.class,
+    })
+    public ResponseEntity<String> handleRangeNotSatisfiable(RangeNotSatisfiableException ex) {
+        logger.debug(ex.getMessage());
+        return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes */" + ex.getFileLength())
+                .body(ex.getMessage());
+    }
+
+    @ExceptionHandler(value = {
+            ServiceUnavailableException.class,
+    })
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public ResponseEntity<String> handleServiceUnavailable(Exception ex) {
+        logger.error(ex.getMessage(), ex);
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
     @ExceptionHandler(value = {
             NoSuchAlgorithmException.class,
             IOException.class,
@@ -1,13 +1,29 @@
 package com.filestorage.demo.exception;
 
 import lombok.AllArgsConstructor;
+import lombok.Builder;
 import lombok.Data;
 
-import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Instant;
 
 @Data
+@Builder
 @AllArgsConstructor
 public class FileDownloadDTO {
-    private ByteArrayOutputStream fileStream;
+    private InputStream fileStream;
+    private long fileLength;
     private String fileName;
+    private String contentType;
+    private String eTag;
+    private Instant lastModified;
+    // The client copy is still valid, nothing but the validators is sent back
+    private boolean notModified;
+    // Set only for 206 responses with a single range
+    private String contentRange;
+    private boolean partial;
+    // Local copy of the content, lets the container send the body with sendfile instead of fileStream
+    private Path localFile;
+    private long localFileStart;
 }
@@ -0,0 +1,7 @@
+package com.filestorage.demo.exception;
+
+public class QuotaExceededException extends RuntimeException {
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
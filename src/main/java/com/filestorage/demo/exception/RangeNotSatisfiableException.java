@@ -0,0 +1,13 @@
+package com.filestorage.demo.exception;
+
+import lombok.Getter;
+
+@Getter
+public class RangeNotSatisfiableException extends RuntimeException {
+    private final long fileLength;
+
+    public RangeNotSatisfiableException(String message, long fileLength) {
+        super(message);
+        this.fileLength = fileLength;
+    }
+}
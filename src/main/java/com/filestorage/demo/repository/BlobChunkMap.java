@@ -0,0 +1,172 @@
+package com.filestorage.demo.repository;
+
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Where each chunk of a blob is stored. A blob written as a delta only holds the chunks that changed, every other chunk
+ * is read at the same index from one of its sources, the blobs it was derived from. The map is a list of runs of
+ * consecutive chunks stored in the same blob, so a change at the tail of a large file is a couple of runs.
+ */
+public final class BlobChunkMap {
+    // Source index of the chunks stored in the blob itself
+    private static final int OWN = -1;
+
+    private final ObjectId blobId;
+    private final List<ObjectId> sources;
+    // Triples of first chunk, end chunk (exclusive) and source index
+    private final int[] runs;
+
+    private BlobChunkMap(ObjectId blobId, List<ObjectId> sources, int[] runs) {
+        this.blobId = blobId;
+        this.sources = sources;
+        this.runs = runs;
+    }
+
+    /**
+     * A blob holding all of its chunks.
+     */
+    public static BlobChunkMap full(ObjectId blobId, int chunkCount) {
+        return new BlobChunkMap(blobId, List.of(), chunkCount > 0 ? new int[]{0, chunkCount, OWN} : new int[0]);
+    }
+
+    /**
+     * Reads a map as stored by {@link #toList}.
+     */
+    public static BlobChunkMap of(ObjectId blobId, List<ObjectId> sources, List<Integer> runs) {
+        int[] values = new int[runs.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = runs.get(i);
+        }
+        return new BlobChunkMap(blobId, List.copyOf(sources), values);
+    }
+
+    public boolean isDelta() {
+        return !sources.isEmpty();
+    }
+
+    public List<ObjectId> getSources() {
+        return sources;
+    }
+
+    public int getChunkCount() {
+        return runs.length == 0 ? 0 : runs[runs.length - 2];
+    }
+
+    /**
+     * Returns the blobs the chunks are read from, the blob itself included when it holds any of them.
+     */
+    public List<ObjectId> owners() {
+        Set<ObjectId> owners = new LinkedHashSet<>();
+        for (int i = 0; i < runs.length; i += 3) {
+            owners.add(owner(runs[i + 2]));
+        }
+        return new ArrayList<>(owners);
+    }
+
+    public ObjectId ownerOf(int chunk) {
+        int low = 0;
+        int high = runs.length / 3 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (chunk < runs[middle * 3]) {
+                high = middle - 1;
+            } else if (chunk >= runs[middle * 3 + 1]) {
+                low = middle + 1;
+            } else {
+                return owner(runs[middle * 3 + 2]);
+            }
+        }
+        throw new IndexOutOfBoundsException("Chunk " + chunk + " is not part of blob " + blobId);
+    }
+
+    public int sharedChunks() {
+        int shared = 0;
+        for (int i = 0; i < runs.length; i += 3) {
+            if (runs[i + 2] != OWN) {
+                shared += runs[i + 1] - runs[i];
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Splits the inclusive byte range [start, end] into the parts read from each blob, in order.
+     */
+    public List<Segment> segments(long start, long end, int chunkSize) {
+        if (end < start) {
+            return Collections.emptyList();
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < runs.length; i += 3) {
+            long runStart = (long) runs[i] * chunkSize;
+            long runEnd = (long) runs[i + 1] * chunkSize - 1;
+            if (runEnd >= start && runStart <= end) {
+                segments.add(new Segment(owner(runs[i + 2]), Math.max(start, runStart), Math.min(end, runEnd)));
+            }
+        }
+        return segments;
+    }
+
+    public List<Integer> toList() {
+        List<Integer> values = new ArrayList<>(runs.length);
+        for (int run : runs) {
+            values.add(run);
+        }
+        return values;
+    }
+
+    private ObjectId owner(int source) {
+        return source == OWN ? blobId : sources.get(source);
+    }
+
+    /**
+     * Part of a byte range stored in the chunks of one blob.
+     */
+    public record Segment(ObjectId filesId, long start, long end) {
+    }
+
+    /**
+     * Collects the owner of each chunk in order, merging consecutive chunks of the same owner into one run.
+     */
+    public static class Builder {
+        private final ObjectId blobId;
+        private final List<ObjectId> sources = new ArrayList<>();
+        private final List<Integer> runs = new ArrayList<>();
+        private int chunkCount;
+
+        public Builder(ObjectId blobId) {
+            this.blobId = blobId;
+        }
+
+        public Builder add(ObjectId owner) {
+            int source = OWN;
+            if (!blobId.equals(owner)) {
+                source = sources.indexOf(owner);
+                if (source < 0) {
+                    sources.add(owner);
+                    source = sources.size() - 1;
+                }
+            }
+            int last = runs.size() - 3;
+            if (last >= 0 && runs.get(last + 2) == source) {
+                runs.set(last + 1, chunkCount + 1);
+            } else {
+                runs.add(chunkCount);
+                runs.add(chunkCount + 1);
+                runs.add(source);
+            }
+            chunkCount++;
+            return this;
+        }
+
+        public BlobChunkMap build() {
+            return of(blobId, sources, runs);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.exception.InternalServerError;
+import com.filestorage.demo.utils.Utils;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoGridFSException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Content addressed storage: each distinct content is stored once in the {@code blobs} GridFS bucket, keyed by its SHA-256,
+ * and shared by every file record pointing to it. A blob counts the records referencing it and is removed with the last one.
+ * <p>
+ * New content is first written as a pending blob, with no hash and no reference, and only becomes visible once committed.
+ * A blob whose count dropped to zero can never be referenced again, which keeps removal free of races with new references.
+ * <p>
+ * New content derived from a stored blob can be written as a delta: only the chunks whose SHA-256 differs from the chunk
+ * at the same index are written, the others are read from the blobs already holding them, see {@link BlobChunkMap}.
+ * A delta holds a reference to each of its sources and drops them when it is removed.
+ */
+@Repository
+public class BlobRepository {
+    private static Logger logger = LoggerFactory.getLogger(BlobRepository.class);
+
+    // The unique index on the hash of committed blobs, under the name the server gives it by default
+    public static final String HASH_INDEX = "metadata.hash_1";
+
+    private static final String BLOBS_BUCKET = "blobs";
+    private static final String HASH_KEY = "hash";
+    private static final String REF_COUNT_KEY = "refCount";
+    private static final String SOURCES_KEY = "sources";
+    private static final String CHUNK_MAP_KEY = "chunkMap";
+    private static final String CHUNK_HASHES_KEY = "chunkHashes";
+    private static final String ROOT_HASH_KEY = "rootHash";
+    static final String HASH = "metadata." + HASH_KEY;
+    static final String REF_COUNT = "metadata." + REF_COUNT_KEY;
+    private static final String SOURCES = "metadata." + SOURCES_KEY;
+    private static final String CHUNK_MAP = "metadata." + CHUNK_MAP_KEY;
+    private static final String CHUNK_HASHES = "metadata." + CHUNK_HASHES_KEY;
+    private static final String ROOT_HASH = "metadata." + ROOT_HASH_KEY;
+    private static final String PENDING_NAME = "pending";
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+    // 8 MB of digests, content of more than 64 GB with the default chunk size is always written in full
+    private static final int MAX_CHUNK_HASHES = 256 * 1024;
+    // Each generation of deltas may add a source, past this the content is written in full again
+    private static final int MAX_DELTA_SOURCES = 8;
+    private static final int CHUNK_WRITE_BATCH = 16;
+    // Chunks of one upload hashed at the same time, bounding the copies each upload holds
+    private static final int MAX_CHUNKS_HASHING = 2 * ForkJoinPool.getCommonPoolParallelism();
+
+    private final GridFSBucket blobsBucket;
+    private final MongoCollection<Document> blobFiles;
+    private final MongoCollection<Document> blobChunks;
+
+    public BlobRepository(MongoDatabase mongoDatabase) {
+        this.blobsBucket = GridFSBuckets.create(mongoDatabase, BLOBS_BUCKET);
+        this.blobFiles = mongoDatabase.getCollection(BLOBS_BUCKET + ".files");
+        this.blobChunks = mongoDatabase.getCollection(BLOBS_BUCKET + ".chunks");
+    }
+
+    public int getChunkSize() {
+        return blobsBucket.getChunkSizeBytes();
+    }
+
+    /**
+     * Writes content as a pending blob in a single pass, see {@link #commit} and {@link #discard}.
+     */
+    public StoredContent store(InputStream inputStream) throws IOException, NoSuchAlgorithmException {
+        ChunkDigests chunkDigests = chunkDigests();
+        StoredContent pending = GridFSWriter.write(blobsBucket, PENDING_NAME, new Document(REF_COUNT_KEY, 0), inputStream, chunkDigests);
+        byte[] chunkHashes = chunkDigests.finish();
+        if (chunkHashes != null) {
+            // Lets later versions of the content be written as deltas of this one
+            storeChunkHashes(pending.getObjectId(), chunkHashes);
+        }
+        return pending;
+    }
+
+    /**
+     * Writes content derived from a stored blob as a pending blob holding only the chunks that differ from it.
+     * The content is written in full when the base has no chunk digests, when too few chunks are unchanged for
+     * sharing to be worth keeping the sources, or when the base already has too many sources.
+     */
+    public StoredContent storeDelta(InputStream inputStream, ObjectId baseId) throws IOException, NoSuchAlgorithmException {
+        int chunkSize = getChunkSize();
+        Document base = blobFiles.find(Filters.eq("_id", baseId))
+                .projection(Projections.include("length", "chunkSize", SOURCES, CHUNK_MAP, CHUNK_HASHES))
+                .first();
+        byte[] baseHashes = base == null ? null : chunkHashes(base);
+        if (baseHashes == null || base.getInteger("chunkSize") != chunkSize) {
+            return store(inputStream);
+        }
+        BlobChunkMap baseMap = chunkMap(base);
+        List<ObjectId> candidates = baseMap.owners();
+        if (candidates.size() > MAX_DELTA_SOURCES || !acquire(candidates)) {
+            return store(inputStream);
+        }
+
+        // Written first and listing every candidate, so an interrupted write is removed with its references by the cleanup
+        ObjectId blobId = new ObjectId();
+        blobFiles.insertOne(new Document("_id", blobId)
+                .append("length", 0L)
+                .append("chunkSize", chunkSize)
+                .append("uploadDate", new Date())
+                .append("filename", PENDING_NAME)
+                .append("metadata", new Document(REF_COUNT_KEY, 0).append(SOURCES_KEY, candidates)));
+        try {
+            return writeDelta(blobId, inputStream, chunkSize, baseHashes, baseMap, candidates);
+        } catch (IOException | RuntimeException ex) {
+            deleteIfUnreferenced(blobId);
+            throw ex;
+        }
+    }
+
+    private StoredContent writeDelta(ObjectId blobId, InputStream inputStream, int chunkSize, byte[] baseHashes,
+                                     BlobChunkMap baseMap, List<ObjectId> candidates) throws IOException, NoSuchAlgorithmException {
+        MessageDigest fileDigest = MessageDigest.getInstance("SHA-256");
+        MessageDigest chunkDigest = MessageDigest.getInstance("SHA-256");
+        int baseChunks = baseHashes.length / ChunkDigests.DIGEST_LENGTH;
+        BlobChunkMap.Builder layout = new BlobChunkMap.Builder(blobId);
+        ByteArrayOutputStream chunkHashes = new ByteArrayOutputStream();
+        List<Document> batch = new ArrayList<>();
+        byte[] chunk = new byte[chunkSize];
+        int chunkIndex = 0;
+        long size = 0;
+        int read;
+        while ((read = inputStream.readNBytes(chunk, 0, chunkSize)) > 0) {
+            fileDigest.update(chunk, 0, read);
+            chunkDigest.update(chunk, 0, read);
+            byte[] hash = chunkDigest.digest();
+            if (chunkIndex < MAX_CHUNK_HASHES) {
+                chunkHashes.writeBytes(hash);
+            }
+            int baseOffset = chunkIndex * ChunkDigests.DIGEST_LENGTH;
+            if (chunkIndex < baseChunks && Arrays.equals(hash, 0, hash.length, baseHashes, baseOffset, baseOffset + hash.length)) {
+                layout.add(baseMap.ownerOf(chunkIndex));
+            } else {
+                layout.add(blobId);
+                batch.add(chunkDocument(blobId, chunkIndex, Arrays.copyOf(chunk, read)));
+                if (batch.size() == CHUNK_WRITE_BATCH) {
+                    blobChunks.insertMany(batch);
+                    batch.clear();
+                }
+            }
+            size += read;
+            chunkIndex++;
+        }
+        if (!batch.isEmpty()) {
+            blobChunks.insertMany(batch);
+        }
+
+        BlobChunkMap chunkMap = layout.build();
+        // A delta keeps its sources whole, which only pays off when it shares most of their chunks
+        if (chunkMap.sharedChunks() * 2 < chunkMap.getChunkCount()) {
+            copySharedChunks(blobId, chunkMap, chunkSize);
+            chunkMap = BlobChunkMap.full(blobId, chunkMap.getChunkCount());
+        }
+
+        Document metadata = new Document(SOURCES_KEY, chunkMap.getSources());
+        if (chunkMap.isDelta()) {
+            metadata.append(CHUNK_MAP_KEY, chunkMap.toList());
+        }
+        if (chunkIndex <= MAX_CHUNK_HASHES) {
+            byte[] hashes = chunkHashes.toByteArray();
+            metadata.append(CHUNK_HASHES_KEY, new Binary(hashes))
+                    .append(ROOT_HASH_KEY, Utils.toHex(ChunkManifest.treeRoot(hashes)));
+        }
+        List<Bson> updates = new ArrayList<>();
+        updates.add(Updates.set("length", size));
+        metadata.forEach((key, value) -> updates.add(Updates.set("metadata." + key, value)));
+        blobFiles.updateOne(Filters.eq("_id", blobId), Updates.combine(updates));
+
+        // A crash before this point leaves the unused candidates referenced until the delta is removed
+        for (ObjectId candidate : candidates) {
+            if (!chunkMap.getSources().contains(candidate)) {
+                release(candidate);
+            }
+        }
+        return new StoredContent(blobId, Utils.toHex(fileDigest.digest()), size);
+    }
+
+    // Server side copy of the chunks the blob would otherwise read from its sources
+    private void copySharedChunks(ObjectId blobId, BlobChunkMap chunkMap, int chunkSize) {
+        List<Document> batch = new ArrayList<>();
+        for (BlobChunkMap.Segment segment : chunkMap.segments(0, (long) chunkMap.getChunkCount() * chunkSize - 1, chunkSize)) {
+            if (!chunkMap.getSources().contains(segment.filesId())) {
+                continue;
+            }
+            blobChunks.find(Filters.and(
+                            Filters.eq("files_id", segment.filesId()),
+                            Filters.gte("n", (int) (segment.start() / chunkSize)),
+                            Filters.lte("n", (int) (segment.end() / chunkSize))))
+                    .batchSize(FileRepository.DOWNLOAD_BATCH_SIZE)
+                    .forEach(chunk -> {
+                        batch.add(chunkDocument(blobId, chunk.getInteger("n"), chunk.get("data", Binary.class).getData()));
+                        if (batch.size() == CHUNK_WRITE_BATCH) {
+                            blobChunks.insertMany(batch);
+                            batch.clear();
+                        }
+                    });
+        }
+        if (!batch.isEmpty()) {
+            blobChunks.insertMany(batch);
+        }
+    }
+
+    /**
+     * Returns the chunk digests of a blob, or null if there is no such blob. Blobs stored before digests were kept
+     * are read once to compute them.
+     */
+    public ChunkManifest findManifest(ObjectId blobId) throws IOException, NoSuchAlgorithmException {
+        Document blob = blobFiles.find(Filters.eq("_id", blobId))
+                .projection(Projections.include("length", "chunkSize", CHUNK_HASHES))
+                .first();
+        if (blob == null) {
+            return null;
+        }
+        int chunkSize = blob.getInteger("chunkSize");
+        long length = blob.get("length", Number.class).longValue();
+        byte[] chunkHashes = chunkHashes(blob);
+        if (chunkHashes == null) {
+            ChunkDigests chunkDigests = new ChunkDigests(chunkSize, Integer.MAX_VALUE, ForkJoinPool.commonPool(), MAX_CHUNKS_HASHING);
+            try (InputStream content = openDownloadStream(blobId)) {
+                chunkHashes = chunkDigests.digest(content);
+            }
+            if (chunkHashes.length / ChunkDigests.DIGEST_LENGTH <= MAX_CHUNK_HASHES) {
+                storeChunkHashes(blobId, chunkHashes);
+            }
+        }
+        return new ChunkManifest(chunkSize, length, chunkHashes);
+    }
+
+    private ChunkDigests chunkDigests() throws NoSuchAlgorithmException {
+        return new ChunkDigests(getChunkSize(), MAX_CHUNK_HASHES, ForkJoinPool.commonPool(), MAX_CHUNKS_HASHING);
+    }
+
+    private void storeChunkHashes(ObjectId blobId, byte[] chunkHashes) {
+        blobFiles.updateOne(Filters.eq("_id", blobId), Updates.combine(
+                Updates.set(CHUNK_HASHES, new Binary(chunkHashes)),
+                Updates.set(ROOT_HASH, Utils.toHex(ChunkManifest.treeRoot(chunkHashes)))));
+    }
+
+    public void discard(StoredContent pending) {
+        deleteIfUnreferenced(pending.getObjectId());
+    }
+
+    /**
+     * Takes a reference to the blob holding the given content, or returns null if there is none.
+     */
+    public StoredContent reserve(String fileHash) {
+        Document blob = blobFiles.findOneAndUpdate(
+                Filters.and(Filters.eq(HASH, fileHash), Filters.gt(REF_COUNT, 0)),
+                Updates.inc(REF_COUNT, 1),
+                new FindOneAndUpdateOptions().projection(Projections.include("_id", "length")));
+        return blob == null ? null : new StoredContent(blob.getObjectId("_id"), fileHash, blob.get("length", Number.class).longValue());
+    }
+
+    /**
+     * Takes a reference to the content of a pending blob. If a blob with the same hash already exists it is shared
+     * and the pending chunks are dropped, otherwise the pending blob becomes the blob for that hash.
+     */
+    public ObjectId commit(StoredContent pending) {
+        for (int attempt = 0; attempt < MAX_COMMIT_ATTEMPTS; attempt++) {
+            StoredContent existing = reserve(pending.getFileHash());
+            if (existing != null) {
+                discard(pending);
+                return existing.getObjectId();
+            }
+            try {
+                blobFiles.updateOne(Filters.eq("_id", pending.getObjectId()), Updates.combine(
+                        Updates.set("filename", pending.getFileHash()),
+                        Updates.set(HASH, pending.getFileHash()),
+                        Updates.set(REF_COUNT, 1)));
+                return pending.getObjectId();
+            } catch (MongoWriteException ex) {
+                if (ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw ex;
+                }
+                // A concurrent upload of the same content committed first, or the last reference to it is being removed
+            }
+        }
+        discard(pending);
+        throw new InternalServerError("Failed to store file content");
+    }
+
+    /**
+     * Drops a reference to a blob, removing the blob when it was the last one.
+     */
+    public void release(ObjectId blobId) {
+        Document blob = blobFiles.findOneAndUpdate(
+                Filters.eq("_id", blobId),
+                Updates.inc(REF_COUNT, -1),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER).projection(Projections.include(REF_COUNT)));
+        if (blob != null && blob.get("metadata", Document.class).getInteger(REF_COUNT_KEY) <= 0) {
+            deleteUnreferenced(blobId);
+        }
+    }
+
+    /**
+     * Returns the length of the blob content, or null if the blob is gone.
+     */
+    public Long findLength(ObjectId blobId) {
+        Document blob = blobFiles.find(Filters.eq("_id", blobId)).projection(Projections.include("length")).first();
+        return blob == null ? null : blob.get("length", Number.class).longValue();
+    }
+
+    public InputStream openDownloadStream(ObjectId blobId) {
+        Document blob = findLayout(blobId);
+        return openStream(blob, 0, blob.get("length", Number.class).longValue() - 1);
+    }
+
+    // Looks the blob up even for a range, as a delta reads parts of the range from its sources
+    public InputStream openRangeStream(ObjectId blobId, long start, long end) {
+        return openStream(findLayout(blobId), start, end);
+    }
+
+    private Document findLayout(ObjectId blobId) {
+        Document blob = blobFiles.find(Filters.eq("_id", blobId))
+                .projection(Projections.include("length", "chunkSize", SOURCES, CHUNK_MAP))
+                .first();
+        if (blob == null) {
+            throw new MongoGridFSException("No blob found with the id: " + blobId);
+        }
+        return blob;
+    }
+
+    private InputStream openStream(Document blob, long start, long end) {
+        int chunkSize = blob.getInteger("chunkSize");
+        BlobChunkMap chunkMap = chunkMap(blob);
+        if (!chunkMap.isDelta()) {
+            return new GridFSRangeInputStream(blobChunks, blob.getObjectId("_id"), chunkSize, start, end, FileRepository.DOWNLOAD_BATCH_SIZE);
+        }
+        // Each part opens its cursor on its first read, so only one is open at a time
+        List<InputStream> parts = new ArrayList<>();
+        for (BlobChunkMap.Segment segment : chunkMap.segments(start, end, chunkSize)) {
+            parts.add(new GridFSRangeInputStream(blobChunks, segment.filesId(), chunkSize, segment.start(), segment.end(),
+                    FileRepository.DOWNLOAD_BATCH_SIZE));
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    private BlobChunkMap chunkMap(Document blob) {
+        ObjectId blobId = blob.getObjectId("_id");
+        Document metadata = blob.get("metadata", Document.class);
+        List<Integer> runs = metadata == null ? null : metadata.getList(CHUNK_MAP_KEY, Integer.class);
+        if (runs == null) {
+            long length = blob.get("length", Number.class).longValue();
+            int chunkSize = blob.getInteger("chunkSize");
+            return BlobChunkMap.full(blobId, (int) ((length + chunkSize - 1) / chunkSize));
+        }
+        return BlobChunkMap.of(blobId, metadata.getList(SOURCES_KEY, ObjectId.class), runs);
+    }
+
+    private byte[] chunkHashes(Document blob) {
+        Document metadata = blob.get("metadata", Document.class);
+        Binary chunkHashes = metadata == null ? null : metadata.get(CHUNK_HASHES_KEY, Binary.class);
+        return chunkHashes == null ? null : chunkHashes.getData();
+    }
+
+    private Document chunkDocument(ObjectId blobId, int chunkIndex, byte[] data) {
+        return new Document("files_id", blobId).append("n", chunkIndex).append("data", new Binary(data));
+    }
+
+    // Takes a reference to each blob, or to none of them if one is already being removed
+    private boolean acquire(List<ObjectId> blobIds) {
+        List<ObjectId> acquired = new ArrayList<>();
+        for (ObjectId blobId : blobIds) {
+            if (blobFiles.updateOne(Filters.and(Filters.eq("_id", blobId), Filters.gt(REF_COUNT, 0)),
+                    Updates.inc(REF_COUNT, 1)).getModifiedCount() == 0) {
+                acquired.forEach(this::release);
+                return false;
+            }
+            acquired.add(blobId);
+        }
+        return true;
+    }
+
+    /**
+     * Removes blobs left without references, such as pending blobs of uploads interrupted by a crash.
+     */
+    public int removeUnreferenced(Instant olderThan) {
+        List<ObjectId> unreferenced = new ArrayList<>();
+        blobFiles.find(Filters.and(Filters.lte(REF_COUNT, 0), Filters.lt("uploadDate", Date.from(olderThan))))
+                .projection(Projections.include("_id"))
+                .forEach(blob -> unreferenced.add(blob.getObjectId("_id")));
+        unreferenced.forEach(this::deleteUnreferenced);
+        return unreferenced.size();
+    }
+
+    private void deleteUnreferenced(ObjectId blobId) {
+        if (deleteIfUnreferenced(blobId)) {
+            logger.info("Removed unreferenced blob " + blobId);
+        }
+    }
+
+    private boolean deleteIfUnreferenced(ObjectId blobId) {
+        // The files document goes first, so a failure never leaves a blob whose chunks are partly gone
+        Document blob = blobFiles.findOneAndDelete(Filters.and(Filters.eq("_id", blobId), Filters.lte(REF_COUNT, 0)),
+                new FindOneAndDeleteOptions().projection(Projections.include(SOURCES)));
+        if (blob == null) {
+            return false;
+        }
+        blobChunks.deleteMany(Filters.eq("files_id", blobId));
+        List<ObjectId> sources = blob.get("metadata", Document.class).getList(SOURCES_KEY, ObjectId.class);
+        if (sources != null) {
+            sources.forEach(this::release);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,123 @@
+package com.filestorage.demo.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * SHA-256 of each chunk of a stream, concatenated, with chunks aligned on the GridFS chunk size so the digests
+ * describe the chunk documents written for the same stream. Content with more than a given number of chunks
+ * gets no digests rather than an unbounded array.
+ * <p>
+ * Given an executor, chunks past the first few are hashed on it instead of the writing thread, a bounded number
+ * at a time, so a large upload hashes its chunks on several cores while it is written.
+ */
+final class ChunkDigests {
+    static final int DIGEST_LENGTH = 32;
+    // Small content is hashed inline, handing it over would cost more than hashing it
+    private static final int PARALLEL_AFTER_CHUNKS = 8;
+
+    private final int chunkSize;
+    private final int maxChunks;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final MessageDigest digest;
+    private final ByteArrayOutputStream digests = new ByteArrayOutputStream();
+    private final Deque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<>();
+    private byte[] chunk;
+    private int chunks;
+    private int filled;
+
+    ChunkDigests(int chunkSize, int maxChunks) throws NoSuchAlgorithmException {
+        this(chunkSize, maxChunks, null, 0);
+    }
+
+    ChunkDigests(int chunkSize, int maxChunks, Executor executor, int maxInFlight) throws NoSuchAlgorithmException {
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.digest = MessageDigest.getInstance("SHA-256");
+    }
+
+    /**
+     * Reads the stream to its end and returns the digests of its chunks, or null if there were too many of them.
+     */
+    byte[] digest(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            update(buffer, 0, bytesRead);
+        }
+        return finish();
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        while (length > 0 && chunks <= maxChunks) {
+            int toHash = Math.min(length, chunkSize - filled);
+            if (isParallel()) {
+                if (chunk == null) {
+                    chunk = new byte[chunkSize];
+                }
+                System.arraycopy(bytes, offset, chunk, filled, toHash);
+            } else {
+                digest.update(bytes, offset, toHash);
+            }
+            filled += toHash;
+            offset += toHash;
+            length -= toHash;
+            if (filled == chunkSize) {
+                endChunk();
+            }
+        }
+    }
+
+    /**
+     * Returns the digests of all chunks, or null if there were too many of them.
+     */
+    byte[] finish() {
+        if (filled > 0) {
+            endChunk();
+        }
+        while (!inFlight.isEmpty()) {
+            digests.writeBytes(inFlight.poll().join());
+        }
+        return chunks <= maxChunks ? digests.toByteArray() : null;
+    }
+
+    private boolean isParallel() {
+        return executor != null && chunks >= PARALLEL_AFTER_CHUNKS;
+    }
+
+    private void endChunk() {
+        if (isParallel()) {
+            byte[] data = chunk;
+            int length = filled;
+            chunk = null;
+            if (inFlight.size() >= maxInFlight) {
+                digests.writeBytes(inFlight.poll().join());
+            }
+            inFlight.add(CompletableFuture.supplyAsync(() -> sha256(data, length), executor));
+        } else {
+            digests.writeBytes(digest.digest());
+        }
+        filled = 0;
+        chunks++;
+    }
+
+    private static byte[] sha256(byte[] data, int length) {
+        try {
+            MessageDigest chunkDigest = MessageDigest.getInstance("SHA-256");
+            chunkDigest.update(data, 0, length);
+            return chunkDigest.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
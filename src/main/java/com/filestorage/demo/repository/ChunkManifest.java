@@ -0,0 +1,71 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.utils.Utils;
+import lombok.Getter;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 of each chunk of a file, aligned with its GridFS chunks, and the root of the binary hash tree built over them.
+ * A tree level hashes each pair of nodes together and carries an odd last node up unchanged, so a file of a single
+ * chunk has that chunk's hash as root. Clients comparing manifests find the changed chunks without reading the content.
+ */
+@Getter
+public class ChunkManifest {
+    private final int chunkSize;
+    private final long size;
+    private final String rootHash;
+    private final List<String> chunkHashes;
+
+    public ChunkManifest(int chunkSize, long size, byte[] chunkHashes) {
+        this.chunkSize = chunkSize;
+        this.size = size;
+        this.rootHash = Utils.toHex(treeRoot(chunkHashes));
+        this.chunkHashes = new ArrayList<>(chunkHashes.length / ChunkDigests.DIGEST_LENGTH);
+        for (int offset = 0; offset < chunkHashes.length; offset += ChunkDigests.DIGEST_LENGTH) {
+            byte[] hash = new byte[ChunkDigests.DIGEST_LENGTH];
+            System.arraycopy(chunkHashes, offset, hash, 0, hash.length);
+            this.chunkHashes.add(Utils.toHex(hash));
+        }
+    }
+
+    /**
+     * Returns the root of the tree over concatenated chunk digests, the digest of no bytes for empty content.
+     */
+    public static byte[] treeRoot(byte[] chunkHashes) {
+        MessageDigest digest = sha256();
+        if (chunkHashes.length == 0) {
+            return digest.digest();
+        }
+        byte[] level = chunkHashes;
+        while (level.length > ChunkDigests.DIGEST_LENGTH) {
+            int nodes = level.length / ChunkDigests.DIGEST_LENGTH;
+            byte[] parents = new byte[(nodes + 1) / 2 * ChunkDigests.DIGEST_LENGTH];
+            for (int node = 0; node < nodes; node += 2) {
+                int offset = node * ChunkDigests.DIGEST_LENGTH;
+                byte[] parent;
+                if (node + 1 < nodes) {
+                    digest.update(level, offset, 2 * ChunkDigests.DIGEST_LENGTH);
+                    parent = digest.digest();
+                } else {
+                    parent = new byte[ChunkDigests.DIGEST_LENGTH];
+                    System.arraycopy(level, offset, parent, 0, parent.length);
+                }
+                System.arraycopy(parent, 0, parents, node / 2 * ChunkDigests.DIGEST_LENGTH, parent.length);
+            }
+            level = parents;
+        }
+        return level;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
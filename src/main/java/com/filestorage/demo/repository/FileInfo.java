@@ -1,19 +1,18 @@
 package com.filestorage.demo.repository;
 
 import com.filestorage.demo.dto.AccessLevel;
-import com.mongodb.client.gridfs.model.GridFSFile;
 import lombok.AllArgsConstructor;
-import lombok.Data;
 import lombok.Getter;
+import org.bson.types.ObjectId;
 
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.ZoneId;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Set;
 
+/**
+ * A file record as read from {@code fs.files}: its metadata plus where its content is stored.
+ * The storage fields are null for a file that has not been stored yet.
+ */
 @AllArgsConstructor
 @Getter
 public class FileInfo {
@@ -26,23 +25,25 @@ public class FileInfo {
     private LocalDate modificationTime;
     private String owner;
     private AccessLevel accessLevel;
-    private GridFSFile file;
 
-    public static FileInfo fromFile(GridFSFile file) {
-        Date rawCreateDate = (Date) file.getMetadata().get(FileMetaData.CREATE_TIME.getKey());
-        LocalDate createDate = Instant.ofEpochMilli(rawCreateDate.getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
-        LocalDate uploadDate = Instant.ofEpochMilli(file.getUploadDate().getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
-        return file == null ? null :
-                new FileInfo(
-                        (String) file.getMetadata().get(FileMetaData.ID.getKey()),
-                        (String) file.getMetadata().get(FileMetaData.FILE_NAME.getKey()),
-                        file.getLength(),
-                        (String) file.getMetadata().get(FileMetaData.CONTENT_TYPE.getKey()),
-                        (ArrayList<String>) file.getMetadata().get(FileMetaData.TAGS.getKey()),
-                        createDate,
-                        uploadDate,
-                        (String) file.getMetadata().get(FileMetaData.OWNER.getKey()),
-                        AccessLevel.valueOf((String) file.getMetadata().get(FileMetaData.ACCESS_LEVEL.getKey())),
-                        file);
+    private ObjectId objectId;
+    private int chunkSize;
+    private Instant uploadDate;
+    private String fileHash;
+    // Null for files stored before blobs were introduced, which keep their content in their own chunks
+    private ObjectId blobId;
+    private boolean versioned;
+
+    public FileInfo(String fileId, String fileName, Long size, String contentType, List<String> tags, LocalDate creationTime,
+                    LocalDate modificationTime, String owner, AccessLevel accessLevel) {
+        this(fileId, fileName, size, contentType, tags, creationTime, modificationTime, owner, accessLevel,
+                null, 0, null, null, null);
+    }
+
+    public FileInfo(String fileId, String fileName, Long size, String contentType, List<String> tags, LocalDate creationTime,
+                    LocalDate modificationTime, String owner, AccessLevel accessLevel, ObjectId objectId, int chunkSize,
+                    Instant uploadDate, String fileHash, ObjectId blobId) {
+        this(fileId, fileName, size, contentType, tags, creationTime, modificationTime, owner, accessLevel,
+                objectId, chunkSize, uploadDate, fileHash, blobId, false);
     }
 }
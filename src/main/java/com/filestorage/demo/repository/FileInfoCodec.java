@@ -0,0 +1,210 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.mongodb.client.model.Projections;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes {@code fs.files} records straight from the wire into {@link FileInfo}, without building a
+ * {@code GridFSFile} and its metadata {@code Document} first. Only the fields in {@link #PROJECTION}
+ * are expected, anything else is skipped. Encoding writes the same fields in the same layout, so an encoded
+ * {@link FileInfo} decodes back to an equal one.
+ */
+public class FileInfoCodec implements Codec<FileInfo> {
+    private static final String META = "metadata.";
+
+    public static final Bson PROJECTION = Projections.include("_id", "length", "chunkSize", "uploadDate",
+            META + FileMetaData.ID.getKey(),
+            META + FileMetaData.FILE_NAME.getKey(),
+            META + FileMetaData.CONTENT_TYPE.getKey(),
+            META + FileMetaData.TAGS.getKey(),
+            META + FileMetaData.CREATE_TIME.getKey(),
+            META + FileMetaData.OWNER.getKey(),
+            META + FileMetaData.ACCESS_LEVEL.getKey(),
+            META + FileMetaData.FILE_HASH.getKey(),
+            META + FileMetaData.FILE_SIZE.getKey(),
+            META + FileMetaData.BLOB_ID.getKey(),
+            META + FileMetaData.VERSIONED.getKey());
+
+    private final ZoneId zone;
+
+    public FileInfoCodec() {
+        this(ZoneId.systemDefault());
+    }
+
+    public FileInfoCodec(ZoneId zone) {
+        this.zone = zone;
+    }
+
+    @Override
+    public FileInfo decode(BsonReader reader, DecoderContext decoderContext) {
+        ObjectId objectId = null;
+        Long length = null;
+        int chunkSize = 0;
+        Instant uploadDate = null;
+        Metadata metadata = new Metadata();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            switch (reader.readName()) {
+                case "_id" -> objectId = reader.getCurrentBsonType() == BsonType.OBJECT_ID ? reader.readObjectId() : skip(reader);
+                case "length" -> length = readLong(reader);
+                case "chunkSize" -> chunkSize = readLong(reader).intValue();
+                case "uploadDate" -> uploadDate = Instant.ofEpochMilli(reader.readDateTime());
+                case "metadata" -> readMetadata(reader, metadata);
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        // Records without a GridFS length carry the size in their metadata, if they have neither it stays null
+        if (length == null) {
+            length = metadata.fileSize;
+        }
+
+        // Creation dates are stored as UTC midnight of the date
+        LocalDate creationTime = metadata.createTime == null ? null
+                : Instant.ofEpochMilli(metadata.createTime).atOffset(ZoneOffset.UTC).toLocalDate();
+        LocalDate modificationTime = uploadDate == null ? null : LocalDate.ofInstant(uploadDate, zone);
+        return new FileInfo(metadata.id, metadata.fileName, length, metadata.contentType, metadata.tags, creationTime,
+                modificationTime, metadata.owner, metadata.accessLevel, objectId, chunkSize, uploadDate,
+                metadata.fileHash, metadata.blobId, metadata.versioned);
+    }
+
+    private void readMetadata(BsonReader reader, Metadata metadata) {
+        if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+            reader.skipValue();
+            return;
+        }
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+            switch (name) {
+                case "id" -> metadata.id = reader.readString();
+                case "fileName" -> metadata.fileName = reader.readString();
+                case "contentType" -> metadata.contentType = reader.readString();
+                case "tags" -> metadata.tags = readStrings(reader);
+                case "createTime" -> metadata.createTime = reader.readDateTime();
+                case "owner" -> metadata.owner = reader.readString();
+                case "accessLevel" -> metadata.accessLevel = AccessLevel.valueOf(reader.readString());
+                case "fileHash" -> metadata.fileHash = reader.readString();
+                case "fileSize" -> metadata.fileSize = readLong(reader);
+                case "blobId" -> metadata.blobId = reader.readObjectId();
+                case "versioned" -> metadata.versioned = reader.readBoolean();
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+    }
+
+    private List<String> readStrings(BsonReader reader) {
+        List<String> values = new ArrayList<>();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            values.add(reader.readString());
+        }
+        reader.readEndArray();
+        return values;
+    }
+
+    private Long readLong(BsonReader reader) {
+        return switch (reader.getCurrentBsonType()) {
+            case INT32 -> (long) reader.readInt32();
+            case INT64 -> reader.readInt64();
+            case DOUBLE -> (long) reader.readDouble();
+            default -> {
+                reader.skipValue();
+                yield 0L;
+            }
+        };
+    }
+
+    private <T> T skip(BsonReader reader) {
+        reader.skipValue();
+        return null;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, FileInfo value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        if (value.getObjectId() != null) {
+            writer.writeObjectId("_id", value.getObjectId());
+        }
+        if (value.getSize() != null) {
+            writer.writeInt64("length", value.getSize());
+        }
+        writer.writeInt32("chunkSize", value.getChunkSize());
+        if (value.getUploadDate() != null) {
+            writer.writeDateTime("uploadDate", value.getUploadDate().toEpochMilli());
+        }
+
+        writer.writeStartDocument("metadata");
+        writeString(writer, FileMetaData.ID.getKey(), value.getFileId());
+        writeString(writer, FileMetaData.FILE_NAME.getKey(), value.getFileName());
+        writeString(writer, FileMetaData.CONTENT_TYPE.getKey(), value.getContentType());
+        if (value.getTags() != null) {
+            writer.writeStartArray(FileMetaData.TAGS.getKey());
+            value.getTags().forEach(writer::writeString);
+            writer.writeEndArray();
+        }
+        if (value.getCreationTime() != null) {
+            writer.writeDateTime(FileMetaData.CREATE_TIME.getKey(),
+                    value.getCreationTime().atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+        }
+        writeString(writer, FileMetaData.OWNER.getKey(), value.getOwner());
+        if (value.getAccessLevel() != null) {
+            writer.writeString(FileMetaData.ACCESS_LEVEL.getKey(), value.getAccessLevel().name());
+        }
+        writeString(writer, FileMetaData.FILE_HASH.getKey(), value.getFileHash());
+        if (value.getBlobId() != null) {
+            writer.writeObjectId(FileMetaData.BLOB_ID.getKey(), value.getBlobId());
+        }
+        writer.writeBoolean(FileMetaData.VERSIONED.getKey(), value.isVersioned());
+        writer.writeEndDocument();
+
+        writer.writeEndDocument();
+    }
+
+    private void writeString(BsonWriter writer, String name, String value) {
+        if (value != null) {
+            writer.writeString(name, value);
+        }
+    }
+
+    @Override
+    public Class<FileInfo> getEncoderClass() {
+        return FileInfo.class;
+    }
+
+    // Field names in the metadata sub-document match FileMetaData keys
+    private static class Metadata {
+        private String id;
+        private String fileName;
+        private String contentType;
+        private List<String> tags;
+        private Long createTime;
+        private String owner;
+        private AccessLevel accessLevel;
+        private String fileHash;
+        private Long fileSize;
+        private ObjectId blobId;
+        private boolean versioned;
+    }
+}
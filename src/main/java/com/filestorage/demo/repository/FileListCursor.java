@@ -0,0 +1,54 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.dto.FileOrderBy;
+import com.filestorage.demo.exception.BadRequestException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of the last file of a listing page: its sort key value and its {@code _id}, which breaks ties.
+ * Clients get it as an opaque token and the next page resumes right after it with a range query.
+ */
+@Getter
+@AllArgsConstructor
+public class FileListCursor {
+    private static final JsonWriterSettings JSON_SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    private final FileOrderBy orderBy;
+    private final Sort.Direction order;
+    private final Object lastValue;
+    private final ObjectId lastId;
+
+    public String encode() {
+        Document token = new Document("o", orderBy != null ? orderBy.name() : null)
+                .append("d", order != null ? order.name() : null)
+                .append("v", lastValue)
+                .append("i", lastId);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.toJson(JSON_SETTINGS).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static FileListCursor decode(String encoded) {
+        try {
+            Document token = Document.parse(new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8));
+            String orderBy = token.getString("o");
+            String order = token.getString("d");
+            ObjectId lastId = token.getObjectId("i");
+            if (lastId == null) {
+                throw new BadRequestException("Invalid cursor");
+            }
+            return new FileListCursor(orderBy != null ? FileOrderBy.valueOf(orderBy) : null,
+                    order != null ? Sort.Direction.valueOf(order) : null, token.get("v"), lastId);
+        } catch (IllegalArgumentException | JsonParseException | ClassCastException ex) {
+            throw new BadRequestException("Invalid cursor");
+        }
+    }
+}
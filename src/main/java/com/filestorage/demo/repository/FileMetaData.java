@@ -9,10 +9,15 @@ public enum FileMetaData {
     ACCESS_LEVEL("accessLevel"),
     CREATE_TIME("createTime"),
     TAGS("tags"),
+    // The lowest of the tags, so listings sort by tag on a single indexed value instead of on the whole array
+    SORT_TAG("sortTag"),
     FILE_HASH("fileHash"),
     ID("id"),
     FILE_NAME("fileName"),
-    FILE_SIZE("fileSize");
+    FILE_SIZE("fileSize"),
+    BLOB_ID("blobId"),
+    // Set when replaced content is kept as a version
+    VERSIONED("versioned");
 
     private final String key;
 
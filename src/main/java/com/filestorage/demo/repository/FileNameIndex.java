@@ -0,0 +1,405 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * In-memory index of the file names in {@code fs.files} for substring search, per owner and over PUBLIC files.
+ * Each name is split in trigrams, and a query is matched against the files holding its rarest trigram, or against
+ * the files of the searched owner or the public files when they are fewer. Queries shorter than a trigram scan those.
+ * <p>
+ * Filled from {@code fs.files} once the application is up, kept up to date by {@link FileRepository} and rebuilt
+ * periodically, which both drops the space of removed names and picks up files written by other instances.
+ */
+@Component
+public class FileNameIndex {
+    private static Logger logger = LoggerFactory.getLogger(FileNameIndex.class);
+    private static final int BUILD_BATCH_SIZE = 10_000;
+    private static final int GRAM = 3;
+
+    private final MongoDatabase mongoDatabase;
+    private final boolean enabled;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Index current = new Index();
+    // While rebuilding, writes go to both indexes and the files they touch are no longer taken from the stream
+    private Index next;
+    private Set<String> touched;
+    private volatile boolean ready;
+
+    public FileNameIndex(MongoDatabase mongoDatabase,
+                         @Value("${filestorage.search.enabled:true}") boolean enabled,
+                         MeterRegistry meterRegistry) {
+        this.mongoDatabase = mongoDatabase;
+        this.enabled = enabled;
+        gauge(meterRegistry, "search.index.files", "Files held by the file name index", null, index -> index.liveDocs);
+        gauge(meterRegistry, "search.index.trigrams", "Distinct trigrams of the file name index", null, index -> index.postings.size());
+        gauge(meterRegistry, "search.index.memory", "Estimated heap held by the file name index", "bytes", index -> index.estimatedBytes);
+    }
+
+    private void gauge(MeterRegistry meterRegistry, String name, String description, String baseUnit, ToDoubleFunction<Index> value) {
+        Gauge.builder(name, this, fileNameIndex -> fileNameIndex.read(value))
+                .description(description)
+                .baseUnit(baseUnit)
+                .register(meterRegistry);
+    }
+
+    private double read(ToDoubleFunction<Index> value) {
+        lock.readLock().lock();
+        try {
+            return value.applyAsDouble(current);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildInBackground() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(this::buildQuietly, "file-name-index-build");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Scheduled(fixedDelayString = "${filestorage.search.rebuild-interval:PT6H}",
+            initialDelayString = "${filestorage.search.rebuild-interval:PT6H}")
+    public void buildQuietly() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            build();
+        } catch (RuntimeException ex) {
+            logger.error("Failed to build the file name index", ex);
+        }
+    }
+
+    /**
+     * Builds a new index from {@code fs.files} and swaps it in. The current index keeps serving searches meanwhile.
+     */
+    public synchronized void build() {
+        Index building = new Index();
+        lock.writeLock().lock();
+        try {
+            next = building;
+            touched = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        String fileName = FileMetaData.FILE_NAME.getKey();
+        String owner = FileMetaData.OWNER.getKey();
+        String accessLevel = FileMetaData.ACCESS_LEVEL.getKey();
+        List<Document> batch = new ArrayList<>(BUILD_BATCH_SIZE);
+        try {
+            for (Document file : mongoDatabase.getCollection("fs.files")
+                    .find(Filters.exists("metadata." + fileName))
+                    .projection(Projections.include("metadata." + FileMetaData.ID.getKey(), "metadata." + fileName,
+                            "metadata." + owner, "metadata." + accessLevel))
+                    .batchSize(BUILD_BATCH_SIZE)) {
+                batch.add(file.get("metadata", Document.class));
+                if (batch.size() == BUILD_BATCH_SIZE) {
+                    addBatch(building, batch);
+                }
+            }
+            addBatch(building, batch);
+        } catch (RuntimeException ex) {
+            lock.writeLock().lock();
+            try {
+                next = null;
+                touched = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw ex;
+        }
+
+        lock.writeLock().lock();
+        try {
+            current = building;
+            next = null;
+            touched = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        ready = true;
+        logger.info("File name index built from " + building.liveDocs + " files");
+    }
+
+    private void addBatch(Index building, List<Document> batch) {
+        lock.writeLock().lock();
+        try {
+            for (Document metadata : batch) {
+                String fileId = metadata.getString(FileMetaData.ID.getKey());
+                if (fileId != null && !touched.contains(fileId)) {
+                    String accessLevel = metadata.getString(FileMetaData.ACCESS_LEVEL.getKey());
+                    building.add(fileId, metadata.getString(FileMetaData.OWNER.getKey()),
+                            metadata.getString(FileMetaData.FILE_NAME.getKey()), AccessLevel.PUBLIC.name().equals(accessLevel));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        batch.clear();
+    }
+
+    /**
+     * Adds a file, or replaces the name of a file already indexed.
+     */
+    public void add(String fileId, String owner, String fileName, AccessLevel accessLevel) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            current.add(fileId, owner, fileName, accessLevel == AccessLevel.PUBLIC);
+            if (next != null) {
+                next.add(fileId, owner, fileName, accessLevel == AccessLevel.PUBLIC);
+                touched.add(fileId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String fileId) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            current.remove(fileId);
+            if (next != null) {
+                next.remove(fileId);
+                touched.add(fileId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of the best matching files whose name contains the query, ignoring case, at most limit of them.
+     * PUBLIC searches the public files of every owner, any other access level the files of the owner. Exact names
+     * rank first, then names starting with the query, then names where it starts a word, then shorter names.
+     */
+    public List<String> search(String owner, AccessLevel accessLevel, String query, int limit) {
+        lock.readLock().lock();
+        try {
+            return current.search(owner, accessLevel == AccessLevel.PUBLIC, query.toLowerCase(Locale.ROOT), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long trigram(String name, int start) {
+        return ((long) name.charAt(start) << 32) | ((long) name.charAt(start + 1) << 16) | name.charAt(start + 2);
+    }
+
+    /**
+     * Files are numbered in the order they are added. Removing a file only marks its number as dead, the space
+     * of removed and renamed files is reclaimed by the next rebuild.
+     */
+    private static final class Index {
+        // Of a String and of a Map entry with its boxed key, with compressed references
+        private static final int STRING_BYTES = 40;
+        private static final int ENTRY_BYTES = 56;
+
+        private String[] fileIds = new String[1024];
+        private String[] names = new String[1024];
+        private String[] owners = new String[1024];
+        private int docs;
+        private int liveDocs;
+        private final BitSet live = new BitSet();
+        private final BitSet publicDocs = new BitSet();
+        private final Map<String, Integer> docByFileId = new HashMap<>();
+        private final Map<String, IntList> docsByOwner = new HashMap<>();
+        private final IntList publicDocList = new IntList();
+        private final Map<Long, IntList> postings = new HashMap<>();
+        // Kept up to date by add and remove, so reading it does not walk the index. Counts the arrays and postings
+        // at their allocated size, dead files included.
+        private long estimatedBytes = 3L * fileIds.length * Integer.BYTES + bitSetBytes() + publicDocList.sizeInBytes();
+
+        void add(String fileId, String owner, String fileName, boolean isPublic) {
+            remove(fileId);
+            if (fileName == null || owner == null) {
+                return;
+            }
+            if (docs == fileIds.length) {
+                fileIds = Arrays.copyOf(fileIds, docs * 2);
+                names = Arrays.copyOf(names, docs * 2);
+                owners = Arrays.copyOf(owners, docs * 2);
+                estimatedBytes += 3L * docs * Integer.BYTES;
+            }
+            int doc = docs++;
+            long bitSetBytes = bitSetBytes();
+            String name = fileName.toLowerCase(Locale.ROOT);
+            fileIds[doc] = fileId;
+            names[doc] = name;
+            estimatedBytes += 2L * STRING_BYTES + fileId.length() + name.length();
+            IntList ownerDocs = docsByOwner.get(owner);
+            if (ownerDocs == null) {
+                ownerDocs = new IntList();
+                ownerDocs.owner = owner;
+                docsByOwner.put(owner, ownerDocs);
+                estimatedBytes += ENTRY_BYTES + STRING_BYTES + owner.length() + ownerDocs.sizeInBytes();
+            }
+            // A single copy of the owner for all their files
+            owners[doc] = ownerDocs.owner;
+            append(ownerDocs, doc);
+            if (isPublic) {
+                publicDocs.set(doc);
+                append(publicDocList, doc);
+            }
+            Set<Long> grams = new HashSet<>();
+            for (int i = 0; i + GRAM <= name.length(); i++) {
+                if (grams.add(trigram(name, i))) {
+                    IntList posting = postings.get(trigram(name, i));
+                    if (posting == null) {
+                        posting = new IntList();
+                        postings.put(trigram(name, i), posting);
+                        estimatedBytes += ENTRY_BYTES + posting.sizeInBytes();
+                    }
+                    append(posting, doc);
+                }
+            }
+            live.set(doc);
+            liveDocs++;
+            docByFileId.put(fileId, doc);
+            estimatedBytes += ENTRY_BYTES + bitSetBytes() - bitSetBytes;
+        }
+
+        void remove(String fileId) {
+            Integer doc = docByFileId.remove(fileId);
+            if (doc != null) {
+                live.clear(doc);
+                liveDocs--;
+                estimatedBytes -= ENTRY_BYTES;
+            }
+        }
+
+        private void append(IntList list, int doc) {
+            long before = list.sizeInBytes();
+            list.add(doc);
+            estimatedBytes += list.sizeInBytes() - before;
+        }
+
+        private long bitSetBytes() {
+            return (live.size() + publicDocs.size()) / Byte.SIZE;
+        }
+
+        List<String> search(String owner, boolean isPublic, String query, int limit) {
+            IntList scope = isPublic ? publicDocList : docsByOwner.get(owner);
+            if (scope == null || query.isEmpty() || limit <= 0) {
+                return List.of();
+            }
+            IntList candidates = scope;
+            for (int i = 0; i + GRAM <= query.length(); i++) {
+                IntList posting = postings.get(trigram(query, i));
+                if (posting == null) {
+                    return List.of();
+                }
+                if (posting.size < candidates.size) {
+                    candidates = posting;
+                }
+            }
+            IntPredicate inScope = candidates == scope ? doc -> true
+                    : isPublic ? publicDocs::get : doc -> owner.equals(owners[doc]);
+
+            // Worst match on top, so it is the one dropped once the limit is reached
+            Comparator<Match> ranking = Comparator.comparingInt(Match::rank)
+                    .thenComparingInt(match -> names[match.doc()].length())
+                    .thenComparing(match -> names[match.doc()])
+                    .thenComparing(match -> fileIds[match.doc()]);
+            PriorityQueue<Match> best = new PriorityQueue<>(ranking.reversed());
+            for (int i = 0; i < candidates.size; i++) {
+                int doc = candidates.values[i];
+                if (!live.get(doc) || !inScope.test(doc)) {
+                    continue;
+                }
+                int rank = rank(names[doc], query);
+                if (rank < 0) {
+                    continue;
+                }
+                Match match = new Match(doc, rank);
+                if (best.size() < limit) {
+                    best.add(match);
+                } else if (ranking.compare(match, best.peek()) < 0) {
+                    best.poll();
+                    best.add(match);
+                }
+            }
+
+            List<Match> matches = new ArrayList<>(best);
+            matches.sort(ranking);
+            List<String> result = new ArrayList<>(matches.size());
+            matches.forEach(match -> result.add(fileIds[match.doc()]));
+            return result;
+        }
+
+        private int rank(String name, String query) {
+            int position = name.indexOf(query);
+            if (position < 0) {
+                return -1;
+            }
+            if (position == 0) {
+                return name.length() == query.length() ? 0 : 1;
+            }
+            return Character.isLetterOrDigit(name.charAt(position - 1)) ? 3 : 2;
+        }
+    }
+
+    private record Match(int doc, int rank) {
+    }
+
+    private static final class IntList {
+        private int[] values = new int[2];
+        private int size;
+        // Set on the lists of an owner's files
+        private String owner;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long sizeInBytes() {
+            return 32L + (long) values.length * Integer.BYTES;
+        }
+    }
+}
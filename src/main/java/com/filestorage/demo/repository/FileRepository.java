@@ -2,34 +2,46 @@ package com.filestorage.demo.repository;
 
 import com.filestorage.demo.dto.*;
 import com.filestorage.demo.exception.BadRequestException;
-import com.filestorage.demo.exception.InternalServerError;
+import com.filestorage.demo.exception.DuplicateEntryException;
 import com.filestorage.demo.exception.NotFoundException;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
-import com.mongodb.client.gridfs.GridFSFindIterable;
-import com.mongodb.client.gridfs.model.GridFSFile;
-import com.mongodb.client.gridfs.model.GridFSUploadOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Updates;
 import io.micrometer.common.util.StringUtils;
-import lombok.AllArgsConstructor;
 import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Repository;
-import org.springframework.web.multipart.MultipartFile;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -37,49 +49,166 @@ import static com.mongodb.client.model.Filters.eq;
 import static com.mongodb.client.model.Updates.set;
 
 @Repository
-@AllArgsConstructor
 public class FileRepository {
 
     private static Logger logger = LoggerFactory.getLogger(FileRepository.class);
 
     private GridFSBucket gridFSBucket;
     private MongoDatabase mongoDatabase;
+    private BlobRepository blobRepository;
+    private FileVersionRepository fileVersionRepository;
+    private OwnedHashFilter ownedHashFilter;
+    private OwnerStatsRepository ownerStatsRepository;
+    private FileNameIndex fileNameIndex;
+    // Lookups and listings read only the fields FileInfo needs and decode them without intermediate documents
+    private MongoCollection<FileInfo> fileInfos;
     private static final String META = "metadata.";
-
-    public boolean isFileNameExists(String fileName, String userEmail) {
-        Document filter = new Document();
-        filter.append(META + FileMetaData.FILE_NAME.getKey(), fileName);
-        filter.append(META + FileMetaData.OWNER.getKey(), userEmail);
-
-        GridFSFindIterable files = gridFSBucket.find(filter);
-        return files.iterator().hasNext();
+    static final int DOWNLOAD_BATCH_SIZE = 4;
+    // File records are a few hundred bytes, so a batch is well under the 16 MB reply limit
+    static final int EXPORT_BATCH_SIZE = 1000;
+    // Unique per owner, so inserts and updates are the duplicate checks themselves
+    public static final String OWNER_FILE_NAME_INDEX = "owner_fileName_unique";
+    public static final String OWNER_FILE_HASH_INDEX = "owner_fileHash_unique";
+    // Lower bounds of the size buckets counted by countFacets, the last one holds every larger file
+    private static final List<Long> SIZE_BUCKET_BOUNDS = List.of(0L, 1L << 20, 10L << 20, 100L << 20, 1L << 30);
+    private static final List<String> SIZE_BUCKET_LABELS = List.of("<1MB", "1MB-10MB", "10MB-100MB", "100MB-1GB", ">=1GB");
+
+    public FileRepository(GridFSBucket gridFSBucket, MongoDatabase mongoDatabase, BlobRepository blobRepository,
+                          FileVersionRepository fileVersionRepository, OwnedHashFilter ownedHashFilter,
+                          OwnerStatsRepository ownerStatsRepository, FileNameIndex fileNameIndex) {
+        this.gridFSBucket = gridFSBucket;
+        this.mongoDatabase = mongoDatabase;
+        this.blobRepository = blobRepository;
+        this.fileVersionRepository = fileVersionRepository;
+        this.ownedHashFilter = ownedHashFilter;
+        this.ownerStatsRepository = ownerStatsRepository;
+        this.fileNameIndex = fileNameIndex;
+        this.fileInfos = mongoDatabase.getCollection("fs.files", FileInfo.class)
+                .withCodecRegistry(CodecRegistries.fromRegistries(
+                        CodecRegistries.fromCodecs(new FileInfoCodec()), mongoDatabase.getCodecRegistry()));
     }
 
     public boolean isFileHashExists(String fileHash, String userEmail) {
+        if (!ownedHashFilter.mightContain(userEmail, fileHash)) {
+            return false;
+        }
         Document filter = new Document();
         filter.append(META + FileMetaData.FILE_HASH.getKey(), fileHash);
         filter.append(META + FileMetaData.OWNER.getKey(), userEmail);
 
-        GridFSFindIterable files = gridFSBucket.find(filter);
-        return files.iterator().hasNext();
+        return exists(filter);
+    }
+
+    private boolean exists(Document filter) {
+        return mongoDatabase.getCollection("fs.files")
+                .find(filter)
+                .projection(Projections.include("_id"))
+                .first() != null;
+    }
+
+    /**
+     * Returns the hashes among the given ones of content the user already stores.
+     */
+    public Set<String> findOwnedHashes(Collection<String> fileHashes, String userEmail) {
+        Set<String> owned = new HashSet<>();
+        List<String> candidates = fileHashes.stream()
+                .filter(fileHash -> ownedHashFilter.mightContain(userEmail, fileHash))
+                .toList();
+        if (candidates.isEmpty()) {
+            return owned;
+        }
+        mongoDatabase.getCollection("fs.files")
+                .find(Filters.and(
+                        Filters.in(META + FileMetaData.FILE_HASH.getKey(), candidates),
+                        Filters.eq(META + FileMetaData.OWNER.getKey(), userEmail)))
+                .projection(Projections.include(META + FileMetaData.FILE_HASH.getKey()))
+                .forEach(file -> owned.add(file.get("metadata", Document.class).getString(FileMetaData.FILE_HASH.getKey())));
+        return owned;
+    }
+
+    public Set<String> findExistingFileNames(Collection<String> fileNames, String userEmail) {
+        Set<String> existing = new HashSet<>();
+        mongoDatabase.getCollection("fs.files")
+                .find(Filters.and(
+                        Filters.in(META + FileMetaData.FILE_NAME.getKey(), fileNames),
+                        Filters.eq(META + FileMetaData.OWNER.getKey(), userEmail)))
+                .projection(Projections.include(META + FileMetaData.FILE_NAME.getKey()))
+                .forEach(file -> existing.add(file.get("metadata", Document.class).getString(FileMetaData.FILE_NAME.getKey())));
+        return existing;
     }
 
-    public void uploadFile(FileInfo fileInfo, MultipartFile file, String fileHash, String ownerEmail) throws IOException {
-        InputStream inputStream = file.getInputStream();
+    /**
+     * Returns the content type of a public file for each of the given hashes that has one. Public content can be
+     * downloaded by anyone, so it is the only content a user may link to without proving they hold it.
+     */
+    public Map<String, String> findPublicContentTypes(Collection<String> fileHashes) {
+        Map<String, String> contentTypes = new HashMap<>();
+        mongoDatabase.getCollection("fs.files")
+                .find(Filters.and(
+                        Filters.in(META + FileMetaData.FILE_HASH.getKey(), fileHashes),
+                        Filters.eq(META + FileMetaData.ACCESS_LEVEL.getKey(), AccessLevel.PUBLIC.name()),
+                        Filters.exists(META + FileMetaData.BLOB_ID.getKey())))
+                .projection(Projections.include(META + FileMetaData.FILE_HASH.getKey(), META + FileMetaData.CONTENT_TYPE.getKey()))
+                .forEach(file -> {
+                    Document metadata = file.get("metadata", Document.class);
+                    contentTypes.putIfAbsent(metadata.getString(FileMetaData.FILE_HASH.getKey()),
+                            metadata.getString(FileMetaData.CONTENT_TYPE.getKey()));
+                });
+        return contentTypes;
+    }
 
+    /**
+     * Stores a file record pointing to a blob the caller holds a reference to. The record is a GridFS files
+     * document without chunks of its own, so lookups and listings work the same way for every file.
+     * Throws {@link DuplicateEntryException} if the owner already has a file with the same name or content.
+     */
+    public void insertFile(FileInfo fileInfo, StoredContent content, String ownerEmail) {
         Document metadata = new Document()
                 .append(FileMetaData.CONTENT_TYPE.getKey(), fileInfo.getContentType())
                 .append(FileMetaData.OWNER.getKey(), ownerEmail)
                 .append(FileMetaData.TAGS.getKey(), fileInfo.getTags())
+                .append(FileMetaData.SORT_TAG.getKey(), sortTag(fileInfo.getTags()))
                 .append(FileMetaData.ACCESS_LEVEL.getKey(), fileInfo.getAccessLevel())
                 .append(FileMetaData.CREATE_TIME.getKey(), fileInfo.getCreationTime())
-                .append(FileMetaData.FILE_HASH.getKey(), fileHash)
                 .append(FileMetaData.ID.getKey(), fileInfo.getFileId())
                 .append(FileMetaData.FILE_NAME.getKey(), fileInfo.getFileName())
-                .append(FileMetaData.FILE_SIZE.getKey(), file.getSize());
-        GridFSUploadOptions options = new GridFSUploadOptions().metadata(metadata);
+                .append(FileMetaData.FILE_HASH.getKey(), content.getFileHash())
+                .append(FileMetaData.FILE_SIZE.getKey(), content.getSize())
+                .append(FileMetaData.BLOB_ID.getKey(), content.getObjectId());
+
+        Document record = new Document("_id", new ObjectId())
+                .append("filename", fileInfo.getFileName())
+                .append("length", content.getSize())
+                .append("chunkSize", blobRepository.getChunkSize())
+                .append("uploadDate", new Date())
+                .append("metadata", metadata);
+        // Announced and added first so neither the counters nor the filter miss a stored file, and undone again when the
+        // insert certainly failed
+        ownerStatsRepository.beginChange(ownerEmail);
+        ownedHashFilter.add(ownerEmail, content.getFileHash());
+        try {
+            mongoDatabase.getCollection("fs.files").insertOne(record);
+        } catch (MongoWriteException ex) {
+            ownerStatsRepository.cancelChange(ownerEmail);
+            ownedHashFilter.remove(ownerEmail, content.getFileHash());
+            if (isDuplicateOf(ex, OWNER_FILE_NAME_INDEX)) {
+                // Only the first violated index is reported, the content is checked to report both conflicts at once
+                String fileHashDuplication = isFileHashExists(content.getFileHash(), ownerEmail) ? "The same file is already uploaded. " : " ";
+                throw new DuplicateEntryException("File with that name already exists. " + fileHashDuplication, ex);
+            }
+            if (isDuplicateOf(ex, OWNER_FILE_HASH_INDEX)) {
+                throw new DuplicateEntryException(" The same file is already uploaded. ", ex);
+            }
+            throw ex;
+        }
+        ownerStatsRepository.recordAdded(ownerEmail, fileInfo.getTags(), fileInfo.getContentType(), content.getSize());
+        fileNameIndex.add(fileInfo.getFileId(), ownerEmail, fileInfo.getFileName(), fileInfo.getAccessLevel());
+    }
 
-        gridFSBucket.uploadFromStream(fileInfo.getFileName(), inputStream, options);
+    private boolean isDuplicateOf(MongoWriteException ex, String indexName) {
+        return ex.getError().getCategory() == ErrorCategory.DUPLICATE_KEY
+                && ex.getError().getMessage() != null
+                && ex.getError().getMessage().contains("index: " + indexName + " ");
     }
 
     public FileInfo findByIdAndOwner(String fileId, String ownerEmail) {
@@ -87,85 +216,190 @@ public class FileRepository {
         filter.append(META + FileMetaData.ID.getKey(), fileId);
         filter.append(META + FileMetaData.OWNER.getKey(), ownerEmail);
 
-        GridFSFindIterable files = gridFSBucket.find(filter);
-        return files.iterator().hasNext() ? FileInfo.fromFile(files.first()) : null;
+        return fileInfos.find(filter).projection(FileInfoCodec.PROJECTION).first();
     }
 
     public FileInfo findById(String fileId) {
         Document filter = new Document();
         filter.append(META + FileMetaData.ID.getKey(), fileId);
 
-        GridFSFindIterable files = gridFSBucket.find(filter);
-        return files.iterator().hasNext() ? FileInfo.fromFile(files.first()) : null;
+        return fileInfos.find(filter).projection(FileInfoCodec.PROJECTION).first();
     }
 
-    public ByteArrayOutputStream getOutputStreamById(ObjectId fileId) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        gridFSBucket.downloadToStream(fileId, outputStream);
-        return outputStream;
+    public List<FileInfo> findByIds(Collection<String> fileIds) {
+        return fileInfos.find(Filters.in(META + FileMetaData.ID.getKey(), fileIds))
+                .projection(FileInfoCodec.PROJECTION)
+                .into(new ArrayList<>());
     }
 
-    public void updateFile(GridFSFile existingFile, String newFileName, String newFileHash, MultipartFile newFile) throws IOException {
-        Document metadata = existingFile.getMetadata();
-        String currentFileName = metadata.getString(FileMetaData.FILE_NAME.getKey());
-
-        boolean isNameChanged = StringUtils.isNotBlank(newFileName) && !newFileName.equals(currentFileName);
-        boolean isContentChanged = newFile != null;
-
-        if (isNameChanged) {
-            metadata.put(FileMetaData.FILE_NAME.getKey(), newFileName);
+    public InputStream openDownloadStream(FileInfo file) {
+        ObjectId blobId = file.getBlobId();
+        if (blobId != null) {
+            return blobRepository.openDownloadStream(blobId);
         }
+        // Keep only a few chunks per cursor batch so a download never holds more than that in memory
+        return gridFSBucket.openDownloadStream(file.getObjectId()).batchSize(DOWNLOAD_BATCH_SIZE);
+    }
 
-        if (isContentChanged) {
-            // Upload new content with same UUID
-            metadata.put(FileMetaData.FILE_HASH.getKey(), newFileHash);
-            metadata.put(FileMetaData.FILE_SIZE.getKey(), newFile.getSize());
+    /**
+     * Returns the length of the stored content, for records that do not hold it: the length of the blob, or the bytes
+     * of the chunks of files stored before blobs.
+     */
+    public long findContentLength(FileInfo file) {
+        ObjectId blobId = file.getBlobId();
+        if (blobId != null) {
+            Long length = blobRepository.findLength(blobId);
+            if (length == null) {
+                throw new NotFoundException("File not found");
+            }
+            return length;
+        }
+        Document total = mongoDatabase.getCollection("fs.chunks").aggregate(List.of(
+                new Document("$match", new Document("files_id", file.getObjectId())),
+                new Document("$group", new Document("_id", null)
+                        .append("length", new Document("$sum", new Document("$binarySize", "$data")))))).first();
+        return total == null ? 0 : total.get("length", Number.class).longValue();
+    }
 
-            updateFileContent(existingFile.getObjectId(), newFile, metadata.getString(FileMetaData.FILE_NAME.getKey()), metadata);
-        } else {
-            updateMetadata(existingFile.getObjectId(), metadata);
+    public InputStream openRangeStream(FileInfo file, long start, long end) {
+        ObjectId blobId = file.getBlobId();
+        if (blobId != null) {
+            return blobRepository.openRangeStream(blobId, start, end);
         }
+        return new GridFSRangeInputStream(mongoDatabase.getCollection("fs.chunks"), file.getObjectId(),
+                file.getChunkSize(), start, end, DOWNLOAD_BATCH_SIZE);
     }
 
-    private void updateFileContent(ObjectId objectId, MultipartFile file, String fileName, Document metadata) throws IOException {
-        GridFSUploadOptions options = new GridFSUploadOptions().metadata(metadata);
-        InputStream inputStream = file.getInputStream();
-        ObjectId newFileObjectId = gridFSBucket.uploadFromStream(fileName, inputStream, options);
+    /**
+     * Returns the chunk digests of the file content, or null if the content is gone. Files stored before blobs
+     * have their content read to compute them on each call.
+     */
+    public ChunkManifest findManifest(FileInfo file) throws IOException, NoSuchAlgorithmException {
+        ObjectId blobId = file.getBlobId();
+        if (blobId != null) {
+            return blobRepository.findManifest(blobId);
+        }
+        ChunkDigests chunkDigests = new ChunkDigests(file.getChunkSize(), Integer.MAX_VALUE);
+        try (InputStream content = openDownloadStream(file)) {
+            return new ChunkManifest(file.getChunkSize(), file.getSize(), chunkDigests.digest(content));
+        }
+    }
 
-        // Delete the old file content
-        try {
-            gridFSBucket.delete(objectId);
-        } catch (Exception ex) {
-            logger.error("Failed to delete old file");
-            gridFSBucket.delete(newFileObjectId);
-            throw new InternalServerError("Failed to delete old file");
+    private void releaseContent(FileInfo file) {
+        ObjectId blobId = file.getBlobId();
+        if (blobId != null) {
+            blobRepository.release(blobId);
+        } else {
+            mongoDatabase.getCollection("fs.chunks").deleteMany(Filters.eq("files_id", file.getObjectId()));
         }
     }
 
-    private void updateMetadata(ObjectId objectId, Document metadata) throws IOException {
-        MongoCollection<Document> filesCollection = mongoDatabase.getCollection("fs.files");
+    /**
+     * Renames a file and/or points it to new content, then drops the reference to the previous content.
+     * The new content must already be committed, with a reference held for this record. The given record may come
+     * from a cache, so the update only applies if the file still points to the same content.
+     * Throws {@link DuplicateEntryException} if the owner already has another file with the new name or content.
+     */
+    public void updateFile(FileInfo existingFile, String newFileName, StoredContent newContent) throws IOException {
+        String currentFileName = existingFile.getFileName();
+
+        boolean isNameChanged = StringUtils.isNotBlank(newFileName) && !newFileName.equals(currentFileName);
+        boolean isContentChanged = newContent != null;
 
-        long updatedCount = filesCollection.updateOne(
-                Filters.eq("_id", objectId),
-                Updates.set("metadata", metadata)
-        ).getModifiedCount();
+        List<Bson> updates = new ArrayList<>();
+        if (isNameChanged) {
+            updates.add(Updates.set("filename", newFileName));
+            updates.add(Updates.set(META + FileMetaData.FILE_NAME.getKey(), newFileName));
+        }
+        if (isContentChanged) {
+            updates.add(Updates.set("length", newContent.getSize()));
+            updates.add(Updates.set("chunkSize", blobRepository.getChunkSize()));
+            updates.add(Updates.set("uploadDate", new Date()));
+            updates.add(Updates.set(META + FileMetaData.FILE_HASH.getKey(), newContent.getFileHash()));
+            updates.add(Updates.set(META + FileMetaData.FILE_SIZE.getKey(), newContent.getSize()));
+            updates.add(Updates.set(META + FileMetaData.BLOB_ID.getKey(), newContent.getObjectId()));
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
 
+        if (isContentChanged) {
+            ownerStatsRepository.beginChange(existingFile.getOwner());
+            ownedHashFilter.add(existingFile.getOwner(), newContent.getFileHash());
+        }
+        long updatedCount;
+        try {
+            updatedCount = mongoDatabase.getCollection("fs.files")
+                    .updateOne(Filters.and(
+                            Filters.eq("_id", existingFile.getObjectId()),
+                            Filters.eq(META + FileMetaData.BLOB_ID.getKey(), existingFile.getBlobId())), Updates.combine(updates))
+                    .getMatchedCount();
+        } catch (MongoWriteException ex) {
+            if (isContentChanged) {
+                ownerStatsRepository.cancelChange(existingFile.getOwner());
+                ownedHashFilter.remove(existingFile.getOwner(), newContent.getFileHash());
+            }
+            if (isDuplicateOf(ex, OWNER_FILE_NAME_INDEX)) {
+                throw new DuplicateEntryException("File with the same name already exists.", ex);
+            }
+            if (isDuplicateOf(ex, OWNER_FILE_HASH_INDEX)) {
+                throw new DuplicateEntryException("File with the same content already exists.", ex);
+            }
+            throw ex;
+        }
         if (updatedCount < 1) {
+            if (isContentChanged) {
+                ownerStatsRepository.cancelChange(existingFile.getOwner());
+                ownedHashFilter.remove(existingFile.getOwner(), newContent.getFileHash());
+            }
             throw new IOException("Metadata update failed");
         }
+        if (isNameChanged) {
+            fileNameIndex.add(existingFile.getFileId(), existingFile.getOwner(), newFileName, existingFile.getAccessLevel());
+        }
+
+        if (isContentChanged) {
+            ownerStatsRepository.recordResized(existingFile.getOwner(), existingFile.getTags(), existingFile.getContentType(),
+                    newContent.getSize() - existingFile.getSize());
+            ownedHashFilter.remove(existingFile.getOwner(), existingFile.getFileHash());
+            if (existingFile.isVersioned() && existingFile.getBlobId() != null && keepVersion(existingFile)) {
+                return;
+            }
+            try {
+                releaseContent(existingFile);
+            } catch (RuntimeException ex) {
+                // The file already points to its new content, the old one is only leaked
+                logger.error("Failed to release previous content of file " + existingFile.getObjectId(), ex);
+            }
+        }
     }
 
-    public List<FileInfo> findFileInfoListPagenated(String userMail, AccessLevel accessLevel, Set<String> tags, FileOrderBy orderBy,
-                                                    Sort.Direction order, int page, int size) {
-        Document filter = new Document();
-        if (accessLevel == AccessLevel.PUBLIC) {
-            filter.append(META + FileMetaData.ACCESS_LEVEL.getKey(), AccessLevel.PUBLIC);
-        } else {
-            filter.append(META + FileMetaData.OWNER.getKey(), userMail);
+    // Hands the reference to the previous content over to a version, returns false if it is still to be released
+    private boolean keepVersion(FileInfo existingFile) {
+        try {
+            fileVersionRepository.insert(existingFile, Instant.now());
+            return true;
+        } catch (RuntimeException ex) {
+            logger.error("Failed to keep the previous content of file " + existingFile.getFileId() + " as a version", ex);
+            return false;
         }
-        if (tags != null && !tags.isEmpty()) {
-            filter.append(META + FileMetaData.TAGS.getKey(), new Document("$in", tags.stream().map(String::toLowerCase).collect(Collectors.toSet()))); // Matches any of the tags
+    }
+
+    /**
+     * Turns keeping replaced content as versions on or off. Versions already kept stay until pruned.
+     */
+    public void setVersioned(FileInfo file, boolean versioned) {
+        long matched = mongoDatabase.getCollection("fs.files")
+                .updateOne(Filters.eq("_id", file.getObjectId()), Updates.set(META + FileMetaData.VERSIONED.getKey(), versioned))
+                .getMatchedCount();
+        if (matched < 1) {
+            throw new NotFoundException("File not found");
         }
+    }
+
+    public List<FileInfo> findFileInfoListPagenated(String userMail, AccessLevel accessLevel, Set<String> tags, TagMatch tagMatch,
+                                                    FileOrderBy orderBy, Sort.Direction order, int page, int size) {
+        Document filter = listFilter(userMail, accessLevel, tags, tagMatch);
 
         Document sorting = new Document();
         if (orderBy != null) {
@@ -173,34 +407,214 @@ public class FileRepository {
                 throw new BadRequestException("Order must be provided together with orderBy");
             }
 
-            // FIXME: Support ordering by tags
             sorting.append(META + orderBy.getSearchKey(), order == Sort.Direction.ASC ? 1 : -1);
         }
 
-        List<FileInfo> filesList = new ArrayList<>();
-        gridFSBucket.find(filter)
+        return fileInfos.find(filter)
+                .projection(FileInfoCodec.PROJECTION)
                 .sort(sorting)
                 .skip(page * size)
                 .limit(size)
-                .forEach(file -> {
-                    FileInfo fileInfo = FileInfo.fromFile(file);
-                    filesList.add(fileInfo);
-                });
+                .into(new ArrayList<>());
+    }
+
+    /**
+     * Opens a cursor over every file a listing with the same filters returns, in the listing order or else in _id
+     * order, which the listing indexes serve without sorting in memory. Files are fetched in batches of
+     * {@link #EXPORT_BATCH_SIZE}, so the caller holds one batch at a time and must close the cursor.
+     */
+    public MongoCursor<FileInfo> openFileInfoCursor(String userMail, AccessLevel accessLevel, Set<String> tags, TagMatch tagMatch,
+                                                    FileOrderBy orderBy, Sort.Direction order) {
+        if (orderBy != null && order == null) {
+            throw new BadRequestException("Order must be provided together with orderBy");
+        }
+        int direction = order == Sort.Direction.DESC ? -1 : 1;
+        Document sorting = new Document();
+        if (orderBy != null) {
+            sorting.append(META + orderBy.getSearchKey(), direction);
+        }
+        sorting.append("_id", direction);
+
+        return fileInfos.find(listFilter(userMail, accessLevel, tags, tagMatch))
+                .projection(FileInfoCodec.PROJECTION)
+                .sort(sorting)
+                .batchSize(EXPORT_BATCH_SIZE)
+                .cursor();
+    }
+
+    /**
+     * Returns the files following the cursor position, or the first ones without cursor. Unlike offsets, the range
+     * condition on (sort key, _id) is resolved by the listing indexes, so every page costs the same.
+     */
+    public List<FileInfo> findFileInfoListAfter(String userMail, AccessLevel accessLevel, Set<String> tags, TagMatch tagMatch,
+                                                FileOrderBy orderBy, Sort.Direction order, FileListCursor after, int size) {
+        if (orderBy != null && order == null) {
+            throw new BadRequestException("Order must be provided together with orderBy");
+        }
+
+        // Without orderBy the files come in _id order, that is roughly upload order
+        String sortKey = orderBy != null ? META + orderBy.getSearchKey() : null;
+        int direction = order == Sort.Direction.DESC ? -1 : 1;
+        Document sorting = new Document();
+        if (sortKey != null) {
+            sorting.append(sortKey, direction);
+        }
+        sorting.append("_id", direction);
+
+        Document filter = listFilter(userMail, accessLevel, tags, tagMatch);
+        if (after != null) {
+            filter = new Document("$and", List.of(filter, afterCursor(sortKey, direction, after)));
+        }
+
+        return fileInfos.find(filter)
+                .projection(FileInfoCodec.PROJECTION)
+                .sort(sorting)
+                .limit(size)
+                .into(new ArrayList<>());
+    }
+
+    public FileListCursor cursorAfter(FileInfo fileInfo, FileOrderBy orderBy, Sort.Direction order) {
+        return new FileListCursor(orderBy, order, sortValue(fileInfo, orderBy), fileInfo.getObjectId());
+    }
+
+    // The value of the sort key as stored, so the next page compares against exactly what the index holds
+    private Object sortValue(FileInfo fileInfo, FileOrderBy orderBy) {
+        if (orderBy == null) {
+            return null;
+        }
+        return switch (orderBy) {
+            case FILE_NAME -> fileInfo.getFileName();
+            case UPLOAD_DATE -> fileInfo.getCreationTime() == null ? null
+                    : Date.from(fileInfo.getCreationTime().atStartOfDay(ZoneOffset.UTC).toInstant());
+            case CONTENT_TYPE -> fileInfo.getContentType();
+            case FILE_SIZE -> fileInfo.getSize();
+            case TAG -> sortTag(fileInfo.getTags());
+        };
+    }
+
+    // Stored with the tags as they are, already lower case, so it is also what the sort key backfill computes
+    private static String sortTag(Collection<String> tags) {
+        if (tags == null) {
+            return null;
+        }
+        return tags.stream().filter(Objects::nonNull).min(Comparator.naturalOrder()).orElse(null);
+    }
+
+    // Missing and null sort keys sort first, so they come first ascending and last descending
+    private Document afterCursor(String sortKey, int direction, FileListCursor after) {
+        String idOperator = direction == 1 ? "$gt" : "$lt";
+        Document nextId = new Document("_id", new Document(idOperator, after.getLastId()));
+        if (sortKey == null) {
+            return nextId;
+        }
+
+        Object lastValue = after.getLastValue();
+        Document sameKey = new Document(sortKey, lastValue).append("_id", new Document(idOperator, after.getLastId()));
+        if (lastValue == null) {
+            return direction == 1
+                    ? new Document("$or", List.of(sameKey, new Document(sortKey, new Document("$ne", null))))
+                    : sameKey;
+        }
+        List<Document> conditions = new ArrayList<>();
+        conditions.add(new Document(sortKey, new Document(direction == 1 ? "$gt" : "$lt", lastValue)));
+        conditions.add(sameKey);
+        if (direction == -1) {
+            conditions.add(new Document(sortKey, null));
+        }
+        return new Document("$or", conditions);
+    }
+
+    /**
+     * Counts the files a listing with the same owner and access level returns, per tag, content type and size bucket,
+     * in one aggregation whose match is resolved by the listing indexes.
+     */
+    public FileFacetsDTO countFacets(String userMail, AccessLevel accessLevel) {
+        Document tags = new Document("$setUnion", List.of(new Document("$ifNull", List.of("$" + META + FileMetaData.TAGS.getKey(), List.of()))));
+        Document byCountDesc = new Document("$sort", new Document("count", -1).append("_id", 1));
+        List<Document> pipeline = List.of(
+                new Document("$match", listFilter(userMail, accessLevel, null, null)),
+                new Document("$project", new Document("length", 1)
+                        .append("tags", tags)
+                        .append("contentType", "$" + META + FileMetaData.CONTENT_TYPE.getKey())),
+                new Document("$facet", new Document()
+                        .append("total", List.of(new Document("$count", "count")))
+                        .append("tags", List.of(
+                                new Document("$unwind", "$tags"),
+                                new Document("$group", new Document("_id", "$tags").append("count", new Document("$sum", 1))),
+                                byCountDesc))
+                        .append("contentTypes", List.of(
+                                new Document("$group", new Document("_id", "$contentType").append("count", new Document("$sum", 1))),
+                                byCountDesc))
+                        .append("sizes", List.of(
+                                new Document("$bucket", new Document("groupBy", "$length")
+                                        .append("boundaries", SIZE_BUCKET_BOUNDS)
+                                        .append("default", "larger"))))));
+
+        Document result = mongoDatabase.getCollection("fs.files").aggregate(pipeline).first();
+        Map<String, Long> tagCounts = new LinkedHashMap<>();
+        Map<String, Long> contentTypeCounts = new LinkedHashMap<>();
+        Map<String, Long> sizeCounts = new LinkedHashMap<>();
+        SIZE_BUCKET_LABELS.forEach(label -> sizeCounts.put(label, 0L));
+        if (result == null || result.getList("total", Document.class).isEmpty()) {
+            return new FileFacetsDTO(0, tagCounts, contentTypeCounts, sizeCounts);
+        }
 
-        return filesList;
+        for (Document tag : result.getList("tags", Document.class)) {
+            tagCounts.put(tag.getString("_id"), count(tag));
+        }
+        for (Document contentType : result.getList("contentTypes", Document.class)) {
+            // Files without a content type are served as a generic binary
+            String key = contentType.getString("_id") != null ? contentType.getString("_id") : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+            contentTypeCounts.merge(key, count(contentType), Long::sum);
+        }
+        for (Document size : result.getList("sizes", Document.class)) {
+            Object lowerBound = size.get("_id");
+            int bucket = lowerBound instanceof Number number
+                    ? SIZE_BUCKET_BOUNDS.indexOf(number.longValue())
+                    : SIZE_BUCKET_BOUNDS.size() - 1;
+            sizeCounts.put(SIZE_BUCKET_LABELS.get(bucket), count(size));
+        }
+        return new FileFacetsDTO(count(result.getList("total", Document.class).get(0)), tagCounts, contentTypeCounts, sizeCounts);
     }
 
-    public void deleteFile(String fileId, String userEmail) {
+    private long count(Document group) {
+        return group.get("count", Number.class).longValue();
+    }
+
+    private Document listFilter(String userMail, AccessLevel accessLevel, Set<String> tags, TagMatch tagMatch) {
+        Document filter = new Document();
+        if (accessLevel == AccessLevel.PUBLIC) {
+            filter.append(META + FileMetaData.ACCESS_LEVEL.getKey(), AccessLevel.PUBLIC);
+        } else {
+            filter.append(META + FileMetaData.OWNER.getKey(), userMail);
+        }
+        if (tags != null && !tags.isEmpty()) {
+            // With either operator the tags index bounds the scan to the files with one of the tags
+            String operator = tagMatch == TagMatch.ALL ? "$all" : "$in";
+            filter.append(META + FileMetaData.TAGS.getKey(), new Document(operator, tags.stream().map(String::toLowerCase).collect(Collectors.toSet())));
+        }
+        return filter;
+    }
+
+    /**
+     * Removes the file of the owner and drops its reference to the content, returns the removed record.
+     */
+    public FileInfo deleteFile(String fileId, String userEmail) {
         Document filter = new Document();
         filter.append(META + FileMetaData.OWNER.getKey(), userEmail);
         filter.append(META + FileMetaData.ID.getKey(), fileId);
 
-        GridFSFile file = gridFSBucket.find(filter).first();
+        // TODO: May be soft delete?
+        ownerStatsRepository.beginChange(userEmail);
+        FileInfo file = fileInfos.findOneAndDelete(filter, new FindOneAndDeleteOptions().projection(FileInfoCodec.PROJECTION));
         if (file == null) {
+            ownerStatsRepository.cancelChange(userEmail);
             throw new NotFoundException("File not found");
         }
-
-        // TODO: May be soft delete?
-        gridFSBucket.delete(file.getObjectId());
+        ownedHashFilter.remove(file.getOwner(), file.getFileHash());
+        ownerStatsRepository.recordRemoved(file.getOwner(), file.getTags(), file.getContentType(), file.getSize());
+        fileNameIndex.remove(file.getFileId());
+        releaseContent(file);
+        return file;
     }
 }
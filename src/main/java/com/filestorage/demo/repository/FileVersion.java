@@ -0,0 +1,58 @@
+package com.filestorage.demo.repository;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.util.Date;
+
+/**
+ * Content a versioned file had before it was replaced. The version holds the reference to the blob the file record
+ * held, so the previous content stays stored, and a newer version written as a delta shares its unchanged chunks.
+ */
+@Getter
+@AllArgsConstructor
+public class FileVersion {
+    private ObjectId versionId;
+    private String fileId;
+    private String owner;
+    private String fileName;
+    // Null for versions kept before the content type was recorded
+    private String contentType;
+    private long size;
+    private String fileHash;
+    private ObjectId blobId;
+    // When the content was written, and when a newer one replaced it
+    private Instant uploadDate;
+    private Instant replacedAt;
+
+    Document toDocument() {
+        return new Document("_id", versionId)
+                .append("fileId", fileId)
+                .append("owner", owner)
+                .append("fileName", fileName)
+                .append("contentType", contentType)
+                .append("size", size)
+                .append("fileHash", fileHash)
+                .append("blobId", blobId)
+                .append("uploadDate", uploadDate != null ? Date.from(uploadDate) : null)
+                .append("replacedAt", Date.from(replacedAt));
+    }
+
+    static FileVersion fromDocument(Document document) {
+        return document == null ? null :
+                new FileVersion(
+                        document.getObjectId("_id"),
+                        document.getString("fileId"),
+                        document.getString("owner"),
+                        document.getString("fileName"),
+                        document.getString("contentType"),
+                        document.get("size", Number.class).longValue(),
+                        document.getString("fileHash"),
+                        document.getObjectId("blobId"),
+                        document.getDate("uploadDate") != null ? document.getDate("uploadDate").toInstant() : null,
+                        document.getDate("replacedAt").toInstant());
+    }
+}
@@ -0,0 +1,114 @@
+package com.filestorage.demo.repository;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Previous contents of versioned files, in {@code file_versions}. Each version holds one reference to its blob,
+ * dropped when the version is removed.
+ */
+@Repository
+public class FileVersionRepository {
+    private static Logger logger = LoggerFactory.getLogger(FileVersionRepository.class);
+
+    private static final String VERSIONS_COLLECTION = "file_versions";
+    private static final int PRUNE_BATCH_SIZE = 1000;
+
+    private final MongoCollection<Document> versions;
+    private final MongoCollection<Document> files;
+    private final BlobRepository blobRepository;
+
+    public FileVersionRepository(MongoDatabase mongoDatabase, BlobRepository blobRepository) {
+        this.versions = mongoDatabase.getCollection(VERSIONS_COLLECTION);
+        this.files = mongoDatabase.getCollection("fs.files");
+        this.blobRepository = blobRepository;
+    }
+
+    /**
+     * Records the current content of the file as a version, taking over the reference the file record held to its blob.
+     */
+    public FileVersion insert(FileInfo file, Instant replacedAt) {
+        FileVersion version = new FileVersion(new ObjectId(), file.getFileId(), file.getOwner(), file.getFileName(),
+                file.getContentType(), file.getSize(), file.getFileHash(), file.getBlobId(), file.getUploadDate(), replacedAt);
+        versions.insertOne(version.toDocument());
+        return version;
+    }
+
+    /**
+     * Returns the versions of the file, newest first.
+     */
+    public List<FileVersion> findByFile(String fileId, String owner) {
+        List<FileVersion> found = new ArrayList<>();
+        versions.find(Filters.and(Filters.eq("fileId", fileId), Filters.eq("owner", owner)))
+                .sort(Sorts.descending("replacedAt"))
+                .forEach(document -> found.add(FileVersion.fromDocument(document)));
+        return found;
+    }
+
+    public FileVersion findById(String fileId, String owner, ObjectId versionId) {
+        return FileVersion.fromDocument(versions.find(Filters.and(
+                Filters.eq("_id", versionId),
+                Filters.eq("fileId", fileId),
+                Filters.eq("owner", owner))).first());
+    }
+
+    /**
+     * Removes, for every file, the versions past the newest maxCount or replaced before olderThan, and all versions
+     * of files that no longer exist. A zero maxCount or a null olderThan disables that limit. Returns the versions removed.
+     */
+    public int prune(int maxCount, Instant olderThan) {
+        int removed = 0;
+        String fileId = null;
+        boolean fileExists = false;
+        int kept = 0;
+        // Read in index order, so the versions of each file come together and newest first
+        for (Document document : versions.find()
+                .projection(Projections.include("_id", "fileId", "replacedAt"))
+                .sort(Sorts.orderBy(Sorts.ascending("fileId"), Sorts.descending("replacedAt")))
+                .batchSize(PRUNE_BATCH_SIZE)) {
+            if (!document.getString("fileId").equals(fileId)) {
+                fileId = document.getString("fileId");
+                fileExists = files.find(Filters.eq("metadata." + FileMetaData.ID.getKey(), fileId))
+                        .projection(Projections.include("_id"))
+                        .first() != null;
+                kept = 0;
+            }
+            boolean expired = olderThan != null && document.getDate("replacedAt").before(Date.from(olderThan));
+            if (!fileExists || expired || (maxCount > 0 && kept >= maxCount)) {
+                if (delete(document.getObjectId("_id"))) {
+                    removed++;
+                }
+            } else {
+                kept++;
+            }
+        }
+        return removed;
+    }
+
+    private boolean delete(ObjectId versionId) {
+        Document version = versions.findOneAndDelete(Filters.eq("_id", versionId));
+        if (version == null) {
+            return false;
+        }
+        try {
+            blobRepository.release(version.getObjectId("blobId"));
+        } catch (RuntimeException ex) {
+            // The version is gone, its content is only leaked
+            logger.error("Failed to release the content of version " + versionId, ex);
+        }
+        return true;
+    }
+}
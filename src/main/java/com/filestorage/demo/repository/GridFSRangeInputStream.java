@@ -0,0 +1,103 @@
+package com.filestorage.demo.repository;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the inclusive byte range [start, end] of a GridFS file directly from its chunks collection.
+ * The offsets are mapped onto chunk indexes so only the chunks overlapping the range are fetched,
+ * and the cursor is opened lazily on the first read.
+ */
+class GridFSRangeInputStream extends InputStream {
+    private final MongoCollection<Document> chunksCollection;
+    private final Object filesId;
+    private final int chunkSize;
+    private final int batchSize;
+    private final long start;
+
+    private MongoCursor<Document> cursor;
+    private int expectedChunk;
+    private byte[] buffer;
+    private int bufferOffset;
+    private long remaining;
+
+    GridFSRangeInputStream(MongoCollection<Document> chunksCollection, Object filesId, int chunkSize,
+                           long start, long end, int batchSize) {
+        this.chunksCollection = chunksCollection;
+        this.filesId = filesId;
+        this.chunkSize = chunkSize;
+        this.batchSize = batchSize;
+        this.start = start;
+        this.remaining = end - start + 1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (buffer == null || bufferOffset == buffer.length) {
+            nextChunk();
+        }
+
+        int toCopy = (int) Math.min(Math.min(len, buffer.length - bufferOffset), remaining);
+        System.arraycopy(buffer, bufferOffset, b, off, toCopy);
+        bufferOffset += toCopy;
+        remaining -= toCopy;
+        return toCopy;
+    }
+
+    private void nextChunk() throws IOException {
+        if (cursor == null) {
+            int firstChunk = (int) (start / chunkSize);
+            int lastChunk = (int) ((start + remaining - 1) / chunkSize);
+            cursor = chunksCollection.find(Filters.and(
+                            Filters.eq("files_id", filesId),
+                            Filters.gte("n", firstChunk),
+                            Filters.lte("n", lastChunk)))
+                    .sort(Sorts.ascending("n"))
+                    .batchSize(batchSize)
+                    .iterator();
+            expectedChunk = firstChunk;
+            bufferOffset = (int) (start % chunkSize);
+        } else {
+            bufferOffset = 0;
+        }
+
+        if (!cursor.hasNext()) {
+            throw new IOException("Missing chunk " + expectedChunk + " of file " + filesId);
+        }
+        Document chunk = cursor.next();
+        if (chunk.getInteger("n") != expectedChunk) {
+            throw new IOException("Unexpected chunk " + chunk.getInteger("n") + " of file " + filesId
+                    + ", expected " + expectedChunk);
+        }
+        buffer = chunk.get("data", Binary.class).getData();
+        expectedChunk++;
+    }
+
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+        }
+        remaining = 0;
+    }
+}
@@ -0,0 +1,56 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.utils.Utils;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes a stream to a GridFS bucket in a single pass, computing its SHA-256 and size along the way.
+ */
+final class GridFSWriter {
+    private static final int UPLOAD_BUFFER_SIZE = 256 * 1024;
+
+    private GridFSWriter() {
+    }
+
+    static StoredContent write(GridFSBucket bucket, String fileName, Document metadata, InputStream inputStream) throws IOException, NoSuchAlgorithmException {
+        return write(bucket, fileName, metadata, inputStream, null);
+    }
+
+    /**
+     * Also feeds every byte to chunkDigests, when given.
+     */
+    static StoredContent write(GridFSBucket bucket, String fileName, Document metadata, InputStream inputStream,
+                               ChunkDigests chunkDigests) throws IOException, NoSuchAlgorithmException {
+        GridFSUploadOptions options = new GridFSUploadOptions().metadata(metadata);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        GridFSUploadStream uploadStream = bucket.openUploadStream(fileName, options);
+        long size = 0;
+        try {
+            byte[] buffer = new byte[UPLOAD_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                if (chunkDigests != null) {
+                    chunkDigests.update(buffer, 0, bytesRead);
+                }
+                uploadStream.write(buffer, 0, bytesRead);
+                size += bytesRead;
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Removes the chunks written so far
+            uploadStream.abort();
+            throw ex;
+        }
+        uploadStream.close();
+
+        return new StoredContent(uploadStream.getObjectId(), Utils.toHex(digest.digest()), size);
+    }
+}
@@ -0,0 +1,169 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.utils.CountingBloomFilter;
+import com.filestorage.demo.utils.Utils;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory set of the (owner, content hash) pairs stored in {@code fs.files}, answering whether a user may already
+ * store some content without a query when the answer is no. It is a counting Bloom filter split in shards, each with
+ * its own lock, filled from {@code fs.files} once the application is up and kept up to date by {@link FileRepository}.
+ * <p>
+ * Until it is filled, and when disabled, every pair may be present. Only writes of this instance are seen, so pairs
+ * stored by other instances, or hidden by removing pairs this instance never added, can be missed: callers use it to
+ * skip lookups, while uniqueness is enforced by the indexes.
+ */
+@Component
+public class OwnedHashFilter {
+    private static Logger logger = LoggerFactory.getLogger(OwnedHashFilter.class);
+    private static final int SHARDS = 16;
+    private static final int BUILD_BATCH_SIZE = 10_000;
+
+    private final MongoDatabase mongoDatabase;
+    private final boolean enabled;
+    private final long expectedHashes;
+    private final CountingBloomFilter[] shards = new CountingBloomFilter[SHARDS];
+    private volatile boolean building;
+    private volatile boolean ready;
+
+    public OwnedHashFilter(MongoDatabase mongoDatabase,
+                           @Value("${filestorage.hash-filter.enabled:true}") boolean enabled,
+                           @Value("${filestorage.hash-filter.expected-hashes:1000000}") long expectedHashes,
+                           @Value("${filestorage.hash-filter.false-positive-rate:0.01}") double falsePositiveRate) {
+        this.mongoDatabase = mongoDatabase;
+        this.enabled = enabled;
+        this.expectedHashes = expectedHashes;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = enabled ? new CountingBloomFilter(Math.max(1, expectedHashes / SHARDS), falsePositiveRate) : null;
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildInBackground() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(this::buildQuietly, "owned-hash-filter-build");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void buildQuietly() {
+        try {
+            build();
+        } catch (RuntimeException ex) {
+            logger.error("Failed to build the owned hash filter, hash lookups will always query the database", ex);
+        }
+    }
+
+    /**
+     * Adds every stored pair. Pairs added or removed meanwhile are kept, at worst as extra positives.
+     */
+    public void build() {
+        building = true;
+        long count = 0;
+        try {
+            for (Document file : mongoDatabase.getCollection("fs.files")
+                    .find(Filters.exists("metadata." + FileMetaData.FILE_HASH.getKey()))
+                    .projection(Projections.include("metadata." + FileMetaData.OWNER.getKey(), "metadata." + FileMetaData.FILE_HASH.getKey()))
+                    .batchSize(BUILD_BATCH_SIZE)) {
+                Document metadata = file.get("metadata", Document.class);
+                add(metadata.getString(FileMetaData.OWNER.getKey()), metadata.getString(FileMetaData.FILE_HASH.getKey()));
+                count++;
+            }
+        } finally {
+            building = false;
+        }
+        ready = true;
+        logger.info("Owned hash filter built from " + count + " files");
+        if (count > expectedHashes) {
+            logger.warn("Stored files exceed filestorage.hash-filter.expected-hashes, the filter lets more lookups through");
+        }
+    }
+
+    public void add(String owner, String fileHash) {
+        if (!enabled || !Utils.isSHA256Hex(fileHash)) {
+            return;
+        }
+        long hash1 = hash1(owner, fileHash);
+        long hash2 = hash2(owner, fileHash);
+        CountingBloomFilter shard = shards[shard(hash1)];
+        synchronized (shard) {
+            shard.add(hash1, hash2);
+        }
+    }
+
+    public void remove(String owner, String fileHash) {
+        // While building, the pair may not have been added yet and removing it could hide another one
+        if (!enabled || building || !Utils.isSHA256Hex(fileHash)) {
+            return;
+        }
+        long hash1 = hash1(owner, fileHash);
+        long hash2 = hash2(owner, fileHash);
+        CountingBloomFilter shard = shards[shard(hash1)];
+        synchronized (shard) {
+            shard.remove(hash1, hash2);
+        }
+    }
+
+    /**
+     * Returns false only if the owner certainly stores no file with this content.
+     */
+    public boolean mightContain(String owner, String fileHash) {
+        if (!enabled || !ready || !Utils.isSHA256Hex(fileHash)) {
+            return true;
+        }
+        long hash1 = hash1(owner, fileHash);
+        long hash2 = hash2(owner, fileHash);
+        CountingBloomFilter shard = shards[shard(hash1)];
+        synchronized (shard) {
+            return shard.mightContain(hash1, hash2);
+        }
+    }
+
+    public long sizeInBytes() {
+        long size = 0;
+        for (CountingBloomFilter shard : shards) {
+            size += shard != null ? shard.sizeInBytes() : 0;
+        }
+        return size;
+    }
+
+    private int shard(long hash1) {
+        return (int) (hash1 >>> 60) & (SHARDS - 1);
+    }
+
+    // Content hashes are SHA-256, so their bits are already uniform and only the owner needs hashing
+    private long hash1(String owner, String fileHash) {
+        return Long.parseUnsignedLong(fileHash.substring(0, 16), 16) ^ mix(ownerHash(owner));
+    }
+
+    private long hash2(String owner, String fileHash) {
+        return (Long.parseUnsignedLong(fileHash.substring(16, 32), 16) ^ mix(ownerHash(owner) + 0x9E3779B97F4A7C15L)) | 1;
+    }
+
+    private long ownerHash(String owner) {
+        long hash = 0xCBF29CE484222325L;
+        if (owner != null) {
+            for (int i = 0; i < owner.length(); i++) {
+                hash = (hash ^ owner.charAt(i)) * 0x100000001B3L;
+            }
+        }
+        return hash;
+    }
+
+    private long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+}
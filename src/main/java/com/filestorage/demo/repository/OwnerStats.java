@@ -0,0 +1,26 @@
+package com.filestorage.demo.repository;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.util.Map;
+
+/**
+ * Storage held by one owner, as counted in {@code owner_stats}. Bytes per tag and per content type only list
+ * the keys with stored bytes; a file with several tags counts towards each of them.
+ */
+@Getter
+@AllArgsConstructor
+@EqualsAndHashCode
+public class OwnerStats {
+    private String owner;
+    private long fileCount;
+    private long totalBytes;
+    private Map<String, Long> bytesByTag;
+    private Map<String, Long> bytesByContentType;
+
+    public static OwnerStats empty(String owner) {
+        return new OwnerStats(owner, 0, 0, Map.of(), Map.of());
+    }
+}
@@ -0,0 +1,297 @@
+package com.filestorage.demo.repository;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts per owner the files and bytes stored in {@code fs.files}, so quotas and statistics read one document
+ * instead of aggregating over every file of the owner. {@link FileRepository} announces each change with
+ * {@link #beginChange} before writing the file record and applies it with a single {@code $inc} right after, which also
+ * ends the announcement. A recount never replaces counters while a change is announced or once one was announced
+ * meanwhile, so it cannot count a file write twice. A change that never ends, such as on a crash between the file write
+ * and its {@code $inc}, is taken as interrupted after {@link #PENDING_TIMEOUT}, and the owner is recounted.
+ */
+@Repository
+public class OwnerStatsRepository {
+    private static Logger logger = LoggerFactory.getLogger(OwnerStatsRepository.class);
+
+    private static final String STATS_COLLECTION = "owner_stats";
+    private static final String FILE_COUNT = "fileCount";
+    private static final String TOTAL_BYTES = "totalBytes";
+    private static final String BYTES_BY_TAG = "bytesByTag";
+    private static final String BYTES_BY_CONTENT_TYPE = "bytesByContentType";
+    // Incremented by every change, so a recount only replaces counters nothing changed meanwhile
+    private static final String REVISION = "revision";
+    // Changes announced and not applied yet, and until when the last one is expected to end
+    private static final String PENDING = "pending";
+    private static final String PENDING_UNTIL = "pendingUntil";
+    // Far longer than writing one file record takes
+    public static final Duration PENDING_TIMEOUT = Duration.ofMinutes(5);
+    private static final int INTERRUPTED_BATCH_SIZE = 1000;
+    private static final String META = "metadata.";
+    // Owners fetched per getMore, small enough that reconciling a batch stays well within the cursor idle timeout
+    static final int OWNER_BATCH_SIZE = 100;
+
+    private final MongoCollection<Document> stats;
+    private final MongoCollection<Document> files;
+
+    public OwnerStatsRepository(MongoDatabase mongoDatabase) {
+        this.stats = mongoDatabase.getCollection(STATS_COLLECTION);
+        this.files = mongoDatabase.getCollection("fs.files");
+    }
+
+    /**
+     * Announces a change to the files of the owner, to be called before the file record is written. The change ends with
+     * one of the record methods once the write is done, or with {@link #cancelChange} if it certainly failed. Throws if
+     * the announcement cannot be stored, so no file is written without it.
+     */
+    public void beginChange(String owner) {
+        stats.updateOne(Filters.eq("_id", owner), Updates.combine(
+                Updates.inc(PENDING, 1),
+                Updates.inc(REVISION, 1L),
+                Updates.max(PENDING_UNTIL, Date.from(Instant.now().plus(PENDING_TIMEOUT)))), new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Ends an announced change whose file write certainly failed, leaving the counters as they are.
+     */
+    public void cancelChange(String owner) {
+        try {
+            stats.updateOne(Filters.eq("_id", owner), Updates.combine(Updates.inc(PENDING, -1), Updates.inc(REVISION, 1L)));
+        } catch (MongoException ex) {
+            logger.error("Failed to end a change of the storage stats of " + owner + ", they are recounted once it times out", ex);
+        }
+    }
+
+    public void recordAdded(String owner, Collection<String> tags, String contentType, long bytes) {
+        record(owner, 1, bytes, tags, contentType);
+    }
+
+    public void recordRemoved(String owner, Collection<String> tags, String contentType, long bytes) {
+        record(owner, -1, -bytes, tags, contentType);
+    }
+
+    // Applied even when the size is unchanged, as it ends the announced change
+    public void recordResized(String owner, Collection<String> tags, String contentType, long deltaBytes) {
+        record(owner, 0, deltaBytes, tags, contentType);
+    }
+
+    // The file record is already written, a failed update leaves the change announced, so the owner is recounted once
+    // it times out
+    private void record(String owner, int deltaFiles, long deltaBytes, Collection<String> tags, String contentType) {
+        List<Bson> updates = new ArrayList<>();
+        updates.add(Updates.inc(FILE_COUNT, deltaFiles));
+        updates.add(Updates.inc(TOTAL_BYTES, deltaBytes));
+        updates.add(Updates.inc(REVISION, 1L));
+        updates.add(Updates.inc(PENDING, -1));
+        // The same path twice in one update is rejected, so duplicate tags count once
+        if (tags != null) {
+            for (String tag : new LinkedHashSet<>(tags)) {
+                updates.add(Updates.inc(BYTES_BY_TAG + "." + escapeKey(tag), deltaBytes));
+            }
+        }
+        updates.add(Updates.inc(BYTES_BY_CONTENT_TYPE + "." + escapeKey(contentTypeKey(contentType)), deltaBytes));
+        try {
+            stats.updateOne(Filters.eq("_id", owner), Updates.combine(updates), new UpdateOptions().upsert(true));
+        } catch (MongoException ex) {
+            logger.error("Failed to update the storage stats of " + owner + ", they are recounted once the change times out", ex);
+        }
+    }
+
+    public OwnerStats findByOwner(String owner) {
+        Document document = stats.find(Filters.eq("_id", owner)).first();
+        return document == null ? OwnerStats.empty(owner) : fromDocument(document);
+    }
+
+    /**
+     * Opens a cursor over every owner with files or counters, each returned once. The owners are grouped by the
+     * database and fetched in batches, so their number is not bounded by the size of a single reply.
+     */
+    public MongoCursor<String> openOwnerCursor() {
+        String owner = META + FileMetaData.OWNER.getKey();
+        List<Document> pipeline = List.of(
+                // Sorted on the indexed owner first, so the group reads one index key per owner
+                new Document("$sort", new Document(owner, 1)),
+                new Document("$group", new Document("_id", "$" + owner)),
+                new Document("$unionWith", new Document("coll", STATS_COLLECTION)
+                        .append("pipeline", List.of(
+                                new Document("$sort", new Document("_id", 1)),
+                                new Document("$project", new Document("_id", 1))))),
+                new Document("$group", new Document("_id", "$_id")),
+                // Records written before owners were stored have none
+                new Document("$match", new Document("_id", new Document("$type", "string"))));
+        return files.aggregate(pipeline)
+                .allowDiskUse(true)
+                .batchSize(OWNER_BATCH_SIZE)
+                .map(document -> document.getString("_id"))
+                .cursor();
+    }
+
+    /**
+     * Returns owners with a change announced and not ended within {@link #PENDING_TIMEOUT}, whose counters may miss it.
+     */
+    public List<String> findOwnersWithInterruptedChanges(Instant now) {
+        List<String> owners = new ArrayList<>();
+        stats.find(Filters.and(Filters.lt(PENDING_UNTIL, Date.from(now)), Filters.gt(PENDING, 0)))
+                .projection(Projections.include("_id"))
+                .limit(INTERRUPTED_BATCH_SIZE)
+                .forEach(document -> owners.add(document.getString("_id")));
+        return owners;
+    }
+
+    /**
+     * Recounts the files of the owner and replaces the counters if they drifted or a change was interrupted. Returns
+     * true if they were repaired. Counters with a change in progress, or changed during the recount, are left for the
+     * next one.
+     */
+    public boolean reconcile(String owner) {
+        Document current = stats.find(Filters.eq("_id", owner)).first();
+        boolean interrupted = false;
+        if (current != null && longValue(current, PENDING) > 0) {
+            Date pendingUntil = current.getDate(PENDING_UNTIL);
+            if (pendingUntil != null && pendingUntil.after(new Date())) {
+                return false;
+            }
+            interrupted = true;
+        }
+        OwnerStats counted = count(owner);
+        if (current != null && !interrupted && fromDocument(current).equals(counted)) {
+            return false;
+        }
+
+        Document replacement = toDocument(counted);
+        if (current == null) {
+            try {
+                stats.insertOne(replacement.append(REVISION, 1L));
+                return true;
+            } catch (MongoWriteException ex) {
+                if (ex.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw ex;
+                }
+                // Counted for the first time meanwhile
+                return false;
+            }
+        }
+        // Without the announcements, which the recount covers
+        replacement.append(REVISION, longValue(current, REVISION) + 1);
+        return stats.replaceOne(Filters.and(Filters.eq("_id", owner), Filters.eq(REVISION, current.get(REVISION))), replacement)
+                .getMatchedCount() == 1;
+    }
+
+    private OwnerStats count(String owner) {
+        Document tags = new Document("$setUnion", List.of(new Document("$ifNull", List.of("$" + META + FileMetaData.TAGS.getKey(), List.of()))));
+        List<Document> pipeline = List.of(
+                new Document("$match", new Document(META + FileMetaData.OWNER.getKey(), owner)),
+                new Document("$project", new Document("length", 1)
+                        .append("tags", tags)
+                        .append("contentType", "$" + META + FileMetaData.CONTENT_TYPE.getKey())),
+                new Document("$facet", new Document()
+                        .append("totals", List.of(new Document("$group", new Document("_id", null)
+                                .append("count", new Document("$sum", 1))
+                                .append("bytes", new Document("$sum", "$length")))))
+                        .append("tags", List.of(
+                                new Document("$unwind", "$tags"),
+                                new Document("$group", new Document("_id", "$tags").append("bytes", new Document("$sum", "$length")))))
+                        .append("contentTypes", List.of(
+                                new Document("$group", new Document("_id", "$contentType").append("bytes", new Document("$sum", "$length")))))));
+
+        Document result = files.aggregate(pipeline).first();
+        if (result == null || result.getList("totals", Document.class).isEmpty()) {
+            return OwnerStats.empty(owner);
+        }
+        Document totals = result.getList("totals", Document.class).get(0);
+        Map<String, Long> bytesByTag = new HashMap<>();
+        for (Document tag : result.getList("tags", Document.class)) {
+            putBytes(bytesByTag, tag.getString("_id"), tag.get("bytes", Number.class).longValue());
+        }
+        Map<String, Long> bytesByContentType = new HashMap<>();
+        for (Document contentType : result.getList("contentTypes", Document.class)) {
+            putBytes(bytesByContentType, contentTypeKey(contentType.getString("_id")), contentType.get("bytes", Number.class).longValue());
+        }
+        return new OwnerStats(owner, totals.get("count", Number.class).longValue(), totals.get("bytes", Number.class).longValue(),
+                bytesByTag, bytesByContentType);
+    }
+
+    private Document toDocument(OwnerStats ownerStats) {
+        Document bytesByTag = new Document();
+        ownerStats.getBytesByTag().forEach((tag, bytes) -> bytesByTag.append(escapeKey(tag), bytes));
+        Document bytesByContentType = new Document();
+        ownerStats.getBytesByContentType().forEach((contentType, bytes) -> bytesByContentType.append(escapeKey(contentType), bytes));
+        return new Document("_id", ownerStats.getOwner())
+                .append(FILE_COUNT, ownerStats.getFileCount())
+                .append(TOTAL_BYTES, ownerStats.getTotalBytes())
+                .append(BYTES_BY_TAG, bytesByTag)
+                .append(BYTES_BY_CONTENT_TYPE, bytesByContentType);
+    }
+
+    private OwnerStats fromDocument(Document document) {
+        return new OwnerStats(
+                document.getString("_id"),
+                longValue(document, FILE_COUNT),
+                longValue(document, TOTAL_BYTES),
+                bytesByKey(document.get(BYTES_BY_TAG, Document.class)),
+                bytesByKey(document.get(BYTES_BY_CONTENT_TYPE, Document.class)));
+    }
+
+    // Keys whose files are all gone keep a zero count until the next recount
+    private Map<String, Long> bytesByKey(Document counters) {
+        Map<String, Long> bytes = new HashMap<>();
+        if (counters != null) {
+            counters.forEach((key, value) -> putBytes(bytes, unescapeKey(key), ((Number) value).longValue()));
+        }
+        return bytes;
+    }
+
+    private void putBytes(Map<String, Long> bytes, String key, long value) {
+        if (key != null) {
+            long total = bytes.merge(key, value, Long::sum);
+            if (total == 0) {
+                bytes.remove(key);
+            }
+        }
+    }
+
+    private long longValue(Document document, String key) {
+        Number value = document.get(key, Number.class);
+        return value != null ? value.longValue() : 0;
+    }
+
+    // Files without a content type are served as a generic binary
+    private String contentTypeKey(String contentType) {
+        return contentType == null || contentType.isBlank() ? MediaType.APPLICATION_OCTET_STREAM_VALUE : contentType;
+    }
+
+    // Dots would be read as nested fields and a leading dollar as an operator, most content types have dots
+    static String escapeKey(String key) {
+        return key.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+    }
+
+    static String unescapeKey(String key) {
+        return key.replace("%24", "$").replace("%2E", ".").replace("%25", "%");
+    }
+}
@@ -0,0 +1,14 @@
+package com.filestorage.demo.repository;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bson.types.ObjectId;
+
+// What was learned about the content while it was written to GridFS
+@Getter
+@AllArgsConstructor
+public class StoredContent {
+    private ObjectId objectId;
+    private String fileHash;
+    private long size;
+}
@@ -0,0 +1,14 @@
+package com.filestorage.demo.repository;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bson.types.ObjectId;
+
+@Getter
+@AllArgsConstructor
+public class UploadPart {
+    private int partNumber;
+    private long size;
+    private String fileHash;
+    private ObjectId objectId;
+}
@@ -0,0 +1,55 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.dto.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.bson.Document;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class UploadSession {
+    private String sessionId;
+    private String owner;
+    private String fileName;
+    private AccessLevel accessLevel;
+    private List<String> tags;
+    private String contentType;
+    // SHA-256 announced by the client, verified on commit when present
+    private String expectedHash;
+    private Instant createdAt;
+    private Instant expiresAt;
+    private boolean committing;
+
+    Document toDocument() {
+        return new Document("_id", sessionId)
+                .append("owner", owner)
+                .append("fileName", fileName)
+                .append("accessLevel", accessLevel.name())
+                .append("tags", tags)
+                .append("contentType", contentType)
+                .append("expectedHash", expectedHash)
+                .append("createdAt", Date.from(createdAt))
+                .append("expiresAt", Date.from(expiresAt))
+                .append("committing", committing);
+    }
+
+    @SuppressWarnings("unchecked")
+    static UploadSession fromDocument(Document document) {
+        return document == null ? null :
+                new UploadSession(
+                        document.getString("_id"),
+                        document.getString("owner"),
+                        document.getString("fileName"),
+                        AccessLevel.valueOf(document.getString("accessLevel")),
+                        (List<String>) document.get("tags"),
+                        document.getString("contentType"),
+                        document.getString("expectedHash"),
+                        document.getDate("createdAt").toInstant(),
+                        document.getDate("expiresAt").toInstant(),
+                        document.getBoolean("committing", false));
+    }
+}
@@ -0,0 +1,217 @@
+package com.filestorage.demo.repository;
+
+import com.filestorage.demo.exception.DuplicateEntryException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Upload sessions live in their own collection, and their parts in a separate GridFS bucket
+ * so that partial uploads never show up among the stored files.
+ */
+@Repository
+public class UploadSessionRepository {
+    private static final String SESSIONS_COLLECTION = "upload_sessions";
+    private static final String PARTS_BUCKET = "upload_parts";
+    private static final String SESSION_ID = "metadata.sessionId";
+    private static final String PART_NUMBER = "metadata.partNumber";
+    private static final String PART_HASH = "metadata.partHash";
+    private static final String COMMITTING_SINCE = "committingSince";
+    // Parts being published, a commit waits for them, and until when the last one is expected to finish
+    private static final String STORING = "storing";
+    private static final String STORING_UNTIL = "storingUntil";
+    // Far longer than publishing a stored part takes, past it a store is taken as interrupted
+    private static final Duration STORE_TIMEOUT = Duration.ofMinutes(1);
+    // Set instead of the session id while a part is written, so no commit sees it before it is published
+    private static final String STORED_FOR = "storedFor";
+    // Parts checked against the sessions collection per query
+    private static final int ORPHAN_BATCH_SIZE = 1000;
+
+    private final MongoCollection<Document> sessions;
+    private final MongoCollection<Document> partFiles;
+    private final GridFSBucket partsBucket;
+
+    public UploadSessionRepository(MongoDatabase mongoDatabase) {
+        this.sessions = mongoDatabase.getCollection(SESSIONS_COLLECTION);
+        this.partFiles = mongoDatabase.getCollection(PARTS_BUCKET + ".files");
+        this.partsBucket = GridFSBuckets.create(mongoDatabase, PARTS_BUCKET);
+    }
+
+    public void insert(UploadSession session) {
+        sessions.insertOne(session.toDocument());
+    }
+
+    public UploadSession findByIdAndOwner(String sessionId, String owner) {
+        return UploadSession.fromDocument(sessions.find(Filters.and(
+                Filters.eq("_id", sessionId),
+                Filters.eq("owner", owner))).first());
+    }
+
+    public void extendExpiry(String sessionId, Instant expiresAt) {
+        sessions.updateOne(Filters.eq("_id", sessionId), Updates.set("expiresAt", Date.from(expiresAt)));
+    }
+
+    /**
+     * Atomically moves an open session to the committing state, returns false if it is already being committed or
+     * a part is being published. The time is recorded so a commit that never ends, because its node went away,
+     * eventually expires.
+     */
+    public boolean markCommitting(String sessionId, String owner) {
+        return sessions.updateOne(Filters.and(
+                        Filters.eq("_id", sessionId),
+                        Filters.eq("owner", owner),
+                        Filters.eq("committing", false),
+                        Filters.or(Filters.not(Filters.gt(STORING, 0)), Filters.lt(STORING_UNTIL, new Date()))),
+                Updates.combine(
+                        Updates.set("committing", true),
+                        Updates.set(COMMITTING_SINCE, new Date()))).getModifiedCount() == 1;
+    }
+
+    public void markOpen(String sessionId) {
+        sessions.updateOne(Filters.eq("_id", sessionId), Updates.combine(
+                Updates.set("committing", false),
+                Updates.unset(COMMITTING_SINCE)));
+    }
+
+    /**
+     * Stores a part, replacing any earlier upload of the same part number. The part is written unpublished, then
+     * published and the earlier upload deleted only while the session is still open, with the session marked so no
+     * commit starts meanwhile. If a commit started while the part was written, the part is dropped and
+     * {@link DuplicateEntryException} thrown, leaving the parts the commit reads untouched.
+     */
+    public UploadPart storePart(String sessionId, int partNumber, InputStream inputStream) throws IOException, NoSuchAlgorithmException {
+        Document metadata = new Document(STORED_FOR, sessionId).append("partNumber", partNumber);
+        StoredContent stored = GridFSWriter.write(partsBucket, sessionId + "/" + partNumber, metadata, inputStream);
+
+        boolean open = sessions.updateOne(Filters.and(Filters.eq("_id", sessionId), Filters.eq("committing", false)),
+                Updates.combine(
+                        Updates.inc(STORING, 1),
+                        Updates.max(STORING_UNTIL, Date.from(Instant.now().plus(STORE_TIMEOUT))))).getModifiedCount() == 1;
+        if (!open) {
+            partsBucket.delete(stored.getObjectId());
+            throw new DuplicateEntryException("Upload session is being committed");
+        }
+        try {
+            partFiles.updateOne(Filters.eq("_id", stored.getObjectId()), Updates.combine(
+                    Updates.set(SESSION_ID, sessionId),
+                    Updates.set(PART_HASH, stored.getFileHash()),
+                    Updates.unset("metadata." + STORED_FOR)));
+            partsBucket.find(Filters.and(
+                            Filters.eq(SESSION_ID, sessionId),
+                            Filters.eq(PART_NUMBER, partNumber),
+                            Filters.ne("_id", stored.getObjectId())))
+                    .forEach(previous -> partsBucket.delete(previous.getObjectId()));
+        } finally {
+            sessions.updateOne(Filters.eq("_id", sessionId), Updates.inc(STORING, -1));
+        }
+
+        return new UploadPart(partNumber, stored.getSize(), stored.getFileHash(), stored.getObjectId());
+    }
+
+    public List<UploadPart> findParts(String sessionId) {
+        // Sorted so that when a part was uploaded twice concurrently, the latest upload wins
+        Map<Integer, UploadPart> parts = new LinkedHashMap<>();
+        partsBucket.find(Filters.eq(SESSION_ID, sessionId))
+                .sort(Sorts.ascending(PART_NUMBER, "uploadDate"))
+                .forEach(file -> parts.put(file.getMetadata().getInteger("partNumber"), toUploadPart(file)));
+        return new ArrayList<>(parts.values());
+    }
+
+    public InputStream openPart(ObjectId objectId) {
+        return partsBucket.openDownloadStream(objectId);
+    }
+
+    public void delete(String sessionId) {
+        partsBucket.find(Filters.eq(SESSION_ID, sessionId)).forEach(part -> partsBucket.delete(part.getObjectId()));
+        sessions.deleteOne(Filters.eq("_id", sessionId));
+    }
+
+    /**
+     * Returns the expired sessions that are open, or whose commit started before the given time and is taken as
+     * abandoned. Sessions committing since before committingSince was recorded have no time and count as abandoned.
+     */
+    public List<String> findExpiredSessionIds(Instant now, Instant abandonedCommitBefore) {
+        List<String> expired = new ArrayList<>();
+        sessions.find(Filters.and(
+                        Filters.lt("expiresAt", Date.from(now)),
+                        // Also matches open sessions, which have no commit time
+                        Filters.not(Filters.gte(COMMITTING_SINCE, Date.from(abandonedCommitBefore)))))
+                .projection(new Document("_id", 1))
+                .forEach(session -> expired.add(session.getString("_id")));
+        return expired;
+    }
+
+    /**
+     * Deletes the parts uploaded before the given time whose session no longer exists, left behind by a part upload
+     * that raced with the removal of its session, and the parts never published because their store was interrupted.
+     * Returns the number of parts deleted.
+     */
+    public int deleteOrphanedParts(Instant uploadedBefore) {
+        int deleted = 0;
+        List<GridFSFile> batch = new ArrayList<>();
+        try (MongoCursor<GridFSFile> cursor = partsBucket.find(Filters.lt("uploadDate", Date.from(uploadedBefore)))
+                .batchSize(ORPHAN_BATCH_SIZE).iterator()) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == ORPHAN_BATCH_SIZE || !cursor.hasNext()) {
+                    deleted += deleteOrphans(batch);
+                    batch.clear();
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private int deleteOrphans(List<GridFSFile> parts) {
+        Set<String> sessionIds = parts.stream()
+                .map(this::sessionIdOf)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        Set<String> existing = new HashSet<>();
+        sessions.find(Filters.in("_id", sessionIds))
+                .projection(new Document("_id", 1))
+                .forEach(session -> existing.add(session.getString("_id")));
+
+        int deleted = 0;
+        for (GridFSFile part : parts) {
+            if (!existing.contains(sessionIdOf(part))) {
+                partsBucket.delete(part.getObjectId());
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private String sessionIdOf(GridFSFile part) {
+        return part.getMetadata() != null ? part.getMetadata().getString("sessionId") : null;
+    }
+
+    private UploadPart toUploadPart(GridFSFile file) {
+        return new UploadPart(file.getMetadata().getInteger("partNumber"), file.getLength(),
+                file.getMetadata().getString("partHash"), file.getObjectId());
+    }
+}
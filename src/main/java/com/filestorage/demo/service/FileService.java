@@ -1,28 +1,58 @@
 package com.filestorage.demo.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.filestorage.demo.cache.CachedContent;
+import com.filestorage.demo.cache.CachedListing;
+import com.filestorage.demo.cache.FileContentCache;
+import com.filestorage.demo.cache.FileFacetCache;
+import com.filestorage.demo.cache.FileMetadataCache;
+import com.filestorage.demo.cache.LocalDiskCache;
+import com.filestorage.demo.cache.PublicListingCache;
 import com.filestorage.demo.dto.*;
 import com.filestorage.demo.exception.*;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.ChunkManifest;
 import com.filestorage.demo.repository.FileInfo;
+import com.filestorage.demo.repository.FileListCursor;
+import com.filestorage.demo.repository.FileNameIndex;
 import com.filestorage.demo.repository.FileRepository;
+import com.filestorage.demo.repository.StoredContent;
 import com.filestorage.demo.utils.Utils;
+import com.mongodb.client.MongoCursor;
 import io.micrometer.common.util.StringUtils;
 import lombok.AllArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpRange;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponents;
 
 import java.net.URI;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.stream.Collectors;
 
 import org.apache.tika.Tika;
@@ -35,9 +65,27 @@ public class FileService {
 
     private static final int MAX_ALLOWED_TAGS = 5;
     private static final int MAX_PAGE_SIZE = 100;
+    private static final int MAX_UPLOAD_CHECK_BATCH = 1000;
+    private static final int MAX_SEARCH_QUERY_LENGTH = 255;
+    // Search results are ranked in memory, so only the best ones can be paged through
+    private static final int MAX_SEARCH_RESULTS = 1000;
+    // Enough for Tika's magic byte detection
+    private static final int CONTENT_SNIFF_LENGTH = 64 * 1024;
+    private static final Tika TIKA = new Tika();
+    // Pending blobs younger than this may still belong to an upload in progress
+    private static final Duration UNREFERENCED_BLOB_GRACE = Duration.ofDays(1);
 
     FileRepository fileRepository;
+    BlobRepository blobRepository;
     TagService tagService;
+    FileContentCache fileContentCache;
+    LocalDiskCache localDiskCache;
+    FileMetadataCache fileMetadataCache;
+    OwnerStatsService ownerStatsService;
+    FileFacetCache fileFacetCache;
+    FileNameIndex fileNameIndex;
+    PublicListingCache publicListingCache;
+    ObjectMapper objectMapper;
 
     private URI generateDownloadURL(String downloadEndpoint, String fileId){
         return ServletUriComponentsBuilder
@@ -57,6 +105,25 @@ public class FileService {
             throw new BadRequestException("File is empty");
         }
 
+        try (InputStream inputStream = file.getInputStream()) {
+            return uploadFromStream(inputStream, file.getContentType(), fileMeta, userEmail, downloadEndpoint, null);
+        }
+    }
+
+    public FileUploadResponse uploadFileStream(InputStream inputStream, String contentType, FileUploadDTO fileMeta, String userEmail,
+                                               String expectedHash, String downloadEndpoint) throws IOException, NoSuchAlgorithmException {
+        if (StringUtils.isNotBlank(expectedHash) && !Utils.isSHA256Hex(expectedHash)) {
+            throw new BadRequestException("Expected hash must be a hex encoded SHA-256");
+        }
+        // A generic binary type carries no information, the content is sniffed instead
+        if (MediaType.APPLICATION_OCTET_STREAM_VALUE.equalsIgnoreCase(contentType)) {
+            contentType = null;
+        }
+        return uploadFromStream(inputStream, contentType, fileMeta, userEmail, downloadEndpoint,
+                StringUtils.isNotBlank(expectedHash) ? expectedHash : null);
+    }
+
+    public void validateFileMeta(FileUploadDTO fileMeta) {
         if (!isValidFileNameFormat(fileMeta.getFileName())){
             throw new BadRequestException("File name should follow the format file_name.extension");
         }
@@ -72,41 +139,202 @@ public class FileService {
                 }
             }
         }
+    }
 
-        InputStream inputStream = file.getInputStream();
-        String fileHash = Utils.computeSHA256(inputStream);
-
-        String fileNameDuplication = fileRepository.isFileNameExists(fileMeta.getFileName(), userEmail) ? "File with that name already exists. " : " ";
-        String fileHashDuplication = fileRepository.isFileHashExists(fileHash, userEmail) ? "The same file is already uploaded. " : " ";
-        if (StringUtils.isNotBlank(fileNameDuplication) || StringUtils.isNotBlank(fileHashDuplication)) {
-            throw new DuplicateEntryException(fileNameDuplication + fileHashDuplication);
+    /**
+     * Stores a file reading its content exactly once: it is hashed, sniffed and written to GridFS in the same pass.
+     * Content already held by any user is shared instead of being stored again. When expectedHash is given,
+     * content with a different SHA-256 is rejected, and if that content is already stored nothing is written at all.
+     * Duplicate names and content of the user are rejected by the insert of the file record, the content is released then.
+     * The quota is checked before any content is written against the sniffed prefix, then against the full size.
+     */
+    public FileUploadResponse uploadFromStream(InputStream inputStream, String contentType, FileUploadDTO fileMeta,
+                                               String userEmail, String downloadEndpoint, String expectedHash) throws IOException, NoSuchAlgorithmException {
+        validateFileMeta(fileMeta);
+
+        // The prefix used for content type detection is replayed in front of the rest of the stream
+        byte[] prefix = inputStream.readNBytes(CONTENT_SNIFF_LENGTH);
+        ownerStatsService.checkQuota(userEmail, prefix.length);
+        if (StringUtils.isBlank(contentType)) {
+            contentType = TIKA.detect(prefix, fileMeta.getFileName());
         }
+        InputStream content = new SequenceInputStream(new ByteArrayInputStream(prefix), inputStream);
 
         LocalDate time = LocalDate.now();
         String fileId = UUID.randomUUID().toString();
-        String contentType = file.getContentType();
-        if (StringUtils.isBlank(contentType)){
-            if (StringUtils.isBlank(file.getOriginalFilename())) {
-                contentType = Files.probeContentType(Path.of(Objects.requireNonNull(file.getOriginalFilename())));
-            } else {
-                Tika tika = new Tika();
-                contentType = tika.detect(file.getInputStream());
-            }
-        }
-        FileInfo fileInfo = new FileInfo(fileId, fileMeta.getFileName(), file.getSize(),
+        FileInfo fileInfo = new FileInfo(fileId, fileMeta.getFileName(), null,
                 contentType,
                 fileMeta.getTags() != null ? fileMeta.getTags().stream().map(String::toLowerCase).collect(Collectors.toList()) : null,
-                time, time, userEmail, fileMeta.getAccessLevel(), null);
-
-        fileRepository.uploadFile(fileInfo, file, fileHash, userEmail);
+                time, time, userEmail, fileMeta.getAccessLevel());
+
+        StoredContent shared = expectedHash != null ? blobRepository.reserve(expectedHash.toLowerCase()) : null;
+        StoredContent stored = shared != null
+                ? verifySharedContent(content, shared)
+                : storeNewContent(content, expectedHash);
+
+        try {
+            ownerStatsService.checkQuota(userEmail, stored.getSize());
+            fileRepository.insertFile(fileInfo, stored, userEmail);
+        } catch (RuntimeException ex) {
+            blobRepository.release(stored.getObjectId());
+            throw ex;
+        }
+        // Drops a not found result cached for this id
+        fileMetadataCache.invalidate(fileId);
+        fileFacetCache.invalidate(userEmail, fileInfo.getAccessLevel());
+        if (fileInfo.getAccessLevel() == AccessLevel.PUBLIC) {
+            publicListingCache.invalidate();
+        }
 
         URI downloadUrl = generateDownloadURL(downloadEndpoint, fileId);
         return FileUploadResponse.builder().fileDownloadUrl(downloadUrl).fileId(fileId).build();
     }
 
+    // The client still sends the content to prove it holds it, but it is only hashed
+    private StoredContent verifySharedContent(InputStream content, StoredContent shared) throws IOException, NoSuchAlgorithmException {
+        String fileHash;
+        try {
+            fileHash = Utils.computeSHA256(content);
+        } catch (IOException | RuntimeException ex) {
+            blobRepository.release(shared.getObjectId());
+            throw ex;
+        }
+
+        if (!shared.getFileHash().equals(fileHash)) {
+            blobRepository.release(shared.getObjectId());
+            throw new BadRequestException("File content does not match the expected SHA-256");
+        }
+        return shared;
+    }
+
+    private StoredContent storeNewContent(InputStream content, String expectedHash) throws IOException, NoSuchAlgorithmException {
+        StoredContent pending = blobRepository.store(content);
+
+        if (pending.getSize() == 0) {
+            blobRepository.discard(pending);
+            throw new BadRequestException("File is empty");
+        }
+        if (expectedHash != null && !expectedHash.equalsIgnoreCase(pending.getFileHash())) {
+            blobRepository.discard(pending);
+            throw new BadRequestException("File content does not match the expected SHA-256");
+        }
+        return new StoredContent(blobRepository.commit(pending), pending.getFileHash(), pending.getSize());
+    }
+
+    /**
+     * Tells for each declared file whether its content has to be uploaded. Content the user already stores is reported
+     * as a duplicate, and public content is linked right away when the file metadata is given. Content only held privately
+     * by other users is reported as an upload like unknown content, so the check reveals nothing about it: the upload,
+     * sent with its sha256, then proves the client holds the content and nothing is written.
+     */
+    public List<UploadCheckResultDTO> checkUploads(String userEmail, List<UploadCheckDTO> files, String downloadEndpoint) {
+        if (files == null || files.isEmpty()) {
+            throw new BadRequestException("No files to check");
+        }
+        if (files.size() > MAX_UPLOAD_CHECK_BATCH) {
+            throw new BadRequestException("Too many files to check. Max allowed is " + MAX_UPLOAD_CHECK_BATCH);
+        }
+
+        // One query per kind of lookup for the whole batch
+        Set<String> hashes = files.stream()
+                .map(UploadCheckDTO::getSha256)
+                .filter(Utils::isSHA256Hex)
+                .map(String::toLowerCase)
+                .collect(Collectors.toSet());
+        Set<String> fileNames = files.stream()
+                .map(UploadCheckDTO::getFileName)
+                .filter(StringUtils::isNotBlank)
+                .collect(Collectors.toSet());
+        Set<String> ownedHashes = hashes.isEmpty() ? new HashSet<>() : fileRepository.findOwnedHashes(hashes, userEmail);
+        Set<String> existingNames = fileNames.isEmpty() ? new HashSet<>() : fileRepository.findExistingFileNames(fileNames, userEmail);
+        Map<String, String> publicContent = hashes.isEmpty() ? Map.of() : fileRepository.findPublicContentTypes(hashes);
+
+        List<UploadCheckResultDTO> results = new ArrayList<>();
+        for (UploadCheckDTO file : files) {
+            results.add(checkUpload(userEmail, file, ownedHashes, existingNames, publicContent, downloadEndpoint));
+        }
+        return results;
+    }
+
+    private UploadCheckResultDTO checkUpload(String userEmail, UploadCheckDTO file, Set<String> ownedHashes, Set<String> existingNames,
+                                             Map<String, String> publicContent, String downloadEndpoint) {
+        UploadCheckResultDTO.UploadCheckResultDTOBuilder result = UploadCheckResultDTO.builder()
+                .sha256(file.getSha256())
+                .fileName(file.getFileName());
+        if (!Utils.isSHA256Hex(file.getSha256())) {
+            return result.status(UploadCheckStatus.INVALID).message("Expected hash must be a hex encoded SHA-256").build();
+        }
+        String fileHash = file.getSha256().toLowerCase();
+
+        if (ownedHashes.contains(fileHash)) {
+            return result.status(UploadCheckStatus.DUPLICATE).message("The same file is already uploaded.").build();
+        }
+        if (file.getFileName() != null && existingNames.contains(file.getFileName())) {
+            return result.status(UploadCheckStatus.DUPLICATE).message("File with that name already exists.").build();
+        }
+        if (!publicContent.containsKey(fileHash)) {
+            return result.status(UploadCheckStatus.UPLOAD_REQUIRED).build();
+        }
+        if (file.getFileName() == null || file.getAccessLevel() == null) {
+            return result.status(UploadCheckStatus.AVAILABLE).build();
+        }
+
+        FileUploadDTO fileMeta = new FileUploadDTO(file.getAccessLevel(), file.getFileName(), file.getTags());
+        try {
+            validateFileMeta(fileMeta);
+        } catch (BadRequestException ex) {
+            return result.status(UploadCheckStatus.INVALID).message(ex.getMessage()).build();
+        }
+
+        StoredContent shared = blobRepository.reserve(fileHash);
+        if (shared == null) {
+            // The last file using it was removed in the meantime
+            return result.status(UploadCheckStatus.UPLOAD_REQUIRED).build();
+        }
+        if (file.getSize() != null && file.getSize() != shared.getSize()) {
+            blobRepository.release(shared.getObjectId());
+            return result.status(UploadCheckStatus.INVALID).message("File size does not match its SHA-256").build();
+        }
+
+        LocalDate time = LocalDate.now();
+        String fileId = UUID.randomUUID().toString();
+        FileInfo fileInfo = new FileInfo(fileId, file.getFileName(), shared.getSize(),
+                StringUtils.isNotBlank(file.getContentType()) ? file.getContentType() : publicContent.get(fileHash),
+                file.getTags() != null ? file.getTags().stream().map(String::toLowerCase).collect(Collectors.toList()) : null,
+                time, time, userEmail, file.getAccessLevel());
+        try {
+            ownerStatsService.checkQuota(userEmail, shared.getSize());
+            fileRepository.insertFile(fileInfo, shared, userEmail);
+        } catch (DuplicateEntryException ex) {
+            // Stored concurrently since the batch lookups
+            blobRepository.release(shared.getObjectId());
+            return result.status(UploadCheckStatus.DUPLICATE).message(ex.getMessage().trim()).build();
+        } catch (QuotaExceededException ex) {
+            blobRepository.release(shared.getObjectId());
+            return result.status(UploadCheckStatus.INVALID).message(ex.getMessage()).build();
+        } catch (RuntimeException ex) {
+            blobRepository.release(shared.getObjectId());
+            throw ex;
+        }
+        fileMetadataCache.invalidate(fileId);
+        fileFacetCache.invalidate(userEmail, fileInfo.getAccessLevel());
+        if (fileInfo.getAccessLevel() == AccessLevel.PUBLIC) {
+            publicListingCache.invalidate();
+        }
+
+        // Later entries of the same batch must see this file
+        ownedHashes.add(fileHash);
+        existingNames.add(file.getFileName());
+        return result
+                .status(UploadCheckStatus.LINKED)
+                .fileId(fileId)
+                .fileDownloadUrl(generateDownloadURL(downloadEndpoint, fileId))
+                .build();
+    }
+
     public void updateFile(String userEmail, String fileId, String newFileName, MultipartFile newFile) throws IOException, NoSuchAlgorithmException {
 
-        FileInfo existingFileInfo = fileRepository.findByIdAndOwner(fileId, userEmail);
+        FileInfo existingFileInfo = fileMetadataCache.getOwned(fileId, userEmail, fileRepository::findById);
         if (existingFileInfo == null) {
             throw new NotFoundException("File to update not found");
         }
@@ -118,46 +346,284 @@ public class FileService {
             if (!isValidFileNameFormat(newFileName)) {
                 throw new BadRequestException("File name should follow the format file_name.extension");
             }
-
-            if (fileRepository.isFileNameExists(newFileName, userEmail)) {
-                throw new DuplicateEntryException("File with the same name already exists.");
-            }
         }
 
-        String newFileHash = null;
+        StoredContent newContent = null;
         if (newFile != null) {
             if (newFile.isEmpty()){
                 throw new BadRequestException("File is empty");
             }
 
-            newFileHash = Utils.computeSHA256(newFile.getInputStream());
-            if (fileRepository.isFileHashExists(newFileHash, userEmail)) {
-                throw new DuplicateEntryException("File with the same content already exists.");
+            StoredContent pending;
+            try (InputStream inputStream = newFile.getInputStream()) {
+                // Only the chunks that changed are written when the current content is a blob
+                pending = existingFileInfo.getBlobId() != null
+                        ? blobRepository.storeDelta(inputStream, existingFileInfo.getBlobId())
+                        : blobRepository.store(inputStream);
             }
+            try {
+                ownerStatsService.checkQuota(userEmail, pending.getSize() - existingFileInfo.getSize());
+            } catch (QuotaExceededException ex) {
+                blobRepository.discard(pending);
+                throw ex;
+            }
+            // Duplicate names and content are rejected by the update itself, which releases the new content
+            newContent = new StoredContent(blobRepository.commit(pending), pending.getFileHash(), pending.getSize());
         }
 
-        fileRepository.updateFile(existingFileInfo.getFile(), newFileName, newFileHash, newFile);
+        applyUpdate(userEmail, existingFileInfo, newFileName, newContent);
+    }
+
+    /**
+     * Points the file to content already committed with a reference held for it, such as a version being restored.
+     * The reference is released if the file cannot take it.
+     */
+    public void replaceContent(String userEmail, String fileId, StoredContent newContent) throws IOException {
+        FileInfo existingFileInfo = fileMetadataCache.getOwned(fileId, userEmail, fileRepository::findById);
+        try {
+            if (existingFileInfo == null) {
+                throw new NotFoundException("File not found");
+            }
+            ownerStatsService.checkQuota(userEmail, newContent.getSize() - existingFileInfo.getSize());
+        } catch (RuntimeException ex) {
+            blobRepository.release(newContent.getObjectId());
+            throw ex;
+        }
+        applyUpdate(userEmail, existingFileInfo, null, newContent);
+    }
+
+    private void applyUpdate(String userEmail, FileInfo existingFileInfo, String newFileName, StoredContent newContent) throws IOException {
+        String fileId = existingFileInfo.getFileId();
+        try {
+            fileRepository.updateFile(existingFileInfo, newFileName, newContent);
+        } catch (IOException | RuntimeException ex) {
+            if (newContent != null) {
+                blobRepository.release(newContent.getObjectId());
+            }
+            // The cached record may be the one that no longer matches
+            fileMetadataCache.invalidate(fileId);
+            throw ex;
+        }
+        fileMetadataCache.invalidate(fileId);
+        fileContentCache.invalidate(fileId);
+        localDiskCache.invalidate(fileId);
+        if (newContent != null) {
+            fileFacetCache.invalidate(userEmail, existingFileInfo.getAccessLevel());
+        }
+        // Listings show the name and size
+        if (existingFileInfo.getAccessLevel() == AccessLevel.PUBLIC) {
+            publicListingCache.invalidate();
+        }
+    }
+
+    /**
+     * Turns keeping the content replaced by updates as versions on or off for one file.
+     */
+    public void setVersioning(String userEmail, String fileId, boolean enabled) {
+        FileInfo fileInfo = fileMetadataCache.getOwned(fileId, userEmail, fileRepository::findById);
+        if (fileInfo == null) {
+            throw new NotFoundException("File not found");
+        }
+        if (fileInfo.getBlobId() == null) {
+            throw new BadRequestException("Files stored before content sharing cannot keep versions, upload the content again first");
+        }
+        try {
+            fileRepository.setVersioned(fileInfo, enabled);
+        } finally {
+            fileMetadataCache.invalidate(fileId);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 of each chunk of the file and their tree root, readable by whoever may download the file.
+     */
+    public FileManifestDTO getFileManifest(String fileId) throws IOException, NoSuchAlgorithmException {
+        FileInfo fileInfo = fileMetadataCache.get(fileId, fileRepository::findById);
+        ChunkManifest manifest = fileInfo == null ? null : fileRepository.findManifest(fileInfo);
+        if (manifest == null) {
+            throw new NotFoundException("File not found");
+        }
+        return FileManifestDTO.fromManifest(fileId, fileInfo.getFileHash(), manifest);
     }
 
     public FileDownloadDTO downloadFile(String fileId) {
+        return downloadFile(fileId, DownloadPreconditions.builder().build());
+    }
+
+    public FileDownloadDTO downloadFile(String fileId, DownloadPreconditions preconditions) {
         logger.info("Got download request for " + fileId);
-        FileInfo fileInfo = fileRepository.findById(fileId);
+        FileInfo fileInfo = fileMetadataCache.get(fileId, fileRepository::findById);
 
         if (fileInfo == null) {
             throw new BadRequestException("File not found");
         }
 
-        return new FileDownloadDTO(fileRepository.getOutputStreamById(fileInfo.getFile().getObjectId()), fileInfo.getFileName());
+        // Older records may not hold the size, it is then read from the stored content
+        long fileLength = fileInfo.getSize() != null ? fileInfo.getSize() : fileRepository.findContentLength(fileInfo);
+        Instant lastModified = fileInfo.getUploadDate();
+        String eTag = fileInfo.getFileHash() != null ? "\"" + fileInfo.getFileHash() + "\"" : null;
+        String contentType = resolveContentType(fileInfo.getContentType());
+
+        FileDownloadDTO.FileDownloadDTOBuilder result = FileDownloadDTO.builder()
+                .fileName(fileInfo.getFileName())
+                .eTag(eTag)
+                .lastModified(lastModified);
+
+        // Answered from the fs.files lookup alone, no chunk is read
+        if (isNotModified(preconditions, eTag, lastModified)) {
+            return result.notModified(true).build();
+        }
+
+        String rangeHeader = preconditions.getRange();
+        List<MultipartByteRanges.Range> ranges = StringUtils.isNotBlank(rangeHeader) && isIfRangeSatisfied(preconditions.getIfRange(), eTag, lastModified)
+                ? resolveRanges(rangeHeader, fileLength) : List.of();
+
+        CachedContent cached = fileContentCache.get(fileId, fileInfo.getFileHash(), fileLength,
+                () -> fileRepository.openDownloadStream(fileInfo));
+        Path localFile = cached == null ? localDiskCache.find(fileId, fileInfo.getFileHash()) : null;
+        MultipartByteRanges.RangeOpener opener;
+        if (cached != null) {
+            opener = cached::openStream;
+        } else if (localFile != null) {
+            opener = (start, end) -> localDiskCache.openRange(localFile, start, end);
+        } else {
+            opener = (start, end) -> fileRepository.openRangeStream(fileInfo, start, end);
+        }
+
+        if (ranges.isEmpty()) {
+            InputStream fileStream = cached != null || localFile != null
+                    ? opener.open(0, fileLength - 1)
+                    : localDiskCache.populateWhileReading(fileId, fileInfo.getFileHash(), fileLength,
+                            fileRepository.openDownloadStream(fileInfo));
+            return result
+                    .fileStream(fileStream)
+                    .fileLength(fileLength)
+                    .contentType(contentType)
+                    .localFile(localFile)
+                    .build();
+        }
+
+        if (ranges.size() == 1) {
+            MultipartByteRanges.Range range = ranges.get(0);
+            return result
+                    .fileStream(opener.open(range.start, range.end))
+                    .fileLength(range.end - range.start + 1)
+                    .contentType(contentType)
+                    .contentRange("bytes " + range.start + "-" + range.end + "/" + fileLength)
+                    .partial(true)
+                    .localFile(localFile)
+                    .localFileStart(range.start)
+                    .build();
+        }
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        MultipartByteRanges body = new MultipartByteRanges(ranges, fileLength, boundary, contentType, opener);
+        return result
+                .fileStream(body.getBody())
+                .fileLength(body.getContentLength())
+                .contentType("multipart/byteranges; boundary=" + boundary)
+                .partial(true)
+                .build();
+    }
+
+    private String resolveContentType(String contentType) {
+        if (StringUtils.isBlank(contentType)) {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
+        try {
+            return MediaType.parseMediaType(contentType).toString();
+        } catch (InvalidMediaTypeException ex) {
+            return MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        }
     }
 
-    public List<FileInfoDTO> getFileList(String userMail, AccessLevel accessLevel, Set<String> tags, FileOrderBy orderBy,
-                                         Sort.Direction order, int page, int size, String downloadEndpoint) {
+    // If-None-Match takes precedence over If-Modified-Since (RFC 9110, 13.2.2)
+    private boolean isNotModified(DownloadPreconditions preconditions, String eTag, Instant lastModified) {
+        if (StringUtils.isNotBlank(preconditions.getIfNoneMatch())) {
+            if (eTag == null) {
+                return false;
+            }
+            for (String candidate : preconditions.getIfNoneMatch().split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || stripWeakPrefix(tag).equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Instant ifModifiedSince = parseHttpDate(preconditions.getIfModifiedSince());
+        return ifModifiedSince != null && !lastModified.truncatedTo(ChronoUnit.SECONDS).isAfter(ifModifiedSince);
+    }
+
+    // If-Range requires a strong match: weak entity tags never satisfy it
+    private boolean isIfRangeSatisfied(String ifRangeHeader, String eTag, Instant lastModified) {
+        if (StringUtils.isBlank(ifRangeHeader)) {
+            return true;
+        }
+        String validator = ifRangeHeader.trim();
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            return validator.equals(eTag);
+        }
+        Instant date = parseHttpDate(validator);
+        return date != null && date.equals(lastModified.truncatedTo(ChronoUnit.SECONDS));
+    }
+
+    private String stripWeakPrefix(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    private Instant parseHttpDate(String value) {
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    private List<MultipartByteRanges.Range> resolveRanges(String rangeHeader, long fileLength) {
+        List<HttpRange> httpRanges;
+        try {
+            httpRanges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException ex) {
+            // A malformed Range header is ignored and the whole file is served
+            logger.warn("Ignoring invalid Range header: " + rangeHeader);
+            return List.of();
+        }
+
+        List<MultipartByteRanges.Range> ranges = new ArrayList<>();
+        long requestedBytes = 0;
+        for (HttpRange httpRange : httpRanges) {
+            long start = httpRange.getRangeStart(fileLength);
+            long end = httpRange.getRangeEnd(fileLength);
+            // Unsatisfiable ranges are skipped as long as at least one of them can be served
+            if (start < fileLength && start <= end) {
+                ranges.add(new MultipartByteRanges.Range(start, end));
+                requestedBytes += end - start + 1;
+            }
+        }
+
+        if (ranges.isEmpty()) {
+            throw new RangeNotSatisfiableException("Requested range not satisfiable", fileLength);
+        }
+        if (ranges.size() > 1 && requestedBytes > fileLength) {
+            // Overlapping multi-range requests would cost more than sending the file once
+            return List.of();
+        }
+        return ranges;
+    }
+
+    public List<FileInfoDTO> getFileList(String userMail, AccessLevel accessLevel, Set<String> tags, TagMatch tagMatch,
+                                         FileOrderBy orderBy, Sort.Direction order, int page, int size, String downloadEndpoint) {
 
         if (size > MAX_PAGE_SIZE){
             throw new BadRequestException("Page size must be less than " + MAX_PAGE_SIZE);
         }
 
-        List<FileInfoDTO> result = fileRepository.findFileInfoListPagenated(userMail, accessLevel, tags, orderBy, order, page, size).stream().map(
+        List<FileInfoDTO> result = fileRepository.findFileInfoListPagenated(userMail, accessLevel, tags, tagMatch, orderBy, order, page, size).stream().map(
                 info -> {
                     String downloadUrl = generateDownloadURL(downloadEndpoint, info.getFileId()).toString();
                     return FileInfoDTO.fromFileInfo(info, downloadUrl);
@@ -165,7 +631,154 @@ public class FileService {
         return result;
     }
 
+    /**
+     * Cursor based variant of {@link #getFileList}: an empty cursor starts from the first file, and the returned
+     * cursor resumes after the last file of the page.
+     */
+    public FileListPage getFileListPage(String userMail, AccessLevel accessLevel, Set<String> tags, TagMatch tagMatch,
+                                        FileOrderBy orderBy, Sort.Direction order, String cursor, int size, String downloadEndpoint) {
+        if (size > MAX_PAGE_SIZE){
+            throw new BadRequestException("Page size must be less than " + MAX_PAGE_SIZE);
+        }
+        if (size < 1) {
+            throw new BadRequestException("Page size must be positive");
+        }
+
+        FileListCursor after = null;
+        if (StringUtils.isNotBlank(cursor)) {
+            after = FileListCursor.decode(cursor);
+            if (after.getOrderBy() != orderBy || (orderBy != null && after.getOrder() != order)) {
+                throw new BadRequestException("Cursor does not match the requested order");
+            }
+        }
+
+        // One extra file tells whether there is a next page
+        List<FileInfo> files = fileRepository.findFileInfoListAfter(userMail, accessLevel, tags, tagMatch, orderBy, order, after, size + 1);
+        String nextCursor = null;
+        if (files.size() > size) {
+            files = files.subList(0, size);
+            nextCursor = fileRepository.cursorAfter(files.get(size - 1), orderBy, order).encode();
+        }
+
+        List<FileInfoDTO> result = files.stream().map(
+                info -> {
+                    String downloadUrl = generateDownloadURL(downloadEndpoint, info.getFileId()).toString();
+                    return FileInfoDTO.fromFileInfo(info, downloadUrl);
+                }).collect(Collectors.toList());
+        return new FileListPage(result, nextCursor);
+    }
+
+    /**
+     * Writes every file {@link #getFileList} would list with the same filters as newline-delimited JSON, one
+     * {@link FileInfoDTO} per line, straight from a database cursor. Only one cursor batch is held at a time, and
+     * lines reach the output as its buffer fills. A failure after the first line leaves the output truncated, so
+     * readers should expect the number of lines they asked for only when the response completed.
+     */
+    public long exportFiles(String userMail, AccessLevel accessLevel, Set<String> tags, TagMatch tagMatch, FileOrderBy orderBy,
+                            Sort.Direction order, String downloadEndpoint, OutputStream output) throws IOException {
+        // Expanded per file instead of resolving the request URL every time
+        UriComponents downloadUrl = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path(downloadEndpoint + "/{fileId}")
+                .build();
+        ObjectWriter writer = objectMapper.writerFor(FileInfoDTO.class);
+        long count = 0;
+        try (MongoCursor<FileInfo> files = fileRepository.openFileInfoCursor(userMail, accessLevel, tags, tagMatch, orderBy, order);
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(output)
+                     .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+            while (files.hasNext()) {
+                FileInfo info = files.next();
+                writer.writeValue(generator, FileInfoDTO.fromFileInfo(info, downloadUrl.expand(info.getFileId()).toUri().toString()));
+                generator.writeRaw('\n');
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Listing of the PUBLIC files, the same for every user, as the JSON body of the response. Pages are served from
+     * {@link PublicListingCache} until a public file is written. A null cursor selects {@link #getFileList}, any
+     * other one {@link #getFileListPage}.
+     */
+    public CachedListing getPublicFileListing(Set<String> tags, TagMatch tagMatch, FileOrderBy orderBy, Sort.Direction order,
+                                              String cursor, int page, int size, String downloadEndpoint) {
+        String baseUrl = ServletUriComponentsBuilder.fromCurrentContextPath().toUriString();
+        return publicListingCache.get(baseUrl, tags, tagMatch, orderBy, order, cursor, page, size, () -> cursor != null
+                ? getFileListPage(null, AccessLevel.PUBLIC, tags, tagMatch, orderBy, order, cursor, size, downloadEndpoint)
+                : new FileListPage(getFileList(null, AccessLevel.PUBLIC, tags, tagMatch, orderBy, order, page, size, downloadEndpoint), null));
+    }
+
+    /**
+     * Lists the files whose name contains the query, ignoring case, best matches first, among the files
+     * {@link #getFileList} lists for the same owner and access level. Matches come from the in-memory file name
+     * index and only the records of the page are read.
+     */
+    public List<FileInfoDTO> searchFiles(String userMail, AccessLevel accessLevel, String query, int page, int size,
+                                         String downloadEndpoint) {
+        if (size > MAX_PAGE_SIZE){
+            throw new BadRequestException("Page size must be less than " + MAX_PAGE_SIZE);
+        }
+        if (size < 1 || page < 0) {
+            throw new BadRequestException("Page must not be negative and page size must be positive");
+        }
+        if (StringUtils.isBlank(query) || query.length() > MAX_SEARCH_QUERY_LENGTH) {
+            throw new BadRequestException("Search query must have between 1 and " + MAX_SEARCH_QUERY_LENGTH + " characters");
+        }
+        if ((long) (page + 1) * size > MAX_SEARCH_RESULTS) {
+            throw new BadRequestException("Only the first " + MAX_SEARCH_RESULTS + " results can be listed");
+        }
+        if (!fileNameIndex.isReady()) {
+            throw new ServiceUnavailableException("Search is not available yet, the file name index is being built");
+        }
+
+        List<String> ranked = fileNameIndex.search(userMail, accessLevel, query, (page + 1) * size);
+        if (ranked.size() <= page * size) {
+            return List.of();
+        }
+        List<String> fileIds = ranked.subList(page * size, ranked.size());
+        Map<String, FileInfo> records = fileRepository.findByIds(fileIds).stream()
+                .collect(Collectors.toMap(FileInfo::getFileId, info -> info));
+
+        // Writes of other instances only reach the index on its next rebuild, so the records are checked again
+        String lowerCaseQuery = query.toLowerCase(Locale.ROOT);
+        return fileIds.stream()
+                .map(records::get)
+                .filter(info -> info != null
+                        && info.getFileName() != null && info.getFileName().toLowerCase(Locale.ROOT).contains(lowerCaseQuery)
+                        && (accessLevel == AccessLevel.PUBLIC ? info.getAccessLevel() == AccessLevel.PUBLIC : Objects.equals(userMail, info.getOwner())))
+                .map(info -> FileInfoDTO.fromFileInfo(info, generateDownloadURL(downloadEndpoint, info.getFileId()).toString()))
+                .collect(Collectors.toList());
+    }
+
+    @Scheduled(fixedDelayString = "${filestorage.blobs.cleanup-interval:PT6H}",
+            initialDelayString = "${filestorage.blobs.cleanup-interval:PT6H}")
+    public void removeUnreferencedContent() {
+        int removed = blobRepository.removeUnreferenced(Instant.now().minus(UNREFERENCED_BLOB_GRACE));
+        if (removed > 0) {
+            logger.info("Removed " + removed + " unreferenced blobs");
+        }
+    }
+
+    /**
+     * Counts the files {@link #getFileList} would list with the same owner and access level, per tag, content type and
+     * size bucket. Counts are cached for a short time and refreshed after writes of this instance.
+     */
+    public FileFacetsDTO getFileFacets(String userMail, AccessLevel accessLevel) {
+        return fileFacetCache.get(userMail, accessLevel, () -> fileRepository.countFacets(userMail, accessLevel));
+    }
+
+    public OwnerStatsDTO getOwnerStats(String userEmail) {
+        return ownerStatsService.getStats(userEmail);
+    }
+
     public void deleteFile(String userEmail, String fileId) {
-        fileRepository.deleteFile(fileId, userEmail);
+        FileInfo deleted = fileRepository.deleteFile(fileId, userEmail);
+        fileMetadataCache.invalidate(fileId);
+        fileFacetCache.invalidate(userEmail, deleted.getAccessLevel());
+        if (deleted.getAccessLevel() == AccessLevel.PUBLIC) {
+            publicListingCache.invalidate();
+        }
+        fileContentCache.invalidate(fileId);
+        localDiskCache.invalidate(fileId);
     }
 }
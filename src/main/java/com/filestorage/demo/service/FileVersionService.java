@@ -0,0 +1,101 @@
+package com.filestorage.demo.service;
+
+import com.filestorage.demo.dto.FileVersionDTO;
+import com.filestorage.demo.exception.FileDownloadDTO;
+import com.filestorage.demo.exception.NotFoundException;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.FileVersion;
+import com.filestorage.demo.repository.FileVersionRepository;
+import com.filestorage.demo.repository.StoredContent;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Version history of files with versioning turned on: every content update keeps the replaced content as a version,
+ * which can be listed, downloaded and restored by the owner. Retention is enforced by a background job, so updates
+ * never wait on removing old versions.
+ */
+@Service
+public class FileVersionService {
+    private static Logger logger = LoggerFactory.getLogger(FileVersionService.class);
+
+    private final FileVersionRepository fileVersionRepository;
+    private final BlobRepository blobRepository;
+    private final FileService fileService;
+    // Zero keeps any number of versions
+    private final int maxVersions;
+    // Zero keeps versions of any age
+    private final Duration maxAge;
+
+    public FileVersionService(FileVersionRepository fileVersionRepository, BlobRepository blobRepository, FileService fileService,
+                              @Value("${filestorage.versions.max-count:10}") int maxVersions,
+                              @Value("${filestorage.versions.max-age:P30D}") Duration maxAge) {
+        this.fileVersionRepository = fileVersionRepository;
+        this.blobRepository = blobRepository;
+        this.fileService = fileService;
+        this.maxVersions = maxVersions;
+        this.maxAge = maxAge;
+    }
+
+    public List<FileVersionDTO> getVersions(String userEmail, String fileId) {
+        return fileVersionRepository.findByFile(fileId, userEmail).stream()
+                .map(FileVersionDTO::fromFileVersion)
+                .collect(Collectors.toList());
+    }
+
+    public FileDownloadDTO downloadVersion(String userEmail, String fileId, String versionId) {
+        FileVersion version = findVersion(userEmail, fileId, versionId);
+        return FileDownloadDTO.builder()
+                .fileStream(blobRepository.openDownloadStream(version.getBlobId()))
+                .fileLength(version.getSize())
+                .fileName(version.getFileName())
+                .contentType(version.getContentType() != null ? version.getContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE)
+                .eTag("\"" + version.getFileHash() + "\"")
+                .lastModified(version.getUploadDate())
+                .build();
+    }
+
+    /**
+     * Makes the content of a version the current content of the file. With versioning still on, the content
+     * replaced by the restore is kept as a version in turn; the restored version stays in the history.
+     */
+    public void restoreVersion(String userEmail, String fileId, String versionId) throws IOException {
+        FileVersion version = findVersion(userEmail, fileId, versionId);
+        // The version holds a reference, so the blob is there unless the version was pruned meanwhile
+        StoredContent content = blobRepository.reserve(version.getFileHash());
+        if (content == null) {
+            throw new NotFoundException("Version not found");
+        }
+        fileService.replaceContent(userEmail, fileId, content);
+    }
+
+    @Scheduled(fixedDelayString = "${filestorage.versions.prune-interval:PT1H}",
+            initialDelayString = "${filestorage.versions.prune-interval:PT1H}")
+    public void pruneVersions() {
+        Instant olderThan = maxAge.isZero() ? null : Instant.now().minus(maxAge);
+        int removed = fileVersionRepository.prune(maxVersions, olderThan);
+        if (removed > 0) {
+            logger.info("Removed " + removed + " file versions past retention");
+        }
+    }
+
+    private FileVersion findVersion(String userEmail, String fileId, String versionId) {
+        FileVersion version = ObjectId.isValid(versionId)
+                ? fileVersionRepository.findById(fileId, userEmail, new ObjectId(versionId)) : null;
+        if (version == null) {
+            throw new NotFoundException("Version not found");
+        }
+        return version;
+    }
+}
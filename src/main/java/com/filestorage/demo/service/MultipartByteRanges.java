@@ -0,0 +1,91 @@
+package com.filestorage.demo.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Builds a multipart/byteranges body (RFC 9110, 14.6) whose parts are opened one after another while
+ * the response is written, so only one range is read from storage at a time.
+ */
+@Getter
+class MultipartByteRanges {
+
+    @FunctionalInterface
+    interface RangeOpener {
+        InputStream open(long start, long end);
+    }
+
+    @AllArgsConstructor
+    static class Range {
+        final long start;
+        final long end;
+    }
+
+    private final InputStream body;
+    private final long contentLength;
+
+    MultipartByteRanges(List<Range> ranges, long fileLength, String boundary, String partContentType, RangeOpener opener) {
+        List<InputStream> parts = new ArrayList<>();
+        long length = 0;
+        for (Range range : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + partContentType + "\r\n"
+                    + "Content-Range: bytes " + range.start + "-" + range.end + "/" + fileLength + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            parts.add(new ByteArrayInputStream(header));
+            parts.add(new LazyInputStream(() -> opener.open(range.start, range.end)));
+            length += header.length + (range.end - range.start + 1);
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        parts.add(new ByteArrayInputStream(trailer));
+
+        this.body = new SequenceInputStream(Collections.enumeration(parts));
+        this.contentLength = length + trailer.length;
+    }
+
+    /**
+     * Defers opening the underlying stream to the first read, so ranges that were never reached are not opened.
+     */
+    private static class LazyInputStream extends InputStream {
+        private final Supplier<InputStream> supplier;
+        private InputStream delegate;
+
+        LazyInputStream(Supplier<InputStream> supplier) {
+            this.supplier = supplier;
+        }
+
+        private InputStream delegate() {
+            if (delegate == null) {
+                delegate = supplier.get();
+            }
+            return delegate;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return delegate().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return delegate().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.filestorage.demo.service;
+
+import com.filestorage.demo.dto.OwnerStatsDTO;
+import com.filestorage.demo.exception.QuotaExceededException;
+import com.filestorage.demo.repository.OwnerStats;
+import com.filestorage.demo.repository.OwnerStatsRepository;
+import com.mongodb.client.MongoCursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Instant;
+
+/**
+ * Storage quota and statistics of each owner, read from the counters of {@link OwnerStatsRepository}.
+ */
+@Service
+public class OwnerStatsService {
+    private static Logger logger = LoggerFactory.getLogger(OwnerStatsService.class);
+
+    private final OwnerStatsRepository ownerStatsRepository;
+    // Zero means no quota
+    private final long quotaBytes;
+
+    public OwnerStatsService(OwnerStatsRepository ownerStatsRepository,
+                             @Value("${filestorage.quota.max-size-per-owner:0B}") DataSize quota) {
+        this.ownerStatsRepository = ownerStatsRepository;
+        this.quotaBytes = quota.toBytes();
+    }
+
+    /**
+     * Rejects storing additionalBytes more for the owner when it would exceed the quota. Shrinking is always allowed.
+     * Uploads of the same owner running at the same time are each checked against the bytes stored before them,
+     * so together they may go over the quota by their own size. Versions kept by file versioning are not counted, their
+     * storage is bounded by the version retention instead.
+     */
+    public void checkQuota(String owner, long additionalBytes) {
+        if (quotaBytes <= 0 || additionalBytes <= 0) {
+            return;
+        }
+        long storedBytes = ownerStatsRepository.findByOwner(owner).getTotalBytes();
+        if (storedBytes + additionalBytes > quotaBytes) {
+            throw new QuotaExceededException("Storage quota exceeded. " + storedBytes + " of " + quotaBytes + " bytes are used");
+        }
+    }
+
+    public OwnerStatsDTO getStats(String owner) {
+        OwnerStats ownerStats = ownerStatsRepository.findByOwner(owner);
+        return OwnerStatsDTO.fromOwnerStats(ownerStats, quotaBytes > 0 ? quotaBytes : null);
+    }
+
+    @Scheduled(fixedDelayString = "${filestorage.stats.reconcile-interval:PT24H}",
+            initialDelayString = "${filestorage.stats.reconcile-interval:PT24H}")
+    public void reconcile() {
+        int repaired = 0;
+        try (MongoCursor<String> owners = ownerStatsRepository.openOwnerCursor()) {
+            while (owners.hasNext()) {
+                String owner = owners.next();
+                try {
+                    if (ownerStatsRepository.reconcile(owner)) {
+                        repaired++;
+                    }
+                } catch (RuntimeException ex) {
+                    logger.error("Failed to reconcile the storage stats of " + owner, ex);
+                }
+            }
+        }
+        if (repaired > 0) {
+            logger.info("Repaired the storage stats of " + repaired + " owners");
+        }
+    }
+
+    /**
+     * Recounts the owners whose counters may miss a change that was never applied, such as on a crash between the file
+     * write and its counter update, so they are off for minutes rather than until the next full reconcile.
+     */
+    @Scheduled(fixedDelayString = "${filestorage.stats.interrupted-check-interval:PT5M}",
+            initialDelayString = "${filestorage.stats.interrupted-check-interval:PT5M}")
+    public void reconcileInterrupted() {
+        for (String owner : ownerStatsRepository.findOwnersWithInterruptedChanges(Instant.now())) {
+            try {
+                if (ownerStatsRepository.reconcile(owner)) {
+                    logger.info("Repaired the storage stats of " + owner + " after an interrupted change");
+                }
+            } catch (RuntimeException ex) {
+                logger.error("Failed to reconcile the storage stats of " + owner, ex);
+            }
+        }
+    }
+}
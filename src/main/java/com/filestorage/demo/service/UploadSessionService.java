@@ -0,0 +1,188 @@
+package com.filestorage.demo.service;
+
+import com.filestorage.demo.dto.FileUploadDTO;
+import com.filestorage.demo.dto.FileUploadResponse;
+import com.filestorage.demo.dto.UploadPartDTO;
+import com.filestorage.demo.dto.UploadSessionDTO;
+import com.filestorage.demo.exception.BadRequestException;
+import com.filestorage.demo.exception.DuplicateEntryException;
+import com.filestorage.demo.exception.NotFoundException;
+import com.filestorage.demo.repository.UploadPart;
+import com.filestorage.demo.repository.UploadSession;
+import com.filestorage.demo.repository.UploadSessionRepository;
+import com.filestorage.demo.utils.Utils;
+import io.micrometer.common.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Resumable uploads: parts are uploaded in any order, possibly in parallel, and stitched into a single file on commit.
+ * Sessions that see no activity for the configured expiry are removed together with their parts, as are expired
+ * sessions whose commit has run for longer than the commit timeout and parts whose session is gone.
+ */
+@Service
+public class UploadSessionService {
+
+    private static Logger logger = LoggerFactory.getLogger(UploadSessionService.class);
+
+    private static final int MAX_PARTS = 10000;
+
+    private final UploadSessionRepository uploadSessionRepository;
+    private final FileService fileService;
+    private final Duration sessionExpiry;
+    private final Duration commitTimeout;
+
+    public UploadSessionService(UploadSessionRepository uploadSessionRepository, FileService fileService,
+                                @Value("${filestorage.upload-sessions.expiry:PT24H}") Duration sessionExpiry,
+                                @Value("${filestorage.upload-sessions.commit-timeout:PT6H}") Duration commitTimeout) {
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.fileService = fileService;
+        this.sessionExpiry = sessionExpiry;
+        this.commitTimeout = commitTimeout;
+    }
+
+    public UploadSessionDTO createSession(String userEmail, FileUploadDTO fileMeta, String contentType, String expectedHash) {
+        fileService.validateFileMeta(fileMeta);
+        if (StringUtils.isNotBlank(expectedHash) && !Utils.isSHA256Hex(expectedHash)) {
+            throw new BadRequestException("Expected hash must be a hex encoded SHA-256");
+        }
+
+        Instant now = Instant.now();
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), userEmail, fileMeta.getFileName(),
+                fileMeta.getAccessLevel(),
+                fileMeta.getTags() != null ? fileMeta.getTags().stream().map(String::toLowerCase).collect(Collectors.toList()) : null,
+                contentType, StringUtils.isNotBlank(expectedHash) ? expectedHash.toLowerCase() : null,
+                now, now.plus(sessionExpiry), false);
+        uploadSessionRepository.insert(session);
+
+        return new UploadSessionDTO(session.getSessionId(), session.getFileName(), session.getExpiresAt(), List.of());
+    }
+
+    public UploadPartDTO uploadPart(String userEmail, String sessionId, int partNumber, InputStream inputStream) throws IOException, NoSuchAlgorithmException {
+        if (partNumber < 1 || partNumber > MAX_PARTS) {
+            throw new BadRequestException("Part number must be between 1 and " + MAX_PARTS);
+        }
+        UploadSession session = findOpenSession(userEmail, sessionId);
+
+        UploadPart part = uploadSessionRepository.storePart(session.getSessionId(), partNumber, inputStream);
+        uploadSessionRepository.extendExpiry(session.getSessionId(), Instant.now().plus(sessionExpiry));
+        return UploadPartDTO.fromUploadPart(part);
+    }
+
+    public UploadSessionDTO getSession(String userEmail, String sessionId) {
+        UploadSession session = findSession(userEmail, sessionId);
+        List<UploadPartDTO> parts = uploadSessionRepository.findParts(sessionId).stream()
+                .map(UploadPartDTO::fromUploadPart)
+                .collect(Collectors.toList());
+        return new UploadSessionDTO(session.getSessionId(), session.getFileName(), session.getExpiresAt(), parts);
+    }
+
+    public FileUploadResponse commit(String userEmail, String sessionId, String downloadEndpoint) throws IOException, NoSuchAlgorithmException {
+        UploadSession session = findOpenSession(userEmail, sessionId);
+        if (!uploadSessionRepository.markCommitting(sessionId, userEmail)) {
+            throw new DuplicateEntryException("Upload session is already being committed or a part is still being stored");
+        }
+
+        FileUploadResponse response;
+        try {
+            List<UploadPart> parts = uploadSessionRepository.findParts(sessionId);
+            Set<Integer> received = parts.stream().map(UploadPart::getPartNumber).collect(Collectors.toCollection(HashSet::new));
+            int lastPart = parts.isEmpty() ? 0 : parts.get(parts.size() - 1).getPartNumber();
+            List<Integer> missing = IntStream.rangeClosed(1, lastPart).filter(n -> !received.contains(n)).boxed().toList();
+            if (parts.isEmpty() || !missing.isEmpty()) {
+                throw new BadRequestException("Missing parts: " + (parts.isEmpty() ? "1" : missing.toString()));
+            }
+
+            FileUploadDTO fileMeta = new FileUploadDTO(session.getAccessLevel(), session.getFileName(),
+                    session.getTags() != null ? new HashSet<>(session.getTags()) : null);
+            try (InputStream content = new SequenceInputStream(openParts(parts))) {
+                response = fileService.uploadFromStream(content, session.getContentType(), fileMeta, userEmail,
+                        downloadEndpoint, session.getExpectedHash());
+            }
+        } catch (RuntimeException | IOException | NoSuchAlgorithmException ex) {
+            // Keep the parts so the client can fix the session and commit again
+            uploadSessionRepository.markOpen(sessionId);
+            throw ex;
+        }
+
+        uploadSessionRepository.delete(sessionId);
+        return response;
+    }
+
+    public void abort(String userEmail, String sessionId) {
+        findSession(userEmail, sessionId);
+        uploadSessionRepository.delete(sessionId);
+    }
+
+    @Scheduled(fixedDelayString = "${filestorage.upload-sessions.cleanup-interval:PT1H}",
+            initialDelayString = "${filestorage.upload-sessions.cleanup-interval:PT1H}")
+    public void removeExpiredSessions() {
+        Instant now = Instant.now();
+        List<String> expired = uploadSessionRepository.findExpiredSessionIds(now, now.minus(commitTimeout));
+        for (String sessionId : expired) {
+            uploadSessionRepository.delete(sessionId);
+        }
+        if (!expired.isEmpty()) {
+            logger.info("Removed " + expired.size() + " expired upload sessions");
+        }
+
+        // A part of a live session is at most as old as the session's expiry, unless it was uploaded again since
+        int orphaned = uploadSessionRepository.deleteOrphanedParts(now.minus(sessionExpiry));
+        if (orphaned > 0) {
+            logger.info("Removed " + orphaned + " upload parts without a session");
+        }
+    }
+
+    private UploadSession findSession(String userEmail, String sessionId) {
+        UploadSession session = uploadSessionRepository.findByIdAndOwner(sessionId, userEmail);
+        if (session == null) {
+            throw new NotFoundException("Upload session not found");
+        }
+        return session;
+    }
+
+    private UploadSession findOpenSession(String userEmail, String sessionId) {
+        UploadSession session = findSession(userEmail, sessionId);
+        if (session.getExpiresAt().isBefore(Instant.now())) {
+            throw new NotFoundException("Upload session expired");
+        }
+        if (session.isCommitting()) {
+            throw new DuplicateEntryException("Upload session is already being committed or a part is still being stored");
+        }
+        return session;
+    }
+
+    // Parts are opened one at a time while the stitched stream is read
+    private Enumeration<InputStream> openParts(List<UploadPart> parts) {
+        Iterator<UploadPart> iterator = parts.iterator();
+        return new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return uploadSessionRepository.openPart(iterator.next().getObjectId());
+            }
+        };
+    }
+}
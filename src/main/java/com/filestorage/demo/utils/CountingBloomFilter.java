@@ -0,0 +1,79 @@
+package com.filestorage.demo.utils;
+
+/**
+ * Bloom filter with 4-bit counters instead of bits, so keys can be removed as well as added. Keys are given as two
+ * independent 64-bit hashes, from which the counter positions are derived by double hashing. Not thread safe.
+ * <p>
+ * A counter that reaches its maximum stays there, which only leaves extra positives. Only keys that were added may be
+ * removed: a key that was not added is ignored when it tests negative, but if it happens to test positive, removing it
+ * can hide keys sharing its counters.
+ */
+public class CountingBloomFilter {
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long MAX_COUNT = 0xF;
+
+    private final long[] words;
+    private final long counters;
+    private final int hashFunctions;
+
+    public CountingBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Expected insertions must be positive and the false positive rate within (0, 1)");
+        }
+        long optimalCounters = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.words = new long[Math.toIntExact((optimalCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD)];
+        this.counters = (long) words.length * COUNTERS_PER_WORD;
+        this.hashFunctions = Math.max(1, (int) Math.round((double) counters / expectedInsertions * Math.log(2)));
+    }
+
+    public void add(long hash1, long hash2) {
+        for (int i = 0; i < hashFunctions; i++) {
+            long position = position(hash1, hash2, i);
+            long count = get(position);
+            if (count < MAX_COUNT) {
+                set(position, count + 1);
+            }
+        }
+    }
+
+    public void remove(long hash1, long hash2) {
+        if (!mightContain(hash1, hash2)) {
+            return;
+        }
+        for (int i = 0; i < hashFunctions; i++) {
+            long position = position(hash1, hash2, i);
+            long count = get(position);
+            if (count < MAX_COUNT) {
+                set(position, count - 1);
+            }
+        }
+    }
+
+    public boolean mightContain(long hash1, long hash2) {
+        for (int i = 0; i < hashFunctions; i++) {
+            if (get(position(hash1, hash2, i)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return (long) words.length * Long.BYTES;
+    }
+
+    private long position(long hash1, long hash2, int i) {
+        return Math.floorMod(hash1 + i * hash2, counters);
+    }
+
+    private long get(long position) {
+        int shift = (int) (position % COUNTERS_PER_WORD) * 4;
+        return (words[(int) (position / COUNTERS_PER_WORD)] >>> shift) & MAX_COUNT;
+    }
+
+    private void set(long position, long count) {
+        int word = (int) (position / COUNTERS_PER_WORD);
+        int shift = (int) (position % COUNTERS_PER_WORD) * 4;
+        words[word] = (words[word] & ~(MAX_COUNT << shift)) | (count << shift);
+    }
+}
@@ -15,9 +15,24 @@ public class Utils {
             digest.update(buffer, 0, bytesRead);
         }
 
-        byte[] hashBytes = digest.digest();
+        return toHex(digest.digest());
+    }
+
+    public static boolean isSHA256Hex(String value) {
+        if (value == null || value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String toHex(byte[] bytes) {
         StringBuilder hexString = new StringBuilder();
-        for (byte b : hashBytes) {
+        for (byte b : bytes) {
             String hex = Integer.toHexString(0xff & b);
             if (hex.length() == 1) hexString.append('0');
             hexString.append(hex);
@@ -0,0 +1,80 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.repository.BlobChunkMap;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobChunkMapTest {
+    private final ObjectId blobId = new ObjectId();
+    private final ObjectId base = new ObjectId();
+    private final ObjectId older = new ObjectId();
+
+    @Test
+    void shouldMergeConsecutiveChunksOfTheSameOwner() {
+        BlobChunkMap chunkMap = new BlobChunkMap.Builder(blobId)
+                .add(base).add(base).add(base).add(blobId).add(blobId)
+                .build();
+
+        assertTrue(chunkMap.isDelta());
+        assertEquals(List.of(base), chunkMap.getSources());
+        assertEquals(List.of(0, 3, 0, 3, 5, -1), chunkMap.toList());
+        assertEquals(5, chunkMap.getChunkCount());
+        assertEquals(3, chunkMap.sharedChunks());
+    }
+
+    @Test
+    void shouldFindTheOwnerOfEachChunk() {
+        BlobChunkMap chunkMap = new BlobChunkMap.Builder(blobId)
+                .add(older).add(base).add(base).add(blobId).add(older)
+                .build();
+
+        assertEquals(older, chunkMap.ownerOf(0));
+        assertEquals(base, chunkMap.ownerOf(2));
+        assertEquals(blobId, chunkMap.ownerOf(3));
+        assertEquals(older, chunkMap.ownerOf(4));
+        assertEquals(List.of(older, base, blobId), chunkMap.owners());
+        assertThrows(IndexOutOfBoundsException.class, () -> chunkMap.ownerOf(5));
+    }
+
+    @Test
+    void shouldSplitRangesOnRunBoundaries() {
+        BlobChunkMap chunkMap = new BlobChunkMap.Builder(blobId)
+                .add(base).add(base).add(blobId).add(base)
+                .build();
+
+        assertEquals(List.of(
+                        new BlobChunkMap.Segment(base, 5, 19),
+                        new BlobChunkMap.Segment(blobId, 20, 29),
+                        new BlobChunkMap.Segment(base, 30, 32)),
+                chunkMap.segments(5, 32, 10));
+        assertEquals(List.of(new BlobChunkMap.Segment(blobId, 21, 22)), chunkMap.segments(21, 22, 10));
+        assertEquals(List.of(), chunkMap.segments(3, 2, 10));
+    }
+
+    @Test
+    void shouldRoundTripThroughItsStoredForm() {
+        BlobChunkMap chunkMap = new BlobChunkMap.Builder(blobId).add(base).add(blobId).build();
+
+        BlobChunkMap stored = BlobChunkMap.of(blobId, chunkMap.getSources(), chunkMap.toList());
+
+        assertEquals(base, stored.ownerOf(0));
+        assertEquals(blobId, stored.ownerOf(1));
+    }
+
+    @Test
+    void shouldHoldEveryChunkOfAFullBlob() {
+        BlobChunkMap chunkMap = BlobChunkMap.full(blobId, 3);
+
+        assertFalse(chunkMap.isDelta());
+        assertEquals(List.of(blobId), chunkMap.owners());
+        assertEquals(List.of(new BlobChunkMap.Segment(blobId, 0, 24)), chunkMap.segments(0, 24, 10));
+        assertEquals(0, BlobChunkMap.full(blobId, 0).getChunkCount());
+    }
+}
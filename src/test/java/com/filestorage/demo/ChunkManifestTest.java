@@ -0,0 +1,59 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.repository.ChunkManifest;
+import com.filestorage.demo.utils.Utils;
+import org.junit.jupiter.api.Test;
+
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ChunkManifestTest {
+
+    @Test
+    void shouldUseTheOnlyChunkHashAsRoot() throws Exception {
+        byte[] chunk = sha256("chunk".getBytes());
+
+        assertArrayEquals(chunk, ChunkManifest.treeRoot(chunk));
+    }
+
+    @Test
+    void shouldHashPairsAndCarryTheOddNodeUp() throws Exception {
+        byte[] a = sha256("a".getBytes());
+        byte[] b = sha256("b".getBytes());
+        byte[] c = sha256("c".getBytes());
+
+        byte[] expected = sha256(concat(sha256(concat(a, b)), c));
+
+        assertArrayEquals(expected, ChunkManifest.treeRoot(concat(concat(a, b), c)));
+    }
+
+    @Test
+    void shouldUseTheDigestOfNoBytesForEmptyContent() throws Exception {
+        assertArrayEquals(sha256(new byte[0]), ChunkManifest.treeRoot(new byte[0]));
+    }
+
+    @Test
+    void shouldListChunkHashesAsHex() throws Exception {
+        byte[] a = sha256("a".getBytes());
+        byte[] b = sha256("b".getBytes());
+
+        ChunkManifest manifest = new ChunkManifest(1, 2, concat(a, b));
+
+        assertEquals(List.of(Utils.toHex(a), Utils.toHex(b)), manifest.getChunkHashes());
+        assertEquals(Utils.toHex(sha256(concat(a, b))), manifest.getRootHash());
+    }
+
+    private byte[] sha256(byte[] bytes) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+
+    private byte[] concat(byte[] first, byte[] second) {
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+}
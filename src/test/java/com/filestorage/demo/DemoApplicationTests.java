@@ -1,11 +1,17 @@
 package com.filestorage.demo;
 
+import com.filestorage.demo.config.MongoIndexes;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
 
 @SpringBootTest
 class DemoApplicationTests {
 
+	// Creates the unique indexes at startup, which needs a database
+	@MockitoBean
+	private MongoIndexes mongoIndexes;
+
 	@Test
 	void contextLoads() {
 	}
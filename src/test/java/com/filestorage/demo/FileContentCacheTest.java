@@ -0,0 +1,68 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.cache.CachedContent;
+import com.filestorage.demo.cache.FileContentCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileContentCacheTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final FileContentCache cache = new FileContentCache(true, DataSize.ofKilobytes(1), DataSize.ofBytes(16), meterRegistry);
+    private final byte[] content = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private CachedContent get(String fileHash) {
+        return cache.get("123", fileHash, content.length, () -> {
+            loads.incrementAndGet();
+            return new ByteArrayInputStream(content);
+        });
+    }
+
+    @Test
+    void shouldLoadOnce_WhenContentRequestedTwice() throws IOException {
+        CachedContent first = get("hash");
+        CachedContent second = get("hash");
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        assertArrayEquals(content, second.openStream(0, content.length - 1).readAllBytes());
+        assertEquals(content.length, meterRegistry.get("cache.weighted.size").gauge().value());
+    }
+
+    @Test
+    void shouldReload_WhenStoredHashChanged() {
+        get("old");
+        CachedContent reloaded = get("new");
+
+        assertEquals("new", reloaded.getFileHash());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void shouldReload_WhenInvalidated() {
+        get("hash");
+        cache.invalidate("123");
+        get("hash");
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void shouldSkipCaching_WhenFileExceedsMaxObjectSize() {
+        CachedContent result = cache.get("big", "hash", 17, () -> {
+            loads.incrementAndGet();
+            return new ByteArrayInputStream(new byte[17]);
+        });
+
+        assertNull(result);
+        assertEquals(0, loads.get());
+    }
+}
@@ -1,10 +1,20 @@
 package com.filestorage.demo;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.filestorage.demo.cache.CachedListing;
 import com.filestorage.demo.config.SecurityConfiguration;
 import com.filestorage.demo.controller.FileStorageController;
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.dto.DownloadPreconditions;
 import com.filestorage.demo.dto.FileInfoDTO;
+import com.filestorage.demo.dto.FileListPage;
+import com.filestorage.demo.dto.FileManifestDTO;
+import com.filestorage.demo.dto.FileOrderBy;
+import com.filestorage.demo.dto.TagMatch;
 import com.filestorage.demo.dto.FileUploadResponse;
+import com.filestorage.demo.dto.UploadCheckDTO;
+import com.filestorage.demo.dto.UploadCheckResultDTO;
+import com.filestorage.demo.dto.UploadCheckStatus;
 import com.filestorage.demo.exception.FileDownloadDTO;
 import com.filestorage.demo.service.FileService;
 import org.junit.jupiter.api.Test;
@@ -12,15 +22,24 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.List;
+import java.util.Set;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
@@ -66,19 +85,99 @@ public class FileControllerTests {
 
     }
 
+    @Test
+    void testUploadFileStream() throws Exception {
+        FileUploadResponse mockResponse = FileUploadResponse.builder()
+                .fileDownloadUrl(URI.create("http://localhost:8080/files/download/123"))
+                .fileId("123")
+                .build();
+
+        when(fileService.uploadFileStream(any(), startsWith("text/plain"), argThat(meta -> "résumé test.txt".equals(meta.getFileName())
+                        && meta.getTags().equals(Set.of("a", "b"))), eq("user@example.com"), isNull(), any()))
+                .thenReturn(mockResponse);
+
+        mockMvc.perform(put(BASE_URL + "/upload")
+                        .param("email", "user@example.com")
+                        .header("X-Access-Level", "PUBLIC")
+                        .header("X-File-Name", "r%C3%A9sum%C3%A9%20test.txt")
+                        .header("X-File-Tags", "a,b")
+                        .contentType("text/plain")
+                        .content("Hello, World!"))
+                .andExpect(status().isCreated())
+                .andExpect(header().string("Location", "http://localhost:8080/files/download/123"))
+                .andExpect(jsonPath("$.fileId").value("123"));
+    }
+
+    @Test
+    void testCheckUploads() throws Exception {
+        String hash = "a".repeat(64);
+        when(fileService.checkUploads(eq("user@example.com"), any(), any())).thenReturn(List.of(
+                UploadCheckResultDTO.builder().sha256(hash).status(UploadCheckStatus.UPLOAD_REQUIRED).build()));
+
+        mockMvc.perform(post(BASE_URL + "/upload/check")
+                        .param("email", "user@example.com")
+                        .contentType("application/json")
+                        .content(objectMapper.writeValueAsString(List.of(new UploadCheckDTO(hash, 10L, null, null, null, null)))))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].sha256").value(hash))
+                .andExpect(jsonPath("$[0].status").value("UPLOAD_REQUIRED"));
+    }
+
     @Test
     void testDownloadFile() throws Exception {
         byte[] bytes = new byte[]{65, 66, 67};
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length);
-        baos.write(bytes, 0, bytes.length);
 
-        FileDownloadDTO mockDownload = new FileDownloadDTO( baos, "test.txt"); // "ABC" as byte array
+        FileDownloadDTO mockDownload = FileDownloadDTO.builder()
+                .fileStream(new ByteArrayInputStream(bytes)) // "ABC" as byte array
+                .fileLength(bytes.length)
+                .fileName("test.txt")
+                .build();
 
-        when(fileService.downloadFile("123")).thenReturn(mockDownload);
+        when(fileService.downloadFile("123", DownloadPreconditions.builder().build())).thenReturn(mockDownload);
 
         mockMvc.perform(get(BASE_URL + "/download/123"))
                 .andExpect(status().isOk())
-                .andExpect(header().string("Content-Disposition", "attachment; filename=\"test.txt\""));
+                .andExpect(header().string("Content-Disposition", "attachment; filename=\"test.txt\""))
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andExpect(header().longValue("Content-Length", 3))
+                .andExpect(content().bytes(bytes));
+    }
+
+    @Test
+    void testDownloadFileRange() throws Exception {
+        byte[] bytes = new byte[]{66, 67};
+
+        FileDownloadDTO mockDownload = FileDownloadDTO.builder()
+                .fileStream(new ByteArrayInputStream(bytes))
+                .fileLength(bytes.length)
+                .fileName("test.txt")
+                .contentRange("bytes 1-2/3")
+                .partial(true)
+                .build();
+
+        when(fileService.downloadFile("123", DownloadPreconditions.builder().range("bytes=1-").build())).thenReturn(mockDownload);
+
+        mockMvc.perform(get(BASE_URL + "/download/123").header("Range", "bytes=1-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 1-2/3"))
+                .andExpect(content().bytes(bytes));
+    }
+
+    @Test
+    void testDownloadFileNotModified() throws Exception {
+        FileDownloadDTO mockDownload = FileDownloadDTO.builder()
+                .fileName("test.txt")
+                .eTag("\"abc\"")
+                .lastModified(Instant.parse("2025-01-01T10:00:00Z"))
+                .notModified(true)
+                .build();
+
+        when(fileService.downloadFile("123", DownloadPreconditions.builder().ifNoneMatch("\"abc\"").build())).thenReturn(mockDownload);
+
+        mockMvc.perform(get(BASE_URL + "/download/123").header("If-None-Match", "\"abc\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"abc\""))
+                .andExpect(content().bytes(new byte[0]));
     }
 
     @Test
@@ -108,12 +207,12 @@ public class FileControllerTests {
                 "test1.xml", 4L, "text/plain", List.of("document"), LocalDate.of(2025, 2, 1),
                 LocalDate.of(2025, 2, 2), "user1");
 
-        when(fileService.getFileList(any(), any(), any(), any(), any(), anyInt(), anyInt(), any()))
+        when(fileService.getFileList(any(), any(), any(), any(), any(), any(), anyInt(), anyInt(), any()))
                 .thenReturn(List.of(mockFile1, mockFile2));
 
         mockMvc.perform(get(BASE_URL + "/list")
                         .param("email", "user@example.com")
-                        .param("accessLevel", "PUBLIC")
+                        .param("accessLevel", "PRIVATE")
                         .param("page", "0")
                         .param("size", "10"))
                 .andExpect(status().isOk())
@@ -122,6 +221,88 @@ public class FileControllerTests {
                 .andExpect(jsonPath("$[1].fileName").value("test1.xml"));
     }
 
+    @Test
+    void testListFilesWithEveryTag() throws Exception {
+        when(fileService.getFileList(any(), any(), any(), any(), any(), any(), anyInt(), anyInt(), any()))
+                .thenReturn(List.of());
+
+        mockMvc.perform(get(BASE_URL + "/list")
+                        .param("email", "user@example.com")
+                        .param("accessLevel", "PRIVATE")
+                        .param("tag", "backup", "document")
+                        .param("tagMatch", "ALL")
+                        .param("sortBy", "TAG")
+                        .param("order", "ASC"))
+                .andExpect(status().isOk());
+
+        verify(fileService).getFileList(eq("user@example.com"), eq(AccessLevel.PRIVATE), eq(Set.of("backup", "document")),
+                eq(TagMatch.ALL), eq(FileOrderBy.TAG), eq(Sort.Direction.ASC), eq(0), eq(50), any());
+    }
+
+    @Test
+    void testListFilesWithCursor() throws Exception {
+        FileInfoDTO file = new FileInfoDTO("http://localhost:8080/files/download/1", "1",
+                "test.doc", 4L, "text/plain", List.of("document"), LocalDate.of(2025, 2, 1),
+                LocalDate.of(2025, 2, 2), "user1");
+        when(fileService.getFileListPage(any(), any(), any(), any(), any(), any(), eq(""), anyInt(), any()))
+                .thenReturn(new FileListPage(List.of(file), "next"));
+
+        mockMvc.perform(get(BASE_URL + "/list")
+                        .param("email", "user@example.com")
+                        .param("accessLevel", "PRIVATE")
+                        .param("cursor", "")
+                        .param("size", "1"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "next"))
+                .andExpect(jsonPath("$[0].fileName").value("test.doc"));
+    }
+
+    @Test
+    void testListPublicFilesFromSerializedPage() throws Exception {
+        byte[] body = "[{\"fileId\":\"1\",\"fileName\":\"test.doc\"}]".getBytes(StandardCharsets.UTF_8);
+        when(fileService.getPublicFileListing(any(), eq(TagMatch.ANY), any(), any(), eq(""), eq(0), eq(1), any()))
+                .thenReturn(new CachedListing(body, "next"));
+
+        mockMvc.perform(get(BASE_URL + "/list")
+                        .param("email", "user@example.com")
+                        .param("accessLevel", "PUBLIC")
+                        .param("cursor", "")
+                        .param("size", "1"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+                .andExpect(header().string("X-Next-Cursor", "next"))
+                .andExpect(jsonPath("$[0].fileName").value("test.doc"));
+        verify(fileService, never()).getFileListPage(any(), any(), any(), any(), any(), any(), any(), anyInt(), any());
+    }
+
+    @Test
+    void testExportFiles() throws Exception {
+        when(fileService.exportFiles(eq("user@example.com"), eq(AccessLevel.PRIVATE), isNull(), eq(TagMatch.ANY), isNull(), isNull(),
+                any(), any())).thenAnswer(invocation -> {
+            invocation.getArgument(7, OutputStream.class).write("{\"fileId\":\"1\"}\n".getBytes(StandardCharsets.UTF_8));
+            return 1L;
+        });
+
+        mockMvc.perform(get(BASE_URL + "/export")
+                        .param("email", "user@example.com")
+                        .param("accessLevel", "PRIVATE"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson;charset=UTF-8"))
+                .andExpect(content().string("{\"fileId\":\"1\"}\n"));
+    }
+
+    @Test
+    void testGetFileManifest() throws Exception {
+        when(fileService.getFileManifest("123")).thenReturn(new FileManifestDTO("123", "c".repeat(64), 13, 261120,
+                "SHA-256", "a".repeat(64), List.of("a".repeat(64))));
+
+        mockMvc.perform(get(BASE_URL + "/123/manifest"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.chunkSize").value(261120))
+                .andExpect(jsonPath("$.rootHash").value("a".repeat(64)))
+                .andExpect(jsonPath("$.chunkHashes[0]").value("a".repeat(64)));
+    }
+
     @Test
     void testDeleteFile() throws Exception {
         doNothing().when(fileService).deleteFile(any(), any());
@@ -0,0 +1,160 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.repository.FileInfo;
+import com.filestorage.demo.repository.FileInfoCodec;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonDocumentWrapper;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FileInfoCodecTest {
+    private final FileInfoCodec codec = new FileInfoCodec(ZoneOffset.ofHours(-5));
+
+    @Test
+    void shouldDecodeStoredRecord() {
+        ObjectId id = new ObjectId();
+        ObjectId blobId = new ObjectId();
+        Instant uploadDate = Instant.parse("2025-03-02T03:00:00Z");
+        Document record = new Document("_id", id)
+                .append("filename", "report.pdf")
+                .append("length", 1234L)
+                .append("chunkSize", 261120)
+                .append("uploadDate", Date.from(uploadDate))
+                .append("metadata", new Document("contentType", "application/pdf")
+                        .append("owner", "user@example.com")
+                        .append("tags", List.of("document", "report"))
+                        .append("accessLevel", "PRIVATE")
+                        .append("createTime", Date.from(Instant.parse("2025-03-01T00:00:00Z")))
+                        .append("id", "file-1")
+                        .append("fileName", "report.pdf")
+                        .append("fileHash", "abc")
+                        .append("fileSize", 1234L)
+                        .append("blobId", blobId)
+                        .append("versioned", true));
+
+        FileInfo fileInfo = decode(record);
+
+        assertEquals("file-1", fileInfo.getFileId());
+        assertEquals("report.pdf", fileInfo.getFileName());
+        assertEquals(1234L, fileInfo.getSize());
+        assertEquals("application/pdf", fileInfo.getContentType());
+        assertEquals(List.of("document", "report"), fileInfo.getTags());
+        // Creation dates are stored at UTC midnight, modification dates follow the configured zone
+        assertEquals(LocalDate.of(2025, 3, 1), fileInfo.getCreationTime());
+        assertEquals(LocalDate.of(2025, 3, 1), fileInfo.getModificationTime());
+        assertEquals("user@example.com", fileInfo.getOwner());
+        assertEquals(AccessLevel.PRIVATE, fileInfo.getAccessLevel());
+        assertEquals(id, fileInfo.getObjectId());
+        assertEquals(261120, fileInfo.getChunkSize());
+        assertEquals(uploadDate, fileInfo.getUploadDate());
+        assertEquals("abc", fileInfo.getFileHash());
+        assertEquals(blobId, fileInfo.getBlobId());
+        assertTrue(fileInfo.isVersioned());
+    }
+
+    @Test
+    void shouldDecodeLegacyRecordWithNullsAndIntLength() {
+        Document record = new Document("_id", new ObjectId())
+                .append("length", 12)
+                .append("chunkSize", 4)
+                .append("uploadDate", new Date())
+                .append("md5", "ignored")
+                .append("metadata", new Document("contentType", null)
+                        .append("tags", null)
+                        .append("accessLevel", "PUBLIC")
+                        .append("createTime", new Date())
+                        .append("id", "file-2")
+                        .append("fileName", "old.txt"));
+
+        FileInfo fileInfo = decode(record);
+
+        assertEquals("file-2", fileInfo.getFileId());
+        assertEquals(12L, fileInfo.getSize());
+        assertNull(fileInfo.getContentType());
+        assertNull(fileInfo.getTags());
+        assertNull(fileInfo.getBlobId());
+        assertFalse(fileInfo.isVersioned());
+        assertEquals(AccessLevel.PUBLIC, fileInfo.getAccessLevel());
+    }
+
+    @Test
+    void shouldTakeSizeFromMetadata_WhenRecordHasNoLength() {
+        Document record = new Document("_id", new ObjectId())
+                .append("chunkSize", 4)
+                .append("uploadDate", new Date())
+                .append("metadata", new Document("accessLevel", "PRIVATE")
+                        .append("createTime", new Date())
+                        .append("id", "file-4")
+                        .append("fileName", "partial.txt")
+                        .append("fileSize", 7L));
+
+        FileInfo fileInfo = decode(record);
+
+        assertEquals(7L, fileInfo.getSize());
+    }
+
+    @Test
+    void shouldLeaveSizeEmpty_WhenRecordHoldsNoSize() {
+        Document record = new Document("_id", new ObjectId())
+                .append("chunkSize", 4)
+                .append("uploadDate", new Date())
+                .append("metadata", new Document("accessLevel", "PRIVATE")
+                        .append("createTime", new Date())
+                        .append("id", "file-5")
+                        .append("fileName", "unknown.txt"));
+
+        assertNull(decode(record).getSize());
+    }
+
+    @Test
+    void shouldDecodeWhatItEncodes() {
+        FileInfo fileInfo = new FileInfo("file-3", "photo.png", 42L, "image/png", List.of("photo"), LocalDate.of(2025, 3, 1),
+                LocalDate.of(2025, 3, 1), "user@example.com", AccessLevel.PUBLIC, new ObjectId(), 1024,
+                Instant.parse("2025-03-02T03:00:00Z"), "def", new ObjectId(), true);
+
+        BsonDocument encoded = new BsonDocument();
+        codec.encode(new BsonDocumentWriter(encoded), fileInfo, EncoderContext.builder().build());
+        FileInfo decoded = codec.decode(new BsonDocumentReader(encoded), DecoderContext.builder().build());
+
+        assertEquals(Instant.parse("2025-03-01T00:00:00Z").toEpochMilli(),
+                encoded.getDocument("metadata").getDateTime("createTime").getValue());
+        assertEquals(fileInfo.getFileId(), decoded.getFileId());
+        assertEquals(fileInfo.getFileName(), decoded.getFileName());
+        assertEquals(fileInfo.getSize(), decoded.getSize());
+        assertEquals(fileInfo.getContentType(), decoded.getContentType());
+        assertEquals(fileInfo.getTags(), decoded.getTags());
+        assertEquals(fileInfo.getCreationTime(), decoded.getCreationTime());
+        assertEquals(fileInfo.getModificationTime(), decoded.getModificationTime());
+        assertEquals(fileInfo.getOwner(), decoded.getOwner());
+        assertEquals(fileInfo.getAccessLevel(), decoded.getAccessLevel());
+        assertEquals(fileInfo.getObjectId(), decoded.getObjectId());
+        assertEquals(fileInfo.getChunkSize(), decoded.getChunkSize());
+        assertEquals(fileInfo.getUploadDate(), decoded.getUploadDate());
+        assertEquals(fileInfo.getFileHash(), decoded.getFileHash());
+        assertEquals(fileInfo.getBlobId(), decoded.getBlobId());
+        assertTrue(decoded.isVersioned());
+    }
+
+    private FileInfo decode(Document record) {
+        BsonDocument bson = BsonDocumentWrapper.asBsonDocument(record, MongoClientSettings.getDefaultCodecRegistry());
+        return codec.decode(new BsonDocumentReader(bson), DecoderContext.builder().build());
+    }
+}
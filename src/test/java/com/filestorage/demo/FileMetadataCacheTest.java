@@ -0,0 +1,80 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.cache.FileMetadataCache;
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.repository.FileInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileMetadataCacheTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final FileMetadataCache cache = new FileMetadataCache(true, 100, Duration.ofMinutes(1), Duration.ofSeconds(5), meterRegistry);
+    private final FileInfo fileInfo = new FileInfo("123", "test.txt", 13L, "text/plain", List.of("document"),
+            LocalDate.now(), LocalDate.now(), "user@example.com", AccessLevel.PRIVATE);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private FileInfo load(String fileId, FileInfo result) {
+        return cache.get(fileId, key -> {
+            loads.incrementAndGet();
+            return result;
+        });
+    }
+
+    @Test
+    void shouldLoadOnce_WhenLookedUpTwice() {
+        assertSame(fileInfo, load("123", fileInfo));
+        assertSame(fileInfo, load("123", fileInfo));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, meterRegistry.get("cache.gets").tag("result", "hit").functionCounter().count());
+        assertEquals(1, meterRegistry.get("cache.load.latency").timer().count());
+    }
+
+    @Test
+    void shouldCacheMissingFile() {
+        assertNull(load("404", null));
+        assertNull(load("404", fileInfo));
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void shouldReload_WhenInvalidated() {
+        load("404", null);
+        cache.invalidate("404");
+
+        assertSame(fileInfo, load("404", fileInfo));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void shouldHideFile_WhenOwnedByAnotherUser() {
+        load("123", fileInfo);
+
+        assertNull(cache.getOwned("123", "other@example.com", key -> fileInfo));
+        assertSame(fileInfo, cache.getOwned("123", "user@example.com", key -> fileInfo));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void shouldAlwaysLoad_WhenDisabled() {
+        FileMetadataCache disabled = new FileMetadataCache(false, 100, Duration.ofMinutes(1), Duration.ofSeconds(5), meterRegistry);
+        disabled.get("123", key -> {
+            loads.incrementAndGet();
+            return fileInfo;
+        });
+        disabled.get("123", key -> {
+            loads.incrementAndGet();
+            return fileInfo;
+        });
+
+        assertEquals(2, loads.get());
+    }
+}
@@ -0,0 +1,95 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.repository.FileNameIndex;
+import com.mongodb.client.MongoDatabase;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+public class FileNameIndexTest {
+    private static final String OWNER = "user@example.com";
+    private static final String OTHER = "other@example.com";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    // Built from an empty fs.files collection
+    private final FileNameIndex index = new FileNameIndex(mock(MongoDatabase.class, RETURNS_DEEP_STUBS), true, meterRegistry);
+
+    @BeforeEach
+    void setUp() {
+        assertFalse(index.isReady());
+        index.build();
+        assertTrue(index.isReady());
+        index.add("1", OWNER, "annual_report.pdf", AccessLevel.PRIVATE);
+        index.add("2", OWNER, "report.pdf", AccessLevel.PRIVATE);
+        index.add("3", OWNER, "Report_2024.xlsx", AccessLevel.PUBLIC);
+        index.add("4", OWNER, "support.txt", AccessLevel.PRIVATE);
+        index.add("5", OTHER, "report.pdf", AccessLevel.PUBLIC);
+    }
+
+    @Test
+    void shouldRankExactThenPrefixThenWordThenInnerMatches() {
+        assertEquals(List.of("2", "1"), index.search(OWNER, AccessLevel.PRIVATE, "Report.PDF", 10));
+        assertEquals(List.of("2", "3", "1"), index.search(OWNER, AccessLevel.PRIVATE, "report", 10));
+        // Inner matches only, shorter names first
+        assertEquals(List.of("2", "4", "3", "1"), index.search(OWNER, AccessLevel.PRIVATE, "port", 10));
+    }
+
+    @Test
+    void shouldKeepBestMatches_WhenLimited() {
+        assertEquals(List.of("2", "4"), index.search(OWNER, AccessLevel.PRIVATE, "port", 2));
+    }
+
+    @Test
+    void shouldMatchShortQueries() {
+        assertEquals(List.of("2", "3", "1"), index.search(OWNER, AccessLevel.PRIVATE, "re", 10));
+        assertEquals(List.of(), index.search(OWNER, AccessLevel.PRIVATE, "zz", 10));
+    }
+
+    @Test
+    void shouldSearchPublicFilesOfEveryOwner() {
+        assertEquals(List.of("5", "3"), index.search(OWNER, AccessLevel.PUBLIC, "report", 10));
+        assertEquals(List.of("5"), index.search(OTHER, AccessLevel.PRIVATE, "report", 10));
+        assertEquals(List.of(), index.search("nobody@example.com", AccessLevel.PRIVATE, "report", 10));
+    }
+
+    @Test
+    void shouldFollowRenamesAndRemovals() {
+        index.add("2", OWNER, "summary.pdf", AccessLevel.PRIVATE);
+        index.remove("3");
+
+        assertEquals(List.of("1"), index.search(OWNER, AccessLevel.PRIVATE, "report", 10));
+        assertEquals(List.of("2"), index.search(OWNER, AccessLevel.PRIVATE, "summ", 10));
+        assertEquals(List.of("5"), index.search(OWNER, AccessLevel.PUBLIC, "report", 10));
+        assertEquals(4, meterRegistry.get("search.index.files").gauge().value());
+        assertTrue(meterRegistry.get("search.index.memory").gauge().value() > 0);
+    }
+
+    @Test
+    void shouldTrackMemory_WhenFilesAreAddedAndRemoved() {
+        double before = meterRegistry.get("search.index.memory").gauge().value();
+
+        index.add("6", OWNER, "quarterly-figures.xlsx", AccessLevel.PUBLIC);
+        double added = meterRegistry.get("search.index.memory").gauge().value();
+        index.remove("6");
+
+        assertTrue(added > before);
+        // The name stays in the arrays until the next rebuild, only its lookup entry is freed
+        assertTrue(meterRegistry.get("search.index.memory").gauge().value() < added);
+        assertTrue(meterRegistry.get("search.index.memory").gauge().value() > before);
+    }
+
+    @Test
+    void shouldReplaceIndex_WhenRebuilt() {
+        index.build();
+
+        assertEquals(List.of(), index.search(OWNER, AccessLevel.PRIVATE, "report", 10));
+        assertEquals(0, meterRegistry.get("search.index.files").gauge().value());
+    }
+}
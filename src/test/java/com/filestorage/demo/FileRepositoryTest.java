@@ -0,0 +1,167 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.dto.FileOrderBy;
+import com.filestorage.demo.dto.TagMatch;
+import com.filestorage.demo.exception.DuplicateEntryException;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.FileInfo;
+import com.filestorage.demo.repository.FileNameIndex;
+import com.filestorage.demo.repository.FileRepository;
+import com.filestorage.demo.repository.FileVersionRepository;
+import com.filestorage.demo.repository.OwnedHashFilter;
+import com.filestorage.demo.repository.OwnerStatsRepository;
+import com.filestorage.demo.repository.StoredContent;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.data.domain.Sort;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+public class FileRepositoryTest {
+    private final MongoCollection<Document> files = mock(MongoCollection.class);
+    private final FindIterable<Document> found = mock(FindIterable.class);
+    private final MongoCollection<FileInfo> fileInfos = mock(MongoCollection.class);
+    private final OwnerStatsRepository ownerStatsRepository = mock(OwnerStatsRepository.class);
+    private FileRepository fileRepository;
+
+    private final FileInfo fileInfo = new FileInfo("123", "test.txt", null, "text/plain", List.of("document"),
+            LocalDate.now(), LocalDate.now(), "user@example.com", AccessLevel.PRIVATE);
+    private final StoredContent content = new StoredContent(new ObjectId(), "hash", 13);
+
+    @BeforeEach
+    void setUp() {
+        MongoDatabase database = mock(MongoDatabase.class);
+        when(database.getCodecRegistry()).thenReturn(MongoClientSettings.getDefaultCodecRegistry());
+        when(database.getCollection("fs.files", FileInfo.class)).thenReturn(fileInfos);
+        when(fileInfos.withCodecRegistry(any())).thenReturn(fileInfos);
+        when(database.getCollection("fs.files")).thenReturn(files);
+        when(files.find(any(Bson.class))).thenReturn(found);
+        when(found.projection(any())).thenReturn(found);
+        fileRepository = new FileRepository(mock(GridFSBucket.class), database, mock(BlobRepository.class), mock(FileVersionRepository.class),
+                new OwnedHashFilter(database, false, 1, 0.01), ownerStatsRepository, mock(FileNameIndex.class));
+    }
+
+    private MongoWriteException duplicateKey(String index) {
+        return new MongoWriteException(new WriteError(11000, "E11000 duplicate key error collection: fileserver.fs.files index: "
+                + index + " dup key: { metadata.owner: \"user@example.com\" }", new BsonDocument()), new ServerAddress(), Set.of());
+    }
+
+    @Test
+    void shouldReportNameAndContent_WhenNameIsDuplicate() {
+        doThrow(duplicateKey(FileRepository.OWNER_FILE_NAME_INDEX)).when(files).insertOne(any());
+        when(found.first()).thenReturn(new Document());
+
+        Exception exception = assertThrows(DuplicateEntryException.class,
+                () -> fileRepository.insertFile(fileInfo, content, "user@example.com"));
+
+        assertEquals("File with that name already exists. The same file is already uploaded. ", exception.getMessage());
+    }
+
+    @Test
+    void shouldReportName_WhenOnlyNameIsDuplicate() {
+        doThrow(duplicateKey(FileRepository.OWNER_FILE_NAME_INDEX)).when(files).insertOne(any());
+        when(found.first()).thenReturn(null);
+
+        Exception exception = assertThrows(DuplicateEntryException.class,
+                () -> fileRepository.insertFile(fileInfo, content, "user@example.com"));
+
+        assertEquals("File with that name already exists.  ", exception.getMessage());
+    }
+
+    @Test
+    void shouldReportContent_WhenContentIsDuplicate() {
+        doThrow(duplicateKey(FileRepository.OWNER_FILE_HASH_INDEX)).when(files).insertOne(any());
+
+        Exception exception = assertThrows(DuplicateEntryException.class,
+                () -> fileRepository.insertFile(fileInfo, content, "user@example.com"));
+
+        assertEquals(" The same file is already uploaded. ", exception.getMessage());
+        verify(files, never()).find(any(Bson.class));
+    }
+
+    @Test
+    void shouldRethrow_WhenOtherIndexIsViolated() {
+        MongoWriteException error = duplicateKey("metadata.id_1");
+        doThrow(error).when(files).insertOne(any());
+
+        assertSame(error, assertThrows(MongoWriteException.class,
+                () -> fileRepository.insertFile(fileInfo, content, "user@example.com")));
+    }
+
+    @Test
+    void shouldAnnounceStatsChangeBeforeInsert_AndCancelIt_WhenInsertFails() {
+        doThrow(duplicateKey(FileRepository.OWNER_FILE_HASH_INDEX)).when(files).insertOne(any());
+
+        assertThrows(DuplicateEntryException.class, () -> fileRepository.insertFile(fileInfo, content, "user@example.com"));
+
+        InOrder order = inOrder(ownerStatsRepository, files);
+        order.verify(ownerStatsRepository).beginChange("user@example.com");
+        order.verify(files).insertOne(any());
+        order.verify(ownerStatsRepository).cancelChange("user@example.com");
+        verify(ownerStatsRepository, never()).recordAdded(any(), any(), any(), anyLong());
+    }
+
+    @Test
+    void shouldRecordStatsChange_AfterInsert() {
+        fileRepository.insertFile(fileInfo, content, "user@example.com");
+
+        InOrder order = inOrder(ownerStatsRepository, files);
+        order.verify(ownerStatsRepository).beginChange("user@example.com");
+        order.verify(files).insertOne(any());
+        order.verify(ownerStatsRepository).recordAdded("user@example.com", List.of("document"), "text/plain", 13);
+        verify(ownerStatsRepository, never()).cancelChange(any());
+    }
+
+    @Test
+    void shouldStoreLowestTagAsSortKey() {
+        FileInfo tagged = new FileInfo("123", "test.txt", null, "text/plain", List.of("video", "backup", "document"),
+                LocalDate.now(), LocalDate.now(), "user@example.com", AccessLevel.PRIVATE);
+
+        fileRepository.insertFile(tagged, content, "user@example.com");
+
+        ArgumentCaptor<Document> record = ArgumentCaptor.forClass(Document.class);
+        verify(files).insertOne(record.capture());
+        assertEquals("backup", record.getValue().get("metadata", Document.class).getString("sortTag"));
+        assertEquals("backup", fileRepository.cursorAfter(tagged, FileOrderBy.TAG, Sort.Direction.ASC).getLastValue());
+    }
+
+    @Test
+    void shouldRequireEveryTagAndSortOnSortKey_WhenMatchingAll() {
+        FindIterable<FileInfo> listed = mock(FindIterable.class, RETURNS_SELF);
+        when(fileInfos.find(any(Bson.class))).thenReturn(listed);
+        doAnswer(invocation -> invocation.getArgument(0)).when(listed).into(any());
+
+        fileRepository.findFileInfoListPagenated("user@example.com", AccessLevel.PRIVATE, Set.of("Backup"), TagMatch.ALL,
+                FileOrderBy.TAG, Sort.Direction.DESC, 0, 10);
+
+        ArgumentCaptor<Bson> filter = ArgumentCaptor.forClass(Bson.class);
+        verify(fileInfos).find(filter.capture());
+        assertEquals(new Document("metadata.owner", "user@example.com")
+                .append("metadata.tags", new Document("$all", Set.of("backup"))), filter.getValue());
+        verify(listed).sort(new Document("metadata.sortTag", -1));
+    }
+}
@@ -1,21 +1,43 @@
 package com.filestorage.demo;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.filestorage.demo.cache.CachedContent;
+import com.filestorage.demo.cache.CachedListing;
+import com.filestorage.demo.cache.FileContentCache;
+import com.filestorage.demo.cache.FileFacetCache;
+import com.filestorage.demo.cache.FileMetadataCache;
+import com.filestorage.demo.cache.LocalDiskCache;
+import com.filestorage.demo.cache.PublicListingCache;
 import com.filestorage.demo.dto.*;
 import com.filestorage.demo.exception.BadRequestException;
 import com.filestorage.demo.exception.DuplicateEntryException;
+import com.filestorage.demo.exception.FileDownloadDTO;
 import com.filestorage.demo.exception.NotFoundException;
+import com.filestorage.demo.exception.QuotaExceededException;
+import com.filestorage.demo.exception.RangeNotSatisfiableException;
+import com.filestorage.demo.exception.ServiceUnavailableException;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.ChunkManifest;
 import com.filestorage.demo.repository.FileRepository;
 import com.filestorage.demo.repository.FileInfo;
+import com.filestorage.demo.repository.FileListCursor;
+import com.filestorage.demo.repository.FileNameIndex;
+import com.filestorage.demo.repository.StoredContent;
 import com.filestorage.demo.service.FileService;
+import com.filestorage.demo.service.OwnerStatsService;
 import com.filestorage.demo.service.TagService;
 import com.filestorage.demo.utils.Utils;
-import com.mongodb.client.gridfs.model.GridFSFile;
-import org.bson.Document;
+import com.mongodb.client.MongoCursor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockMultipartFile;
@@ -23,12 +45,17 @@ import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.data.domain.Sort;
+import org.springframework.util.unit.DataSize;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.util.*;
@@ -45,12 +72,45 @@ public class FileServiceTest {
     @Mock
     private FileRepository fileRepository;
 
+    @Mock
+    private BlobRepository blobRepository;
+
     @Mock
     private TagService tagService;
 
     @Mock
     private Utils utils;
 
+    @Mock
+    private FileContentCache fileContentCache;
+
+    @Mock
+    private LocalDiskCache localDiskCache;
+
+    @Spy
+    private FileMetadataCache fileMetadataCache = new FileMetadataCache(true, 100, Duration.ofMinutes(1), Duration.ofSeconds(5),
+            new SimpleMeterRegistry());
+
+    @Mock
+    private OwnerStatsService ownerStatsService;
+
+    @Spy
+    private FileFacetCache fileFacetCache = new FileFacetCache(true, 100, Duration.ofSeconds(30), new SimpleMeterRegistry());
+
+    @Mock
+    private FileNameIndex fileNameIndex;
+
+    @Mock
+    private MongoCursor<FileInfo> cursor;
+
+    // Dates as Spring Boot writes them
+    @Spy
+    private ObjectMapper objectMapper = JsonMapper.builder().findAndAddModules().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build();
+
+    @Spy
+    private PublicListingCache publicListingCache = new PublicListingCache(true, DataSize.ofMegabytes(1), Duration.ofSeconds(10),
+            objectMapper, new SimpleMeterRegistry());
+
     private MultipartFile mockFile;
     private FileUploadDTO fileMeta;
     private FileInfo existingFile;
@@ -59,6 +119,7 @@ public class FileServiceTest {
     private String fileId = "123";
     private final AccessLevel accessLevel = AccessLevel.PRIVATE;
     private final Set<String> tags = Set.of("document", "video");
+    private final TagMatch tagMatch = TagMatch.ALL;
     private final FileOrderBy orderBy = FileOrderBy.FILE_NAME;
     private final Sort.Direction order = Sort.Direction.ASC;
     private final int page = 0;
@@ -71,7 +132,7 @@ public class FileServiceTest {
         fileMeta = new FileUploadDTO(AccessLevel.PUBLIC, "test.txt", new HashSet<>(Arrays.asList("document", "backup")));
 
         existingFile = new FileInfo(fileId, "oldFile.txt", 12345L, "text/plain",
-                Collections.singletonList("backup"), LocalDate.now(), LocalDate.now(), userEmail, AccessLevel.PUBLIC, null);
+                Collections.singletonList("backup"), LocalDate.now(), LocalDate.now(), userEmail, AccessLevel.PUBLIC);
 
         MockHttpServletRequest request = new MockHttpServletRequest();
         request.setServerName("localhost");
@@ -117,10 +178,13 @@ public class FileServiceTest {
     }
 
     @Test
-    void shouldThrowException_WhenDuplicateFileNameOrHash() throws IOException, NoSuchAlgorithmException {
-        when(fileRepository.isFileNameExists("test.txt", userEmail)).thenReturn(true);
-        when(fileRepository.isFileHashExists(anyString(), eq(userEmail))).thenReturn(true);
+    void shouldReleaseContent_WhenFileRecordIsDuplicate() throws IOException, NoSuchAlgorithmException {
+        ObjectId blobId = new ObjectId();
         when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.store(any())).thenReturn(new StoredContent(new ObjectId(), "hash", 13));
+        when(blobRepository.commit(any())).thenReturn(blobId);
+        doThrow(new DuplicateEntryException("File with that name already exists. The same file is already uploaded. "))
+                .when(fileRepository).insertFile(any(), any(), anyString());
 
         Exception exception = assertThrows(DuplicateEntryException.class, () ->
                 fileService.uploadFile(mockFile, fileMeta, userEmail, downloadEndpoint)
@@ -128,25 +192,205 @@ public class FileServiceTest {
 
         assertTrue(exception.getMessage().contains("File with that name already exists"));
         assertTrue(exception.getMessage().contains("The same file is already uploaded"));
+        verify(blobRepository).release(blobId);
+        verify(fileRepository, never()).isFileHashExists(any(), any());
     }
 
     @Test
     void shouldUploadFileSuccessfully() throws IOException, NoSuchAlgorithmException {
-        when(fileRepository.isFileNameExists("test.txt", userEmail)).thenReturn(false);
-        when(fileRepository.isFileHashExists(anyString(), eq(userEmail))).thenReturn(false);
         when(tagService.isValidTag(any())).thenReturn(true);
 
-        doNothing().when(fileRepository).uploadFile(any(), any(), anyString(), anyString());
+        ObjectId pendingId = new ObjectId();
+        ObjectId blobId = new ObjectId();
+        when(blobRepository.store(any())).thenReturn(new StoredContent(pendingId, "hash", 13));
+        when(blobRepository.commit(argThat(pending -> pending.getObjectId().equals(pendingId)))).thenReturn(blobId);
         FileUploadResponse response = fileService.uploadFile(mockFile, fileMeta, userEmail, downloadEndpoint);
 
         assertNotNull(response);
         assertNotNull(response.getFileId());
         assertNotNull(response.getFileDownloadUrl());
+        verify(fileRepository, times(1)).insertFile(any(),
+                argThat(content -> content.getObjectId().equals(blobId) && content.getSize() == 13), eq(userEmail));
+    }
+
+    @Test
+    void shouldReleaseContent_WhenFileRecordCannotBeStored() throws IOException, NoSuchAlgorithmException {
+        ObjectId blobId = new ObjectId();
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.store(any())).thenReturn(new StoredContent(new ObjectId(), "hash", 13));
+        when(blobRepository.commit(any())).thenReturn(blobId);
+        doThrow(new IllegalStateException("write failed")).when(fileRepository).insertFile(any(), any(), anyString());
+
+        assertThrows(IllegalStateException.class, () -> fileService.uploadFile(mockFile, fileMeta, userEmail, downloadEndpoint));
+
+        verify(blobRepository).release(blobId);
+    }
+
+    @Test
+    void shouldRejectUpload_WithoutStoringIt_WhenQuotaIsAlreadyUsed() {
+        when(tagService.isValidTag(any())).thenReturn(true);
+        doThrow(new QuotaExceededException("Storage quota exceeded")).when(ownerStatsService).checkQuota(userEmail, 13);
+
+        assertThrows(QuotaExceededException.class, () -> fileService.uploadFile(mockFile, fileMeta, userEmail, downloadEndpoint));
+
+        verifyNoInteractions(blobRepository);
+    }
+
+    @Test
+    void shouldReleaseContent_WhenStoredSizeExceedsQuota() throws IOException, NoSuchAlgorithmException {
+        ObjectId blobId = new ObjectId();
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.store(any())).thenReturn(new StoredContent(new ObjectId(), "hash", 100_000));
+        when(blobRepository.commit(any())).thenReturn(blobId);
+        // The prefix read before storing fits, the stored content does not
+        doAnswer(invocation -> {
+            if ((long) invocation.getArgument(1) > 13) {
+                throw new QuotaExceededException("Storage quota exceeded");
+            }
+            return null;
+        }).when(ownerStatsService).checkQuota(eq(userEmail), anyLong());
+
+        assertThrows(QuotaExceededException.class, () -> fileService.uploadFile(mockFile, fileMeta, userEmail, downloadEndpoint));
+
+        verify(blobRepository).release(blobId);
+        verify(fileRepository, never()).insertFile(any(), any(), anyString());
+    }
+
+    @Test
+    void shouldLinkSharedContent_WithoutStoringIt_WhenExpectedHashIsKnown() throws IOException, NoSuchAlgorithmException {
+        byte[] content = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+        String hash = Utils.computeSHA256(new ByteArrayInputStream(content));
+        ObjectId blobId = new ObjectId();
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.reserve(hash)).thenReturn(new StoredContent(blobId, hash, content.length));
+
+        fileService.uploadFileStream(new ByteArrayInputStream(content), "text/plain", fileMeta, userEmail, hash, downloadEndpoint);
+
+        verify(blobRepository, never()).store(any());
+        verify(fileRepository).insertFile(any(), argThat(stored -> stored.getObjectId().equals(blobId)), eq(userEmail));
+    }
+
+    @Test
+    void shouldReleaseSharedContent_WhenUploadedContentDoesNotMatch() throws IOException, NoSuchAlgorithmException {
+        String hash = Utils.computeSHA256(new ByteArrayInputStream("other".getBytes(StandardCharsets.UTF_8)));
+        ObjectId blobId = new ObjectId();
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.reserve(hash)).thenReturn(new StoredContent(blobId, hash, 5));
+
+        assertThrows(BadRequestException.class, () -> fileService.uploadFileStream(
+                new ByteArrayInputStream("Hello, World!".getBytes(StandardCharsets.UTF_8)), "text/plain", fileMeta, userEmail, hash, downloadEndpoint));
+
+        verify(blobRepository).release(blobId);
+        verify(fileRepository, never()).insertFile(any(), any(), anyString());
+    }
+
+    @Test
+    void shouldReleaseSharedContent_WhenUserAlreadyStoresIt() throws IOException, NoSuchAlgorithmException {
+        byte[] content = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+        String hash = Utils.computeSHA256(new ByteArrayInputStream(content));
+        ObjectId blobId = new ObjectId();
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.reserve(hash)).thenReturn(new StoredContent(blobId, hash, content.length));
+        doThrow(new DuplicateEntryException(" The same file is already uploaded. "))
+                .when(fileRepository).insertFile(any(), any(), anyString());
+
+        Exception exception = assertThrows(DuplicateEntryException.class, () -> fileService.uploadFileStream(
+                new ByteArrayInputStream(content), "text/plain", fileMeta, userEmail, hash, downloadEndpoint));
+
+        assertTrue(exception.getMessage().contains("The same file is already uploaded"));
+        verify(blobRepository).release(blobId);
+        verify(blobRepository, never()).store(any());
+    }
+
+    @Test
+    void shouldDetectContentType_WhenNotProvided() throws IOException, NoSuchAlgorithmException {
+        MultipartFile pdf = new MockMultipartFile("file", "test.txt", null, "%PDF-1.4 content".getBytes(StandardCharsets.US_ASCII));
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.store(any())).thenAnswer(invocation -> {
+            InputStream content = invocation.getArgument(0);
+            assertEquals("%PDF-1.4 content", new String(content.readAllBytes(), StandardCharsets.US_ASCII));
+            return new StoredContent(new ObjectId(), "hash", 16);
+        });
+
+        fileService.uploadFile(pdf, fileMeta, userEmail, downloadEndpoint);
+
+        verify(fileRepository).insertFile(argThat(info -> "application/pdf".equals(info.getContentType())), any(), eq(userEmail));
+    }
+
+    @Test
+    void shouldStreamRawUpload_AndDetectGenericContentType() throws IOException, NoSuchAlgorithmException {
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(blobRepository.store(any())).thenAnswer(invocation -> {
+            InputStream content = invocation.getArgument(0);
+            content.readAllBytes();
+            return new StoredContent(new ObjectId(), "hash", 16);
+        });
+
+        fileService.uploadFileStream(new ByteArrayInputStream("%PDF-1.4 content".getBytes(StandardCharsets.US_ASCII)),
+                "application/octet-stream", fileMeta, userEmail, null, downloadEndpoint);
+
+        verify(fileRepository).insertFile(argThat(info -> "application/pdf".equals(info.getContentType())),
+                argThat(content -> content.getSize() == 16), eq(userEmail));
+    }
+
+    @Test
+    void shouldRejectRawUpload_WithMalformedExpectedHash() {
+        assertThrows(BadRequestException.class, () -> fileService.uploadFileStream(
+                new ByteArrayInputStream(new byte[1]), null, fileMeta, userEmail, "not-a-hash", downloadEndpoint));
+        verifyNoInteractions(fileRepository);
+    }
+
+    @Test
+    void shouldLinkPublicContent_WhenCheckingUploads() {
+        String publicHash = "a".repeat(64);
+        String unknownHash = "b".repeat(64);
+        String ownedHash = "c".repeat(64);
+        ObjectId blobId = new ObjectId();
+        when(tagService.isValidTag(any())).thenReturn(true);
+        when(fileRepository.findOwnedHashes(anySet(), eq(userEmail))).thenReturn(new HashSet<>(Set.of(ownedHash)));
+        when(fileRepository.findExistingFileNames(anySet(), eq(userEmail))).thenReturn(new HashSet<>());
+        when(fileRepository.findPublicContentTypes(anySet())).thenReturn(Map.of(publicHash, "application/pdf"));
+        when(blobRepository.reserve(publicHash)).thenReturn(new StoredContent(blobId, publicHash, 42));
+
+        List<UploadCheckResultDTO> results = fileService.checkUploads(userEmail, List.of(
+                new UploadCheckDTO(publicHash, 42L, "report.pdf", AccessLevel.PRIVATE, Set.of("document"), null),
+                new UploadCheckDTO(publicHash.toUpperCase(), 42L, "copy.pdf", AccessLevel.PRIVATE, null, null),
+                new UploadCheckDTO(unknownHash, 10L, "new.bin", AccessLevel.PRIVATE, null, null),
+                new UploadCheckDTO(ownedHash, 10L, null, null, null, null),
+                new UploadCheckDTO("nope", 10L, null, null, null, null)), downloadEndpoint);
+
+        assertEquals(UploadCheckStatus.LINKED, results.get(0).getStatus());
+        assertNotNull(results.get(0).getFileId());
+        // Linked by the first entry of the same batch
+        assertEquals(UploadCheckStatus.DUPLICATE, results.get(1).getStatus());
+        assertEquals(UploadCheckStatus.UPLOAD_REQUIRED, results.get(2).getStatus());
+        assertEquals(UploadCheckStatus.DUPLICATE, results.get(3).getStatus());
+        assertEquals(UploadCheckStatus.INVALID, results.get(4).getStatus());
+        verify(fileRepository, times(1)).insertFile(
+                argThat(info -> "application/pdf".equals(info.getContentType()) && "report.pdf".equals(info.getFileName())),
+                argThat(content -> content.getObjectId().equals(blobId)), eq(userEmail));
+    }
+
+    @Test
+    void shouldReleaseContent_WhenDeclaredSizeDoesNotMatch() {
+        String publicHash = "a".repeat(64);
+        ObjectId blobId = new ObjectId();
+        when(fileRepository.findOwnedHashes(anySet(), eq(userEmail))).thenReturn(new HashSet<>());
+        when(fileRepository.findExistingFileNames(anySet(), eq(userEmail))).thenReturn(new HashSet<>());
+        when(fileRepository.findPublicContentTypes(anySet())).thenReturn(Map.of(publicHash, "application/pdf"));
+        when(blobRepository.reserve(publicHash)).thenReturn(new StoredContent(blobId, publicHash, 42));
+
+        List<UploadCheckResultDTO> results = fileService.checkUploads(userEmail, List.of(
+                new UploadCheckDTO(publicHash, 7L, "report.pdf", AccessLevel.PRIVATE, null, null)), downloadEndpoint);
+
+        assertEquals(UploadCheckStatus.INVALID, results.get(0).getStatus());
+        verify(blobRepository).release(blobId);
+        verify(fileRepository, never()).insertFile(any(), any(), anyString());
     }
 
     @Test
     void shouldThrowException_WhenFileNotFound() {
-        when(fileRepository.findByIdAndOwner(fileId, userEmail)).thenReturn(null);
+        when(fileRepository.findById(fileId)).thenReturn(null);
 
         Exception exception = assertThrows(NotFoundException.class, () ->
                 fileService.updateFile(userEmail, fileId, "newFile.txt", mockFile)
@@ -156,9 +400,10 @@ public class FileServiceTest {
     }
 
     @Test
-    void shouldThrowException_WhenRenamingToExistingFileName() {
-        when(fileRepository.findByIdAndOwner(fileId, userEmail)).thenReturn(existingFile);
-        when(fileRepository.isFileNameExists("newFile.txt", userEmail)).thenReturn(true);
+    void shouldThrowException_WhenRenamingToExistingFileName() throws IOException {
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+        doThrow(new DuplicateEntryException("File with the same name already exists."))
+                .when(fileRepository).updateFile(existingFile, "newFile.txt", null);
 
         Exception exception = assertThrows(DuplicateEntryException.class, () ->
                 fileService.updateFile(userEmail, fileId, "newFile.txt", null) // Renaming only
@@ -171,7 +416,7 @@ public class FileServiceTest {
     void shouldThrowException_WhenNewFileIsEmpty() {
         MultipartFile emptyFile = new MockMultipartFile("file", "empty.txt", "text/plain", new byte[0]);
 
-        when(fileRepository.findByIdAndOwner(fileId, userEmail)).thenReturn(existingFile);
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
 
         Exception exception = assertThrows(BadRequestException.class, () ->
                 fileService.updateFile(userEmail, fileId, null, emptyFile)
@@ -182,31 +427,111 @@ public class FileServiceTest {
 
     @Test
     void shouldThrowException_WhenNewFileContentIsDuplicate() throws IOException, NoSuchAlgorithmException {
-        when(fileRepository.findByIdAndOwner(fileId, userEmail)).thenReturn(existingFile);
-        when(fileRepository.isFileHashExists(any(), eq(userEmail))).thenReturn(true);
+        ObjectId blobId = new ObjectId();
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+        when(blobRepository.store(any())).thenReturn(new StoredContent(new ObjectId(), "hash", 13));
+        when(blobRepository.commit(any())).thenReturn(blobId);
+        doThrow(new DuplicateEntryException("File with the same content already exists."))
+                .when(fileRepository).updateFile(eq(existingFile), isNull(), any());
 
         Exception exception = assertThrows(DuplicateEntryException.class, () ->
                 fileService.updateFile(userEmail, fileId, null, mockFile)
         );
 
         assertEquals("File with the same content already exists.", exception.getMessage());
+        verify(blobRepository).release(blobId);
     }
 
     @Test
     void shouldUpdateFile_WhenRenamingOnly() throws IOException, NoSuchAlgorithmException {
-        when(fileRepository.findByIdAndOwner(fileId, userEmail)).thenReturn(existingFile);
-        when(fileRepository.isFileNameExists("newFile.txt", userEmail)).thenReturn(false);
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
 
-        doNothing().when(fileRepository).updateFile(any(), anyString(), any(), any());
+        doNothing().when(fileRepository).updateFile(any(), anyString(), any());
 
         fileService.updateFile(userEmail, fileId, "newFile.txt", null);
 
-        verify(fileRepository, times(1)).updateFile(existingFile.getFile(), "newFile.txt", null, null);
+        verify(fileRepository, times(1)).updateFile(existingFile, "newFile.txt", null);
+    }
+
+    @Test
+    void shouldUpdateFile_WhenUpdatingContent() throws IOException, NoSuchAlgorithmException {
+        ObjectId blobId = new ObjectId();
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+        when(blobRepository.store(any())).thenReturn(new StoredContent(new ObjectId(), "hash", 13));
+        when(blobRepository.commit(any())).thenReturn(blobId);
+
+        fileService.updateFile(userEmail, fileId, null, mockFile);
+
+        verify(fileRepository).updateFile(eq(existingFile), isNull(),
+                argThat(content -> content.getObjectId().equals(blobId) && "hash".equals(content.getFileHash())));
+        verify(fileContentCache).invalidate(fileId);
+    }
+
+    @Test
+    void shouldWriteOnlyChangedChunks_WhenUpdatingContentOfABlob() throws IOException, NoSuchAlgorithmException {
+        ObjectId currentBlobId = new ObjectId();
+        ObjectId blobId = new ObjectId();
+        FileInfo storedFile = new FileInfo(fileId, "oldFile.txt", 12345L, "text/plain", Collections.singletonList("backup"),
+                LocalDate.now(), LocalDate.now(), userEmail, AccessLevel.PUBLIC, null, 261120, null, "oldHash", currentBlobId);
+        when(fileRepository.findById(fileId)).thenReturn(storedFile);
+        when(blobRepository.storeDelta(any(), eq(currentBlobId))).thenReturn(new StoredContent(new ObjectId(), "hash", 13));
+        when(blobRepository.commit(any())).thenReturn(blobId);
+
+        fileService.updateFile(userEmail, fileId, null, mockFile);
+
+        verify(blobRepository, never()).store(any());
+        verify(fileRepository).updateFile(eq(storedFile), isNull(), argThat(content -> content.getObjectId().equals(blobId)));
+    }
+
+    @Test
+    void shouldReleaseRestoredContent_WhenItExceedsQuota() {
+        ObjectId blobId = new ObjectId();
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+        doThrow(new QuotaExceededException("Storage quota exceeded")).when(ownerStatsService).checkQuota(eq(userEmail), anyLong());
+
+        assertThrows(QuotaExceededException.class, () ->
+                fileService.replaceContent(userEmail, fileId, new StoredContent(blobId, "hash", 100_000)));
+
+        verify(blobRepository).release(blobId);
+        verifyNoMoreInteractions(fileRepository);
+    }
+
+    @Test
+    void shouldReplaceContent_WithCommittedContent() throws IOException {
+        StoredContent restored = new StoredContent(new ObjectId(), "hash", 13);
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+
+        fileService.replaceContent(userEmail, fileId, restored);
+
+        verify(fileRepository).updateFile(existingFile, null, restored);
+        verify(fileContentCache).invalidate(fileId);
+        verify(blobRepository, never()).release(any());
+    }
+
+    @Test
+    void shouldTurnVersioningOn() {
+        FileInfo storedFile = new FileInfo(fileId, "oldFile.txt", 12345L, "text/plain", Collections.singletonList("backup"),
+                LocalDate.now(), LocalDate.now(), userEmail, AccessLevel.PUBLIC, new ObjectId(), 261120, null, "oldHash", new ObjectId());
+        when(fileRepository.findById(fileId)).thenReturn(storedFile);
+
+        fileService.setVersioning(userEmail, fileId, true);
+
+        verify(fileRepository).setVersioned(storedFile, true);
+        verify(fileMetadataCache).invalidate(fileId);
+    }
+
+    @Test
+    void shouldRejectVersioning_OfFilesWithoutBlob() {
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+
+        assertThrows(BadRequestException.class, () -> fileService.setVersioning(userEmail, fileId, true));
+
+        verify(fileRepository, never()).setVersioned(any(), anyBoolean());
     }
 
  /*   @Test
     void shouldUpdateFile_WhenUpdatingContentOnly() throws IOException, NoSuchAlgorithmException {
-        when(fileRepository.findByIdAndOwner(fileId, userEmail)).thenReturn(existingFile);
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
         when(fileRepository.isFileHashExists(any(), eq(userEmail))).thenReturn(false);
 
         doNothing().when(fileRepository).updateFile(any(), any(), any(), any());
@@ -219,7 +544,7 @@ public class FileServiceTest {
 
 /*    @Test
     void shouldUpdateFile_WhenRenamingAndUpdatingContent() throws IOException, NoSuchAlgorithmException {
-        when(fileRepository.findByIdAndOwner(fileId, userEmail)).thenReturn(existingFile);
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
         when(fileRepository.isFileNameExists("newFile.txt", userEmail)).thenReturn(false);
         when(fileRepository.isFileHashExists(any(), eq(userEmail))).thenReturn(false);
 
@@ -230,6 +555,26 @@ public class FileServiceTest {
         verify(fileRepository, times(1)).updateFile(existingFile.getFile(), "newFile.txt", "newFileHash", mockFile);
     }*/
 
+    @Test
+    void shouldReturnChunkManifest() throws IOException, NoSuchAlgorithmException {
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+        when(fileRepository.findManifest(existingFile)).thenReturn(new ChunkManifest(4, 5, new byte[64]));
+
+        FileManifestDTO manifest = fileService.getFileManifest(fileId);
+
+        assertEquals(fileId, manifest.getFileId());
+        assertEquals(4, manifest.getChunkSize());
+        assertEquals(List.of("0".repeat(64), "0".repeat(64)), manifest.getChunkHashes());
+        assertEquals(Utils.toHex(ChunkManifest.treeRoot(new byte[64])), manifest.getRootHash());
+    }
+
+    @Test
+    void shouldThrowException_WhenFileNotFound_OnManifest() {
+        when(fileRepository.findById(fileId)).thenReturn(null);
+
+        assertThrows(NotFoundException.class, () -> fileService.getFileManifest(fileId));
+    }
+
     @Test
     void shouldThrowException_WhenFileNotFound_OnDownload() {
         when(fileRepository.findById(fileId)).thenReturn(null);
@@ -246,29 +591,182 @@ public class FileServiceTest {
     void shouldReturnFileDownloadDTO_WhenFileExists() throws IOException {
 
         byte[] fileContent = "Hello, World!".getBytes();
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(fileContent);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        inputStream.transferTo(outputStream);  // Copy data
+        GridFSDownloadStream downloadStream = mock(GridFSDownloadStream.class);
 
         when(fileRepository.findById(fileId)).thenReturn(existingFile);
-        when(fileRepository.getOutputStreamById(any())).thenReturn(outputStream);
+        when(fileRepository.openDownloadStream(any())).thenReturn(downloadStream);
 
         FileDownloadDTO result = fileService.downloadFile(fileId);
 
         assertNotNull(result);
         assertEquals("oldFile.txt", result.getFileName());
-        assertEquals(fileContent, result.getFileStream().toByteArray());
+        assertEquals(downloadStream, result.getFileStream());
 
         verify(fileRepository, times(1)).findById(fileId);
-        verify(fileRepository, times(1)).getOutputStreamById(existingFile.getFile().getObjectId());
+        verify(fileRepository, times(1)).openDownloadStream(existingFile.getFile().getObjectId());
     }*/
 
+    private FileInfo storedFile(long length) {
+        return new FileInfo(fileId, "video.mp4", length, "video/mp4", Collections.singletonList("video"),
+                LocalDate.now(), LocalDate.now(), userEmail, AccessLevel.PUBLIC,
+                new ObjectId(), 4, Instant.parse("2025-01-01T10:00:00Z"), "abc", new ObjectId());
+    }
+
+    @Test
+    void shouldReturnSingleRange_WhenRangeRequested() {
+        FileInfo info = storedFile(100);
+        InputStream rangeStream = new ByteArrayInputStream(new byte[10]);
+        when(fileRepository.findById(fileId)).thenReturn(info);
+        when(fileRepository.openRangeStream(info, 10, 19)).thenReturn(rangeStream);
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder().range("bytes=10-19").build());
+
+        assertTrue(result.isPartial());
+        assertEquals(10, result.getFileLength());
+        assertEquals("bytes 10-19/100", result.getContentRange());
+        assertSame(rangeStream, result.getFileStream());
+        verify(fileRepository, never()).openDownloadStream(any());
+    }
+
+    @Test
+    void shouldReadContentLength_WhenRecordHasNoSize() {
+        FileInfo info = new FileInfo(fileId, "video.mp4", null, "video/mp4", Collections.singletonList("video"),
+                LocalDate.now(), LocalDate.now(), userEmail, AccessLevel.PUBLIC,
+                new ObjectId(), 4, Instant.parse("2025-01-01T10:00:00Z"), "abc", new ObjectId());
+        InputStream rangeStream = new ByteArrayInputStream(new byte[10]);
+        when(fileRepository.findById(fileId)).thenReturn(info);
+        when(fileRepository.findContentLength(info)).thenReturn(100L);
+        when(fileRepository.openRangeStream(info, 90, 99)).thenReturn(rangeStream);
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder().range("bytes=-10").build());
+
+        assertTrue(result.isPartial());
+        assertEquals("bytes 90-99/100", result.getContentRange());
+        verify(fileRepository, times(1)).findContentLength(info);
+    }
+
+    @Test
+    void shouldReturnMultipartByteRanges_WhenSeveralRangesRequested() throws IOException {
+        FileInfo info = storedFile(100);
+        when(fileRepository.findById(fileId)).thenReturn(info);
+        when(fileRepository.openRangeStream(eq(info), anyLong(), anyLong())).thenAnswer(invocation -> {
+            long start = invocation.getArgument(1);
+            long end = invocation.getArgument(2);
+            return new ByteArrayInputStream("x".repeat((int) (end - start + 1)).getBytes(StandardCharsets.US_ASCII));
+        });
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder().range("bytes=0-1,-3").build());
+        byte[] body = result.getFileStream().readAllBytes();
+        String text = new String(body, StandardCharsets.US_ASCII);
+
+        assertTrue(result.isPartial());
+        assertTrue(result.getContentType().startsWith("multipart/byteranges; boundary="));
+        assertEquals(body.length, result.getFileLength());
+        assertTrue(text.contains("Content-Range: bytes 0-1/100"));
+        assertTrue(text.contains("Content-Range: bytes 97-99/100"));
+    }
+
+    @Test
+    void shouldThrowException_WhenRangeNotSatisfiable() {
+        when(fileRepository.findById(fileId)).thenReturn(storedFile(100));
+
+        RangeNotSatisfiableException exception = assertThrows(RangeNotSatisfiableException.class, () ->
+                fileService.downloadFile(fileId, DownloadPreconditions.builder().range("bytes=200-300").build())
+        );
+
+        assertEquals(100, exception.getFileLength());
+    }
+
+    @Test
+    void shouldReturnWholeFile_WhenIfRangeDoesNotMatch() {
+        FileInfo info = storedFile(100);
+        when(fileRepository.findById(fileId)).thenReturn(info);
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder()
+                .range("bytes=10-19")
+                .ifRange("\"other\"")
+                .build());
+
+        assertFalse(result.isPartial());
+        assertEquals(100, result.getFileLength());
+        verify(fileRepository, times(1)).openDownloadStream(info);
+    }
+
+    @Test
+    void shouldReturnNotModified_WhenETagMatches() {
+        when(fileRepository.findById(fileId)).thenReturn(storedFile(100));
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder().ifNoneMatch("W/\"abc\"").build());
+
+        assertTrue(result.isNotModified());
+        assertEquals("\"abc\"", result.getETag());
+        assertNull(result.getFileStream());
+        verify(fileRepository, never()).openDownloadStream(any());
+        verify(fileRepository, never()).openRangeStream(any(), anyLong(), anyLong());
+    }
+
+    @Test
+    void shouldReturnNotModified_WhenNotModifiedSinceDate() {
+        when(fileRepository.findById(fileId)).thenReturn(storedFile(100));
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder()
+                .ifModifiedSince("Wed, 01 Jan 2025 10:00:00 GMT")
+                .build());
+
+        assertTrue(result.isNotModified());
+    }
+
+    @Test
+    void shouldReturnWholeFile_WhenETagDoesNotMatch() {
+        FileInfo info = storedFile(100);
+        when(fileRepository.findById(fileId)).thenReturn(info);
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder()
+                .ifNoneMatch("\"other\"")
+                .ifModifiedSince("Wed, 01 Jan 2025 10:00:00 GMT")
+                .build());
+
+        assertFalse(result.isNotModified());
+        verify(fileRepository, times(1)).openDownloadStream(info);
+    }
+
+    @Test
+    void shouldServeRangeFromCache_WhenContentIsCached() throws IOException {
+        FileInfo info = storedFile(10);
+        CachedContent cached = new CachedContent("abc", ByteBuffer.wrap("0123456789".getBytes(StandardCharsets.US_ASCII)));
+        when(fileRepository.findById(fileId)).thenReturn(info);
+        when(fileContentCache.get(eq(fileId), eq("abc"), eq(10L), any())).thenReturn(cached);
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder().range("bytes=2-4").build());
+
+        assertEquals("234", new String(result.getFileStream().readAllBytes(), StandardCharsets.US_ASCII));
+        verify(fileRepository, never()).openRangeStream(any(), anyLong(), anyLong());
+        verify(fileRepository, never()).openDownloadStream(any());
+    }
+
+    @Test
+    void shouldServeRangeFromDisk_WhenContentIsOnLocalDisk() {
+        FileInfo info = storedFile(100);
+        Path localFile = Path.of("/cache/ab/cd/123.abc");
+        InputStream diskStream = new ByteArrayInputStream(new byte[10]);
+        when(fileRepository.findById(fileId)).thenReturn(info);
+        when(localDiskCache.find(fileId, "abc")).thenReturn(localFile);
+        when(localDiskCache.openRange(localFile, 50, 59)).thenReturn(diskStream);
+
+        FileDownloadDTO result = fileService.downloadFile(fileId, DownloadPreconditions.builder().range("bytes=50-59").build());
+
+        assertSame(diskStream, result.getFileStream());
+        assertEquals(localFile, result.getLocalFile());
+        assertEquals(50, result.getLocalFileStart());
+        verify(fileRepository, never()).openRangeStream(any(), anyLong(), anyLong());
+    }
+
     @Test
     void shouldThrowException_WhenPageSizeExceedsLimit() {
         int invalidSize = 200; // Assuming MAX_PAGE_SIZE is less than 200
 
         Exception exception = assertThrows(BadRequestException.class, () ->
-                fileService.getFileList(userEmail, accessLevel, tags, orderBy, order, page, invalidSize, downloadEndpoint)
+                fileService.getFileList(userEmail, accessLevel, tags, tagMatch, orderBy, order, page, invalidSize, downloadEndpoint)
         );
 
         assertEquals("Page size must be less than 100", exception.getMessage());
@@ -276,30 +774,28 @@ public class FileServiceTest {
 
     @Test
     void shouldReturnEmptyList_WhenNoFilesFound() {
-        when(fileRepository.findFileInfoListPagenated(userEmail, accessLevel, tags, orderBy, order, page, size))
+        when(fileRepository.findFileInfoListPagenated(userEmail, accessLevel, tags, tagMatch, orderBy, order, page, size))
                 .thenReturn(Collections.emptyList());
 
-        List<FileInfoDTO> result = fileService.getFileList(userEmail, accessLevel, tags, orderBy, order, page, size, downloadEndpoint);
+        List<FileInfoDTO> result = fileService.getFileList(userEmail, accessLevel, tags, tagMatch, orderBy, order, page, size, downloadEndpoint);
 
         assertNotNull(result);
         assertTrue(result.isEmpty());
 
-        verify(fileRepository, times(1)).findFileInfoListPagenated(userEmail, accessLevel, tags, orderBy, order, page, size);
+        verify(fileRepository, times(1)).findFileInfoListPagenated(userEmail, accessLevel, tags, tagMatch, orderBy, order, page, size);
     }
 
     @Test
     void shouldReturnFileList_WhenFilesExist() {
-        Document id = new Document();
-        GridFSFile file = new GridFSFile(id.toBsonDocument(), "aaa", 4L, 4, Date.from(Instant.now()), null);
         List<FileInfo> fileInfos = List.of(
-                new FileInfo("file1", "file1.txt", 1024L, "text/plain", Collections.singletonList("video"), LocalDate.now(), LocalDate.now(), userEmail, accessLevel, file),
-                new FileInfo("file2", "file2.txt", 2048L, "text/plain", Collections.singletonList("document"), LocalDate.now(), LocalDate.now(), userEmail, accessLevel, file)
+                new FileInfo("file1", "file1.txt", 1024L, "text/plain", Collections.singletonList("video"), LocalDate.now(), LocalDate.now(), userEmail, accessLevel),
+                new FileInfo("file2", "file2.txt", 2048L, "text/plain", Collections.singletonList("document"), LocalDate.now(), LocalDate.now(), userEmail, accessLevel)
         );
 
-        when(fileRepository.findFileInfoListPagenated(userEmail, accessLevel, tags, orderBy, order, page, size))
+        when(fileRepository.findFileInfoListPagenated(userEmail, accessLevel, tags, tagMatch, orderBy, order, page, size))
                 .thenReturn(fileInfos);
 
-        List<FileInfoDTO> result = fileService.getFileList(userEmail, accessLevel, tags, orderBy, order, page, size, downloadEndpoint);
+        List<FileInfoDTO> result = fileService.getFileList(userEmail, accessLevel, tags, tagMatch, orderBy, order, page, size, downloadEndpoint);
 
         assertNotNull(result);
         assertEquals(2, result.size());
@@ -308,13 +804,193 @@ public class FileServiceTest {
         assertTrue(result.get(0).getFileDownloadUrl().contains("/download/file1"));
         assertTrue(result.get(1).getFileDownloadUrl().contains("/download/file2"));
 
-        verify(fileRepository, times(1)).findFileInfoListPagenated(userEmail, accessLevel, tags, orderBy, order, page, size);
+        verify(fileRepository, times(1)).findFileInfoListPagenated(userEmail, accessLevel, tags, tagMatch, orderBy, order, page, size);
+    }
+
+    @Test
+    void shouldReturnSearchResultsInRankOrder_SkippingStaleNames() {
+        FileInfo exact = new FileInfo("file1", "report.pdf", 1024L, "application/pdf", List.of(), LocalDate.now(), LocalDate.now(), userEmail, accessLevel);
+        FileInfo renamed = new FileInfo("file2", "notes.txt", 2048L, "text/plain", List.of(), LocalDate.now(), LocalDate.now(), userEmail, accessLevel);
+        FileInfo inner = new FileInfo("file3", "annual_report.pdf", 4096L, "application/pdf", List.of(), LocalDate.now(), LocalDate.now(), userEmail, accessLevel);
+        when(fileNameIndex.isReady()).thenReturn(true);
+        when(fileNameIndex.search(userEmail, accessLevel, "Report", 10)).thenReturn(List.of("file1", "file2", "file3"));
+        when(fileRepository.findByIds(List.of("file1", "file2", "file3"))).thenReturn(List.of(inner, renamed, exact));
+
+        List<FileInfoDTO> result = fileService.searchFiles(userEmail, accessLevel, "Report", 0, 10, downloadEndpoint);
+
+        assertEquals(List.of("report.pdf", "annual_report.pdf"), result.stream().map(FileInfoDTO::getFileName).toList());
+    }
+
+    @Test
+    void shouldThrowServiceUnavailable_WhenSearchIndexIsNotReady() {
+        when(fileNameIndex.isReady()).thenReturn(false);
+
+        assertThrows(ServiceUnavailableException.class, () ->
+                fileService.searchFiles(userEmail, accessLevel, "report", 0, 10, downloadEndpoint));
+        verifyNoInteractions(fileRepository);
+    }
+
+    @Test
+    void shouldReturnNextCursor_WhenMoreFilesExist() {
+        FileInfo first = storedFile(10);
+        FileInfo second = storedFile(20);
+        FileListCursor cursor = new FileListCursor(FileOrderBy.FILE_NAME, Sort.Direction.ASC, "a.txt", new ObjectId());
+        when(fileRepository.findFileInfoListAfter(userEmail, accessLevel, null, null, FileOrderBy.FILE_NAME, Sort.Direction.ASC, null, 2))
+                .thenReturn(List.of(first, second));
+        when(fileRepository.cursorAfter(first, FileOrderBy.FILE_NAME, Sort.Direction.ASC)).thenReturn(cursor);
+
+        FileListPage result = fileService.getFileListPage(userEmail, accessLevel, null, null, FileOrderBy.FILE_NAME, Sort.Direction.ASC,
+                "", 1, downloadEndpoint);
+
+        assertEquals(1, result.getFiles().size());
+        assertEquals(cursor.encode(), result.getNextCursor());
+    }
+
+    @Test
+    void shouldResumeFromCursor_AndStopOnLastPage() {
+        ObjectId lastId = new ObjectId();
+        String cursor = new FileListCursor(FileOrderBy.FILE_SIZE, Sort.Direction.DESC, 42L, lastId).encode();
+        when(fileRepository.findFileInfoListAfter(eq(userEmail), eq(accessLevel), isNull(), isNull(), eq(FileOrderBy.FILE_SIZE),
+                eq(Sort.Direction.DESC), argThat(after -> lastId.equals(after.getLastId()) && Long.valueOf(42).equals(after.getLastValue())), eq(11)))
+                .thenReturn(List.of(storedFile(10)));
+
+        FileListPage result = fileService.getFileListPage(userEmail, accessLevel, null, null, FileOrderBy.FILE_SIZE, Sort.Direction.DESC,
+                cursor, 10, downloadEndpoint);
+
+        assertEquals(1, result.getFiles().size());
+        assertNull(result.getNextCursor());
+    }
+
+    @Test
+    void shouldRejectCursor_WhenOrderChanged() {
+        String cursor = new FileListCursor(FileOrderBy.FILE_SIZE, Sort.Direction.DESC, 42L, new ObjectId()).encode();
+
+        assertThrows(BadRequestException.class, () -> fileService.getFileListPage(userEmail, accessLevel, null, null,
+                FileOrderBy.FILE_NAME, Sort.Direction.DESC, cursor, 10, downloadEndpoint));
+        assertThrows(BadRequestException.class, () -> fileService.getFileListPage(userEmail, accessLevel, null, null,
+                FileOrderBy.FILE_SIZE, Sort.Direction.DESC, "not a cursor", 10, downloadEndpoint));
+        verifyNoInteractions(fileRepository);
     }
 
     @Test
     void shouldCallRepository_WhenDeletingFile() {
+        when(fileRepository.deleteFile(fileId, userEmail)).thenReturn(existingFile);
+
         fileService.deleteFile(userEmail, fileId);
         verify(fileRepository, times(1)).deleteFile(fileId, userEmail);
+        verify(fileMetadataCache, times(1)).invalidate(fileId);
+        verify(fileContentCache, times(1)).invalidate(fileId);
+        verify(localDiskCache, times(1)).invalidate(fileId);
+    }
+
+    @Test
+    void shouldCountFacetsOnce_UntilAPublicFileIsDeleted() {
+        FileFacetsDTO facets = new FileFacetsDTO(1, Map.of("backup", 1L), Map.of("text/plain", 1L), Map.of("<1MB", 1L));
+        when(fileRepository.countFacets(null, AccessLevel.PUBLIC)).thenReturn(facets);
+        when(fileRepository.countFacets(userEmail, AccessLevel.PRIVATE)).thenReturn(facets);
+        when(fileRepository.deleteFile(fileId, userEmail)).thenReturn(existingFile);
+
+        fileService.getFileFacets(null, AccessLevel.PUBLIC);
+        fileService.getFileFacets("other@example.com", AccessLevel.PUBLIC);
+        fileService.getFileFacets(userEmail, AccessLevel.PRIVATE);
+        fileService.getFileFacets(userEmail, AccessLevel.PRIVATE);
+        fileService.deleteFile(userEmail, fileId);
+        assertSame(facets, fileService.getFileFacets(null, AccessLevel.PUBLIC));
+        fileService.getFileFacets(userEmail, AccessLevel.PRIVATE);
+
+        // Public counts are shared by every user
+        verify(fileRepository, times(2)).countFacets(null, AccessLevel.PUBLIC);
+        verify(fileRepository, times(2)).countFacets(userEmail, AccessLevel.PRIVATE);
+    }
+
+    @Test
+    void shouldListPublicFilesOnce_UntilAPublicFileIsDeleted() {
+        FileInfo publicFile = new FileInfo("file1", "file1.txt", 1024L, "text/plain", List.of("document"), LocalDate.now(),
+                LocalDate.now(), "other@example.com", AccessLevel.PUBLIC);
+        when(fileRepository.findFileInfoListPagenated(null, AccessLevel.PUBLIC, tags, tagMatch, orderBy, order, page, size))
+                .thenReturn(List.of(publicFile));
+        FileInfo privateFile = new FileInfo(fileId, "private.txt", 12L, "text/plain", List.of(), LocalDate.now(), LocalDate.now(),
+                userEmail, AccessLevel.PRIVATE);
+        when(fileRepository.deleteFile(fileId, userEmail)).thenReturn(privateFile, existingFile);
+
+        CachedListing first = fileService.getPublicFileListing(tags, tagMatch, orderBy, order, null, page, size, downloadEndpoint);
+        fileService.deleteFile(userEmail, fileId);
+        assertSame(first, fileService.getPublicFileListing(tags, tagMatch, orderBy, order, null, page, size, downloadEndpoint));
+        fileService.deleteFile(userEmail, fileId);
+        CachedListing reloaded = fileService.getPublicFileListing(tags, tagMatch, orderBy, order, null, page, size, downloadEndpoint);
+
+        assertNotSame(first, reloaded);
+        assertArrayEquals(first.getBody(), reloaded.getBody());
+        assertTrue(new String(first.getBody(), StandardCharsets.UTF_8).contains("\"fileDownloadUrl\":\"http://localhost:8080/files/download/file1\""));
+        verify(fileRepository, times(2)).findFileInfoListPagenated(null, AccessLevel.PUBLIC, tags, tagMatch, orderBy, order, page, size);
+    }
+
+    @Test
+    void shouldExportEveryFileAsOneJsonLine_AndCloseTheCursor() throws IOException {
+        when(cursor.hasNext()).thenReturn(true, true, false);
+        when(cursor.next()).thenReturn(
+                new FileInfo("file1", "file1.txt", 1024L, "text/plain", List.of("document"), LocalDate.of(2025, 1, 1), LocalDate.of(2025, 1, 2), userEmail, accessLevel),
+                new FileInfo("file2", "file2.txt", 2048L, "text/plain", List.of(), LocalDate.of(2025, 2, 1), LocalDate.of(2025, 2, 2), userEmail, accessLevel));
+        when(fileRepository.openFileInfoCursor(userEmail, accessLevel, tags, tagMatch, orderBy, order)).thenReturn(cursor);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        long exported = fileService.exportFiles(userEmail, accessLevel, tags, tagMatch, orderBy, order, downloadEndpoint, output);
+
+        assertEquals(2, exported);
+        String[] lines = output.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        FileInfoDTO first = objectMapper.readValue(lines[0], FileInfoDTO.class);
+        assertEquals("file1.txt", first.getFileName());
+        assertEquals(LocalDate.of(2025, 1, 1), first.getCreationTime());
+        assertEquals("http://localhost:8080/files/download/file1", first.getFileDownloadUrl());
+        assertEquals("file2", objectMapper.readValue(lines[1], FileInfoDTO.class).getFileId());
+        verify(cursor).close();
+    }
+
+    @Test
+    void shouldLookUpFileOnce_WhenDownloadedTwice() {
+        FileInfo info = storedFile(100);
+        when(fileRepository.findById(fileId)).thenReturn(info);
+        when(fileRepository.openDownloadStream(info)).thenAnswer(invocation -> new ByteArrayInputStream(new byte[100]));
+
+        fileService.downloadFile(fileId);
+        fileService.downloadFile(fileId);
+
+        verify(fileRepository, times(1)).findById(fileId);
+        verify(fileRepository, times(2)).openDownloadStream(info);
+    }
+
+    @Test
+    void shouldCacheMissingFile_WhenDownloadedTwice() {
+        when(fileRepository.findById(fileId)).thenReturn(null);
+
+        assertThrows(BadRequestException.class, () -> fileService.downloadFile(fileId));
+        assertThrows(BadRequestException.class, () -> fileService.downloadFile(fileId));
+
+        verify(fileRepository, times(1)).findById(fileId);
+    }
+
+    @Test
+    void shouldNotUpdateFileOfAnotherUser_WhenRecordIsCached() {
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+        fileService.downloadFile(fileId);
+
+        Exception exception = assertThrows(NotFoundException.class, () ->
+                fileService.updateFile("other@example.com", fileId, "newFile.txt", null));
+
+        assertEquals("File to update not found", exception.getMessage());
+        verify(fileRepository, times(1)).findById(fileId);
+    }
+
+    @Test
+    void shouldReloadFile_WhenDownloadedAfterUpdate() throws IOException, NoSuchAlgorithmException {
+        when(fileRepository.findById(fileId)).thenReturn(existingFile);
+
+        fileService.downloadFile(fileId);
+        fileService.updateFile(userEmail, fileId, "newFile.txt", null);
+        fileService.downloadFile(fileId);
+
+        verify(fileRepository, times(2)).findById(fileId);
     }
 
     @Test
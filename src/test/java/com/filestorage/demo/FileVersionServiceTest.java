@@ -0,0 +1,111 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.dto.FileVersionDTO;
+import com.filestorage.demo.exception.FileDownloadDTO;
+import com.filestorage.demo.exception.NotFoundException;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.FileVersion;
+import com.filestorage.demo.repository.FileVersionRepository;
+import com.filestorage.demo.repository.StoredContent;
+import com.filestorage.demo.service.FileService;
+import com.filestorage.demo.service.FileVersionService;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class FileVersionServiceTest {
+    private final FileVersionRepository fileVersionRepository = mock(FileVersionRepository.class);
+    private final BlobRepository blobRepository = mock(BlobRepository.class);
+    private final FileService fileService = mock(FileService.class);
+    private final FileVersionService service = new FileVersionService(fileVersionRepository, blobRepository, fileService,
+            3, Duration.ofDays(7));
+    private final String owner = "user@example.com";
+    private final String fileId = "file-1";
+    private final FileVersion version = new FileVersion(new ObjectId(), fileId, owner, "report.pdf", "application/pdf", 5, "hash",
+            new ObjectId(), Instant.parse("2025-03-01T00:00:00Z"), Instant.parse("2025-03-02T00:00:00Z"));
+
+    @Test
+    void shouldListVersionsNewestFirst() {
+        when(fileVersionRepository.findByFile(fileId, owner)).thenReturn(List.of(version));
+
+        List<FileVersionDTO> versions = service.getVersions(owner, fileId);
+
+        assertEquals(1, versions.size());
+        assertEquals(version.getVersionId().toHexString(), versions.get(0).getVersionId());
+        assertEquals("report.pdf", versions.get(0).getFileName());
+        assertEquals("application/pdf", versions.get(0).getContentType());
+    }
+
+    @Test
+    void shouldDownloadVersionContent() {
+        when(fileVersionRepository.findById(fileId, owner, version.getVersionId())).thenReturn(version);
+        when(blobRepository.openDownloadStream(version.getBlobId())).thenReturn(new ByteArrayInputStream(new byte[5]));
+
+        FileDownloadDTO download = service.downloadVersion(owner, fileId, version.getVersionId().toHexString());
+
+        assertEquals(5, download.getFileLength());
+        assertEquals("\"hash\"", download.getETag());
+        assertEquals("report.pdf", download.getFileName());
+        assertEquals("application/pdf", download.getContentType());
+    }
+
+    @Test
+    void shouldDownloadAsOctetStream_WhenVersionHasNoContentType() {
+        FileVersion legacy = new FileVersion(new ObjectId(), fileId, owner, "report.pdf", null, 5, "hash",
+                new ObjectId(), null, Instant.parse("2025-03-02T00:00:00Z"));
+        when(fileVersionRepository.findById(fileId, owner, legacy.getVersionId())).thenReturn(legacy);
+        when(blobRepository.openDownloadStream(legacy.getBlobId())).thenReturn(new ByteArrayInputStream(new byte[5]));
+
+        FileDownloadDTO download = service.downloadVersion(owner, fileId, legacy.getVersionId().toHexString());
+
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM_VALUE, download.getContentType());
+    }
+
+    @Test
+    void shouldRejectUnknownVersionIds() {
+        assertThrows(NotFoundException.class, () -> service.downloadVersion(owner, fileId, "not-an-id"));
+        assertThrows(NotFoundException.class, () -> service.restoreVersion(owner, fileId, new ObjectId().toHexString()));
+        verifyNoInteractions(blobRepository);
+    }
+
+    @Test
+    void shouldRestoreVersionWithANewReference() throws Exception {
+        StoredContent reserved = new StoredContent(version.getBlobId(), "hash", 5);
+        when(fileVersionRepository.findById(fileId, owner, version.getVersionId())).thenReturn(version);
+        when(blobRepository.reserve("hash")).thenReturn(reserved);
+
+        service.restoreVersion(owner, fileId, version.getVersionId().toHexString());
+
+        verify(fileService).replaceContent(owner, fileId, reserved);
+    }
+
+    @Test
+    void shouldPruneByCountAndAge() {
+        when(fileVersionRepository.prune(eq(3), any())).thenReturn(2);
+
+        service.pruneVersions();
+
+        verify(fileVersionRepository).prune(eq(3), argThat(olderThan ->
+                Duration.between(olderThan, Instant.now()).minus(Duration.ofDays(7)).abs().toMinutes() < 1));
+    }
+
+    @Test
+    void shouldKeepVersionsOfAnyAge_WhenMaxAgeIsZero() {
+        new FileVersionService(fileVersionRepository, blobRepository, fileService, 3, Duration.ZERO).pruneVersions();
+
+        verify(fileVersionRepository).prune(anyInt(), isNull());
+    }
+}
@@ -0,0 +1,166 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.cache.LocalDiskCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalDiskCacheTest {
+    private static final String HASH = "abcdef0123";
+
+    @TempDir
+    Path directory;
+
+    private final byte[] content = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+
+    private void download(LocalDiskCache cache, String fileId) throws IOException {
+        try (InputStream stream = cache.populateWhileReading(fileId, HASH, content.length, new ByteArrayInputStream(content))) {
+            assertArrayEquals(content, stream.readAllBytes());
+        }
+    }
+
+    @Test
+    void shouldServeLocalCopy_WhenFileWasDownloadedOnce() throws IOException {
+        LocalDiskCache cache = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+
+        download(cache, "123");
+        Path localFile = cache.find("123", HASH);
+
+        assertNotNull(localFile);
+        assertTrue(localFile.startsWith(directory.resolve("ab").resolve("cd")));
+        try (InputStream range = cache.openRange(localFile, 7, 11)) {
+            assertEquals("World", new String(range.readAllBytes(), StandardCharsets.US_ASCII));
+        }
+        assertNull(cache.find("123", "otherhash"));
+    }
+
+    @Test
+    void shouldDiscardCopy_WhenDownloadIsInterrupted() throws IOException {
+        LocalDiskCache cache = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+
+        try (InputStream stream = cache.populateWhileReading("123", HASH, content.length, new ByteArrayInputStream(content))) {
+            stream.read(new byte[4]);
+        }
+
+        assertNull(cache.find("123", HASH));
+        try (var files = Files.walk(directory)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsed_WhenBudgetExceeded() throws IOException {
+        LocalDiskCache cache = new LocalDiskCache(true, directory, DataSize.ofBytes(content.length * 2L));
+
+        download(cache, "1");
+        download(cache, "2");
+        cache.find("1", HASH);
+        download(cache, "3");
+
+        assertNotNull(cache.find("1", HASH));
+        assertNull(cache.find("2", HASH));
+        assertNotNull(cache.find("3", HASH));
+    }
+
+    @Test
+    void shouldReloadEntries_WhenRestarted() throws IOException {
+        download(new LocalDiskCache(true, directory, DataSize.ofKilobytes(1)), "123");
+        Files.writeString(directory.resolve("leftover.tmp"), "partial");
+
+        LocalDiskCache restarted = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+
+        assertNotNull(restarted.find("123", HASH));
+        assertFalse(Files.exists(directory.resolve("leftover.tmp")));
+    }
+
+    @Test
+    void shouldDeleteInvalidatedCopy_OnTheSecondSweep() throws IOException {
+        LocalDiskCache cache = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+        download(cache, "123");
+        Path localFile = cache.find("123", HASH);
+
+        cache.invalidate("123");
+
+        assertNull(cache.find("123", HASH));
+        // The first sweep leaves a file just handed to sendfile the time to be opened
+        cache.sweep();
+        assertTrue(Files.exists(localFile));
+        cache.sweep();
+        assertFalse(Files.exists(localFile));
+        assertFalse(Files.exists(directory.resolve("pending-deletes")));
+    }
+
+    @Test
+    void shouldDropCopy_WhenInvalidatedWhileBeingWritten() throws IOException {
+        LocalDiskCache cache = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+
+        try (InputStream stream = cache.populateWhileReading("123", HASH, content.length, new ByteArrayInputStream(content))) {
+            stream.read(new byte[4]);
+            cache.invalidate("123");
+            stream.readAllBytes();
+        }
+
+        assertNull(cache.find("123", HASH));
+        try (var files = Files.walk(directory)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    void shouldKeepEvictedFile_WhileItIsRead() throws IOException {
+        LocalDiskCache cache = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+        download(cache, "123");
+        Path localFile = cache.find("123", HASH);
+
+        try (InputStream range = cache.openRange(localFile, 0, 4)) {
+            cache.invalidate("123");
+            cache.sweep();
+            cache.sweep();
+
+            assertTrue(Files.exists(localFile));
+            assertEquals("Hello", new String(range.readAllBytes(), StandardCharsets.US_ASCII));
+        }
+        // Closed as the controller does before handing the file to sendfile, so one more sweep first
+        cache.sweep();
+        assertTrue(Files.exists(localFile));
+        cache.sweep();
+
+        assertFalse(Files.exists(localFile));
+    }
+
+    @Test
+    void shouldDeleteFilesPendingAtShutdown_WhenRestarted() throws IOException {
+        LocalDiskCache cache = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+        download(cache, "123");
+        download(cache, "456");
+        Path invalidated = cache.find("123", HASH);
+        cache.invalidate("123");
+
+        LocalDiskCache restarted = new LocalDiskCache(true, directory, DataSize.ofKilobytes(1));
+
+        assertFalse(Files.exists(invalidated));
+        assertNull(restarted.find("123", HASH));
+        assertNotNull(restarted.find("456", HASH));
+        assertFalse(Files.exists(directory.resolve("pending-deletes")));
+    }
+
+    @Test
+    void shouldNotDeleteOutsideTheCache_WhenJournalListsOtherFiles() throws IOException {
+        Path cacheDirectory = Files.createDirectories(directory.resolve("cache"));
+        Path outside = Files.writeString(directory.resolve("outside.txt"), "keep");
+        Files.writeString(cacheDirectory.resolve("pending-deletes"), outside + System.lineSeparator());
+
+        new LocalDiskCache(true, cacheDirectory, DataSize.ofKilobytes(1));
+
+        assertTrue(Files.exists(outside));
+    }
+}
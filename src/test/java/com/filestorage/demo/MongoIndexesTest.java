@@ -0,0 +1,141 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.config.MongoIndexes;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.FileRepository;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ListIndexesIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+public class MongoIndexesTest {
+    private static final String RETIRED_INDEX = "metadata.owner_1_metadata.fileHash_1";
+
+    private final MongoDatabase database = mock(MongoDatabase.class);
+    private final MongoCollection<Document> files = mock(MongoCollection.class);
+    private final MongoCollection<Document> blobs = mock(MongoCollection.class);
+
+    @BeforeEach
+    void setUp() {
+        when(database.getCollection("fs.files")).thenReturn(files);
+        when(database.getCollection("blobs.files")).thenReturn(blobs);
+    }
+
+    private MongoCommandException commandError(int code) {
+        return new MongoCommandException(new BsonDocument("ok", new BsonInt32(0))
+                .append("code", new BsonInt32(code))
+                .append("errmsg", new BsonString("error " + code)), new ServerAddress());
+    }
+
+    private <T> void stubForEach(Iterable<T> iterable, List<T> values) {
+        doAnswer(invocation -> {
+            values.forEach(invocation.<Consumer<T>>getArgument(0));
+            return null;
+        }).when(iterable).forEach(any());
+    }
+
+    @Test
+    void shouldDropRetiredIndex_OnlyAfterUniqueIndexesExist() {
+        new MongoIndexes(database, true).ensureUniqueIndexes();
+
+        InOrder order = inOrder(files);
+        order.verify(files, times(2)).createIndexes(anyList());
+        order.verify(files).dropIndex(RETIRED_INDEX);
+    }
+
+    @Test
+    void shouldCreateBlobHashIndex_WhileStarting() {
+        new MongoIndexes(database, true).ensureUniqueIndexes();
+
+        verify(blobs).createIndexes(argThat(indexes -> indexes.size() == 1
+                && BlobRepository.HASH_INDEX.equals(indexes.get(0).getOptions().getName())
+                && indexes.get(0).getOptions().isUnique()));
+    }
+
+    @Test
+    void shouldFailWithDuplicates_WhenUniqueIndexCannotBeBuilt() {
+        when(files.createIndexes(anyList())).thenThrow(commandError(11000));
+        AggregateIterable<Document> duplicates = mock(AggregateIterable.class);
+        when(files.aggregate(anyList())).thenReturn(duplicates);
+        when(duplicates.allowDiskUse(true)).thenReturn(duplicates);
+        stubForEach(duplicates, List.of(new Document("_id", new Document("metadata_owner", "user@example.com")
+                .append("metadata_fileName", "report.pdf")).append("count", 2).append("ids", List.of("a", "b"))));
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> new MongoIndexes(database, true).ensureUniqueIndexes());
+
+        assertTrue(exception.getMessage().contains(FileRepository.OWNER_FILE_NAME_INDEX));
+        assertTrue(exception.getMessage().contains("report.pdf"));
+        verify(files, never()).dropIndex(anyString());
+    }
+
+    @Test
+    void shouldRestoreRetiredIndex_WhenReplacementFails() {
+        Document retired = new Document("name", RETIRED_INDEX)
+                .append("key", new Document("metadata.owner", 1).append("metadata.fileHash", 1));
+        ListIndexesIterable<Document> indexes = mock(ListIndexesIterable.class);
+        when(files.listIndexes()).thenReturn(indexes);
+        stubForEach(indexes, List.of(retired));
+        when(files.createIndexes(anyList()))
+                .thenReturn(List.of())
+                .thenThrow(commandError(85))
+                .thenThrow(commandError(11000));
+        AggregateIterable<Document> duplicates = mock(AggregateIterable.class);
+        when(files.aggregate(anyList())).thenReturn(duplicates);
+        when(duplicates.allowDiskUse(true)).thenReturn(duplicates);
+
+        assertThrows(IllegalStateException.class, () -> new MongoIndexes(database, true).ensureUniqueIndexes());
+
+        InOrder order = inOrder(files);
+        order.verify(files).dropIndex(RETIRED_INDEX);
+        order.verify(files).createIndex(eq(retired.get("key", Document.class)), any());
+    }
+
+    @Test
+    void shouldFailStartup_WhenCreationIsDisabledAndUniqueIndexIsMissing() {
+        ListIndexesIterable<Document> indexes = mock(ListIndexesIterable.class);
+        when(files.listIndexes()).thenReturn(indexes);
+        stubForEach(indexes, List.of(new Document("name", "_id_"), new Document("name", FileRepository.OWNER_FILE_NAME_INDEX)));
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> new MongoIndexes(database, false).ensureUniqueIndexes());
+
+        assertTrue(exception.getMessage().contains(FileRepository.OWNER_FILE_HASH_INDEX));
+        verify(files, never()).createIndexes(anyList());
+    }
+
+    @Test
+    void shouldFailStartup_WhenCreationIsDisabledAndBlobHashIndexIsMissing() {
+        ListIndexesIterable<Document> fileIndexes = mock(ListIndexesIterable.class);
+        when(files.listIndexes()).thenReturn(fileIndexes);
+        stubForEach(fileIndexes, List.of(new Document("name", FileRepository.OWNER_FILE_NAME_INDEX),
+                new Document("name", FileRepository.OWNER_FILE_HASH_INDEX)));
+        ListIndexesIterable<Document> blobIndexes = mock(ListIndexesIterable.class);
+        when(blobs.listIndexes()).thenReturn(blobIndexes);
+        stubForEach(blobIndexes, List.of(new Document("name", "_id_")));
+
+        Exception exception = assertThrows(IllegalStateException.class, () -> new MongoIndexes(database, false).ensureUniqueIndexes());
+
+        assertTrue(exception.getMessage().contains(BlobRepository.HASH_INDEX));
+        verify(blobs, never()).createIndexes(anyList());
+    }
+}
@@ -0,0 +1,79 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.repository.OwnedHashFilter;
+import com.filestorage.demo.utils.CountingBloomFilter;
+import com.mongodb.client.MongoDatabase;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+public class OwnedHashFilterTest {
+    private static final String OWNER = "user@example.com";
+    private static final String HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final String OTHER_HASH = "60303ae22b998861bce3b28f33eec1be758a213c86c93c076dbe9f558c11c752";
+
+    // An empty fs.files collection
+    private final MongoDatabase database = mock(MongoDatabase.class, RETURNS_DEEP_STUBS);
+
+    @Test
+    void shouldAllowEveryHash_UntilBuilt() {
+        OwnedHashFilter filter = new OwnedHashFilter(database, true, 1000, 0.01);
+
+        assertTrue(filter.mightContain(OWNER, HASH));
+        filter.build();
+        assertFalse(filter.mightContain(OWNER, HASH));
+    }
+
+    @Test
+    void shouldTrackAddedAndRemovedHashes_PerOwner() {
+        OwnedHashFilter filter = new OwnedHashFilter(database, true, 1000, 0.01);
+        filter.build();
+
+        filter.add(OWNER, HASH);
+        filter.add(OWNER, HASH);
+        assertTrue(filter.mightContain(OWNER, HASH));
+        assertFalse(filter.mightContain("other@example.com", HASH));
+        assertFalse(filter.mightContain(OWNER, OTHER_HASH));
+
+        // Two files of the same owner may briefly share content, the pair stays until both are gone
+        filter.remove(OWNER, HASH);
+        assertTrue(filter.mightContain(OWNER, HASH));
+        filter.remove(OWNER, HASH);
+        assertFalse(filter.mightContain(OWNER, HASH));
+    }
+
+    @Test
+    void shouldAllowEveryHash_WhenDisabled() {
+        OwnedHashFilter filter = new OwnedHashFilter(database, false, 1000, 0.01);
+        filter.build();
+
+        assertTrue(filter.mightContain(OWNER, HASH));
+        assertEquals(0, filter.sizeInBytes());
+    }
+
+    @Test
+    void shouldNeverMissAddedKeys_WhenOthersAreRemoved() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        Random random = new Random(42);
+        long[][] kept = new long[1000][2];
+        for (long[] key : kept) {
+            key[0] = random.nextLong();
+            key[1] = random.nextLong() | 1;
+            filter.add(key[0], key[1]);
+        }
+        for (int i = 0; i < 1000; i++) {
+            long hash1 = random.nextLong();
+            long hash2 = random.nextLong() | 1;
+            filter.add(hash1, hash2);
+            filter.remove(hash1, hash2);
+        }
+
+        for (long[] key : kept) {
+            assertTrue(filter.mightContain(key[0], key[1]));
+        }
+    }
+}
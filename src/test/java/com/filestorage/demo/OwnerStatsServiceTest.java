@@ -0,0 +1,97 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.dto.OwnerStatsDTO;
+import com.filestorage.demo.exception.QuotaExceededException;
+import com.filestorage.demo.repository.OwnerStats;
+import com.filestorage.demo.repository.OwnerStatsRepository;
+import com.filestorage.demo.service.OwnerStatsService;
+import com.mongodb.client.MongoCursor;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class OwnerStatsServiceTest {
+    private final OwnerStatsRepository ownerStatsRepository = mock(OwnerStatsRepository.class);
+    private final String owner = "user@example.com";
+
+    private void storing(long bytes) {
+        when(ownerStatsRepository.findByOwner(owner)).thenReturn(new OwnerStats(owner, 1, bytes,
+                Map.of("document", bytes), Map.of("text/plain", bytes)));
+    }
+
+    @Test
+    void shouldRejectUpload_WhenItExceedsQuota() {
+        OwnerStatsService service = new OwnerStatsService(ownerStatsRepository, DataSize.ofBytes(100));
+        storing(90);
+
+        service.checkQuota(owner, 10);
+        Exception exception = assertThrows(QuotaExceededException.class, () -> service.checkQuota(owner, 11));
+
+        assertTrue(exception.getMessage().contains("90 of 100 bytes"));
+    }
+
+    @Test
+    void shouldAllowShrinking_WhenOverQuota() {
+        OwnerStatsService service = new OwnerStatsService(ownerStatsRepository, DataSize.ofBytes(100));
+
+        service.checkQuota(owner, -50);
+
+        verifyNoInteractions(ownerStatsRepository);
+    }
+
+    @Test
+    void shouldNotReadCounters_WithoutQuota() {
+        OwnerStatsService service = new OwnerStatsService(ownerStatsRepository, DataSize.ofBytes(0));
+
+        service.checkQuota(owner, Long.MAX_VALUE / 2);
+
+        verifyNoInteractions(ownerStatsRepository);
+    }
+
+    @Test
+    void shouldReportStatsWithQuota() {
+        OwnerStatsService service = new OwnerStatsService(ownerStatsRepository, DataSize.ofBytes(100));
+        storing(90);
+
+        OwnerStatsDTO stats = service.getStats(owner);
+
+        assertEquals(90, stats.getTotalBytes());
+        assertEquals(100L, stats.getQuotaBytes());
+        assertEquals(Map.of("document", 90L), stats.getBytesByTag());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void shouldReconcileOtherOwners_WhenOneFails() {
+        OwnerStatsService service = new OwnerStatsService(ownerStatsRepository, DataSize.ofBytes(0));
+        MongoCursor<String> owners = mock(MongoCursor.class);
+        when(owners.hasNext()).thenReturn(true, true, false);
+        when(owners.next()).thenReturn("a@example.com", "b@example.com");
+        when(ownerStatsRepository.openOwnerCursor()).thenReturn(owners);
+        when(ownerStatsRepository.reconcile("a@example.com")).thenThrow(new IllegalStateException("read failed"));
+
+        service.reconcile();
+
+        verify(ownerStatsRepository).reconcile("b@example.com");
+        verify(owners).close();
+    }
+
+    @Test
+    void shouldReconcileOwnersWithInterruptedChanges() {
+        OwnerStatsService service = new OwnerStatsService(ownerStatsRepository, DataSize.ofBytes(0));
+        when(ownerStatsRepository.findOwnersWithInterruptedChanges(any(Instant.class))).thenReturn(List.of("a@example.com", "b@example.com"));
+        when(ownerStatsRepository.reconcile("a@example.com")).thenThrow(new IllegalStateException("read failed"));
+
+        service.reconcileInterrupted();
+
+        verify(ownerStatsRepository).reconcile("b@example.com");
+        verify(ownerStatsRepository, never()).openOwnerCursor();
+    }
+}
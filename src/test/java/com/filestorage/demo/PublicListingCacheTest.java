@@ -0,0 +1,95 @@
+package com.filestorage.demo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.filestorage.demo.cache.CachedListing;
+import com.filestorage.demo.cache.PublicListingCache;
+import com.filestorage.demo.dto.FileInfoDTO;
+import com.filestorage.demo.dto.FileListPage;
+import com.filestorage.demo.dto.FileOrderBy;
+import com.filestorage.demo.dto.TagMatch;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PublicListingCacheTest {
+    private static final String BASE_URL = "http://localhost:8080";
+    // Dates as Spring Boot writes them
+    private static final ObjectMapper OBJECT_MAPPER = JsonMapper.builder().findAndAddModules().disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build();
+
+    private final PublicListingCache cache = new PublicListingCache(true, DataSize.ofMegabytes(1), Duration.ofMinutes(1),
+            OBJECT_MAPPER, new SimpleMeterRegistry());
+    private final FileInfoDTO file = new FileInfoDTO(BASE_URL + "/files/download/1", "1", "report.pdf", 4L, "application/pdf",
+            List.of("document"), LocalDate.of(2025, 1, 1), LocalDate.of(2025, 1, 2), "user@example.com");
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private CachedListing load(String baseUrl, Set<String> tags, TagMatch tagMatch, String cursor, int page) {
+        return cache.get(baseUrl, tags, tagMatch, FileOrderBy.FILE_NAME, Sort.Direction.ASC, cursor, page, 10, () -> {
+            loads.incrementAndGet();
+            return new FileListPage(List.of(file), cursor != null ? "next" : null);
+        });
+    }
+
+    @Test
+    void shouldServeSerializedPage_WhenRequestedAgain() {
+        CachedListing first = load(BASE_URL, Set.of("Document", "backup"), TagMatch.ALL, null, 0);
+        CachedListing second = load(BASE_URL, Set.of("backup", "document"), TagMatch.ALL, null, 0);
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        String body = new String(first.getBody(), StandardCharsets.UTF_8);
+        assertTrue(body.startsWith("[{") && body.contains("\"fileName\":\"report.pdf\"") && body.contains("\"2025-01-01\""), body);
+        assertNull(first.getNextCursor());
+    }
+
+    @Test
+    void shouldKeepPagesApart() {
+        load(BASE_URL, null, null, null, 0);
+        load(BASE_URL, null, null, null, 1);
+        load(BASE_URL, null, null, "", 0);
+        load("https://files.example.com", null, null, null, 0);
+        load(BASE_URL, Set.of("document"), TagMatch.ANY, null, 0);
+        load(BASE_URL, Set.of("document"), TagMatch.ALL, null, 0);
+
+        assertEquals(6, loads.get());
+        assertEquals("next", load(BASE_URL, null, null, "", 0).getNextCursor());
+        // How tags match does not matter without tags
+        load(BASE_URL, Set.of(), TagMatch.ALL, null, 0);
+        assertEquals(6, loads.get());
+    }
+
+    @Test
+    void shouldReload_WhenInvalidated() {
+        load(BASE_URL, null, null, null, 0);
+        cache.invalidate();
+        load(BASE_URL, null, null, null, 0);
+        load(BASE_URL, null, null, null, 0);
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void shouldAlwaysLoad_WhenDisabled() {
+        PublicListingCache disabled = new PublicListingCache(false, DataSize.ofMegabytes(1), Duration.ofMinutes(1),
+                OBJECT_MAPPER, new SimpleMeterRegistry());
+        for (int i = 0; i < 2; i++) {
+            disabled.get(BASE_URL, null, null, null, null, null, 0, 10, () -> {
+                loads.incrementAndGet();
+                return new FileListPage(List.of(), null);
+            });
+        }
+
+        assertEquals(2, loads.get());
+    }
+}
@@ -0,0 +1,311 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.config.MongoIndexes;
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.dto.FileOrderBy;
+import com.filestorage.demo.dto.TagMatch;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.FileInfo;
+import com.filestorage.demo.repository.FileListCursor;
+import com.filestorage.demo.repository.FileNameIndex;
+import com.filestorage.demo.repository.FileRepository;
+import com.filestorage.demo.repository.FileVersion;
+import com.filestorage.demo.repository.FileVersionRepository;
+import com.filestorage.demo.repository.OwnedHashFilter;
+import com.filestorage.demo.repository.OwnerStatsRepository;
+import com.filestorage.demo.repository.StoredContent;
+import com.filestorage.demo.repository.UploadSession;
+import com.filestorage.demo.repository.UploadSessionRepository;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs every repository query against a real MongoDB with the declared indexes, then explains each command that was
+ * sent and fails if any of them is planned as a collection scan. Runs against {@code -Dtest.mongo.uri} if given,
+ * otherwise in a MongoDB container when Docker is available, and is skipped if neither is, unless
+ * {@code -Dtest.mongo.required=true}:
+ * <pre>
+ * mvn test -Dtest=QueryPlanTest [-Dtest.mongo.uri=mongodb://localhost:27017]
+ * </pre>
+ */
+public class QueryPlanTest {
+    private static final String DATABASE_NAME = "fileserver_query_plan_test";
+    private static final Set<String> EXPLAINED_COMMANDS = Set.of("find", "count", "distinct", "aggregate", "update", "delete", "findAndModify");
+
+    private static final List<BsonDocument> commands = Collections.synchronizedList(new ArrayList<>());
+    private static MongoClient client;
+    private static MongoDatabase database;
+    private static BlobRepository blobRepository;
+    private static FileRepository fileRepository;
+    private static FileVersionRepository fileVersionRepository;
+    private static OwnedHashFilter ownedHashFilter;
+    private static OwnerStatsRepository ownerStatsRepository;
+    private static FileNameIndex fileNameIndex;
+    private static UploadSessionRepository uploadSessionRepository;
+
+    @BeforeAll
+    static void connect() {
+        String connectionString = TestMongo.connectionString("test.mongo.uri");
+        if (connectionString == null && Boolean.getBoolean("test.mongo.required")) {
+            fail("No MongoDB to check query plans against, set -Dtest.mongo.uri or make Docker available");
+        }
+        assumeTrue(connectionString != null, "No MongoDB, set -Dtest.mongo.uri or make Docker available");
+        CommandListener recorder = new CommandListener() {
+            @Override
+            public void commandStarted(CommandStartedEvent event) {
+                if (EXPLAINED_COMMANDS.contains(event.getCommandName())) {
+                    commands.add(event.getCommand().clone());
+                }
+            }
+        };
+        client = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(connectionString))
+                .addCommandListener(recorder)
+                .build());
+        database = client.getDatabase(DATABASE_NAME);
+        database.drop();
+        new MongoIndexes(database, true).createIndexes();
+
+        blobRepository = new BlobRepository(database);
+        ownedHashFilter = new OwnedHashFilter(database, true, 1000, 0.01);
+        ownerStatsRepository = new OwnerStatsRepository(database);
+        fileNameIndex = new FileNameIndex(database, true, new SimpleMeterRegistry());
+        fileVersionRepository = new FileVersionRepository(database, blobRepository);
+        fileRepository = new FileRepository(GridFSBuckets.create(database), database, blobRepository, fileVersionRepository, ownedHashFilter,
+                ownerStatsRepository, fileNameIndex);
+        uploadSessionRepository = new UploadSessionRepository(database);
+    }
+
+    @AfterAll
+    static void dropDatabase() {
+        if (client == null) {
+            return;
+        }
+        database.drop();
+        client.close();
+    }
+
+    @Test
+    void repositoryQueriesShouldUseIndexes() throws Exception {
+        String owner = "owner@example.com";
+        List<String> fileIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fileIds.add(storeFile(owner, "file" + i + ".txt", "content " + i, i % 2 == 0 ? AccessLevel.PUBLIC : AccessLevel.PRIVATE));
+        }
+        // Read the whole collection by design, so they are not explained
+        ownedHashFilter.build();
+        fileNameIndex.build();
+        commands.clear();
+
+        runFileQueries(owner, fileIds);
+        runBlobQueries();
+        runOwnerStatsQueries(owner);
+        runUploadSessionQueries(owner);
+
+        List<String> scans = new ArrayList<>();
+        List<String> tagSorts = new ArrayList<>();
+        for (BsonDocument command : new ArrayList<>(commands)) {
+            Document explained = database.runCommand(new BsonDocument("explain", withoutSessionFields(command))
+                    .append("verbosity", new BsonString("queryPlanner")));
+            if (containsStage(explained, "COLLSCAN")) {
+                scans.add(command.toJson());
+            }
+            // Ordering by tag reads the sort key index in order instead of sorting in memory
+            if (command.isDocument("sort") && command.getDocument("sort").containsKey("metadata.sortTag")
+                    && containsStage(explained, "SORT")) {
+                tagSorts.add(command.toJson());
+            }
+        }
+        assertTrue(commands.size() > 20, "Expected the repository calls to be recorded");
+        System.out.println("Explained " + commands.size() + " commands: " + scans.size() + " COLLSCAN, "
+                + tagSorts.size() + " in-memory tag sorts");
+        if (!scans.isEmpty()) {
+            fail("Queries planned as COLLSCAN:\n" + String.join("\n", scans));
+        }
+        if (!tagSorts.isEmpty()) {
+            fail("Listings by tag planned with an in-memory SORT:\n" + String.join("\n", tagSorts));
+        }
+    }
+
+    private String storeFile(String owner, String fileName, String content, AccessLevel accessLevel) throws Exception {
+        StoredContent pending = blobRepository.store(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        StoredContent stored = new StoredContent(blobRepository.commit(pending), pending.getFileHash(), pending.getSize());
+        LocalDate today = LocalDate.now();
+        String fileId = UUID.randomUUID().toString();
+        fileRepository.insertFile(new FileInfo(fileId, fileName, null, "text/plain", List.of("document"), today, today,
+                owner, accessLevel), stored, owner);
+        return fileId;
+    }
+
+    private void runFileQueries(String owner, List<String> fileIds) throws Exception {
+        FileInfo file = fileRepository.findByIdAndOwner(fileIds.get(0), owner);
+        fileRepository.findById(fileIds.get(1));
+        fileRepository.findByIds(fileIds);
+        fileRepository.isFileHashExists(file.getFileHash(), owner);
+        fileRepository.findOwnedHashes(Set.of(file.getFileHash()), owner);
+        fileRepository.findExistingFileNames(Set.of("file1.txt", "other.txt"), owner);
+        fileRepository.findPublicContentTypes(Set.of(file.getFileHash()));
+
+        for (AccessLevel accessLevel : AccessLevel.values()) {
+            fileRepository.findFileInfoListPagenated(owner, accessLevel, null, null, null, null, 0, 10);
+            for (TagMatch tagMatch : TagMatch.values()) {
+                fileRepository.findFileInfoListPagenated(owner, accessLevel, Set.of("document", "backup"), tagMatch, null, null, 0, 10);
+            }
+            fileRepository.countFacets(owner, accessLevel);
+            try (MongoCursor<FileInfo> export = fileRepository.openFileInfoCursor(owner, accessLevel, null, null, FileOrderBy.FILE_NAME, Sort.Direction.ASC)) {
+                export.forEachRemaining(exported -> { });
+            }
+            for (FileOrderBy orderBy : FileOrderBy.values()) {
+                fileRepository.findFileInfoListPagenated(owner, accessLevel, null, null, orderBy, Sort.Direction.DESC, 1, 2);
+            }
+            for (FileOrderBy orderBy : cursorOrders()) {
+                for (Sort.Direction order : Sort.Direction.values()) {
+                    List<FileInfo> page = fileRepository.findFileInfoListAfter(owner, accessLevel, null, null, orderBy, order, null, 2);
+                    FileListCursor cursor = fileRepository.cursorAfter(page.get(page.size() - 1), orderBy, order);
+                    fileRepository.findFileInfoListAfter(owner, accessLevel, null, null, orderBy, order, cursor, 2);
+                }
+            }
+        }
+
+        try (InputStream content = fileRepository.openDownloadStream(file)) {
+            content.readAllBytes();
+        }
+        try (InputStream range = fileRepository.openRangeStream(file, 1, 3)) {
+            range.readAllBytes();
+        }
+        fileRepository.findManifest(file);
+        fileRepository.findContentLength(file);
+
+        fileRepository.setVersioned(file, true);
+        FileInfo versionedFile = fileRepository.findByIdAndOwner(file.getFileId(), owner);
+        StoredContent pending = blobRepository.storeDelta(new ByteArrayInputStream("updated".getBytes(StandardCharsets.UTF_8)),
+                versionedFile.getBlobId());
+        StoredContent updated = new StoredContent(blobRepository.commit(pending), pending.getFileHash(), pending.getSize());
+        fileRepository.updateFile(versionedFile, "renamed.txt", updated);
+        fileRepository.deleteFile(fileIds.get(2), owner);
+
+        List<FileVersion> versions = fileVersionRepository.findByFile(file.getFileId(), owner);
+        assertEquals(1, versions.size());
+        fileVersionRepository.findById(file.getFileId(), owner, versions.get(0).getVersionId());
+        fileVersionRepository.prune(0, Instant.now().plus(Duration.ofDays(1)));
+    }
+
+    private void runBlobQueries() throws Exception {
+        StoredContent pending = blobRepository.store(new ByteArrayInputStream("content 1".getBytes(StandardCharsets.UTF_8)));
+        ObjectId blobId = blobRepository.commit(pending);
+        blobRepository.reserve(pending.getFileHash());
+        blobRepository.release(blobId);
+        blobRepository.release(blobId);
+        blobRepository.removeUnreferenced(Instant.now().plus(Duration.ofDays(1)));
+
+        // Three chunks, of which the delta rewrites the last one
+        byte[] content = new byte[blobRepository.getChunkSize() * 3];
+        Arrays.fill(content, (byte) 'a');
+        StoredContent basePending = blobRepository.store(new ByteArrayInputStream(content));
+        ObjectId baseId = blobRepository.commit(basePending);
+        content[content.length - 1] = 'b';
+        StoredContent deltaPending = blobRepository.storeDelta(new ByteArrayInputStream(content), baseId);
+        ObjectId deltaId = blobRepository.commit(deltaPending);
+        try (InputStream delta = blobRepository.openDownloadStream(deltaId)) {
+            assertArrayEquals(content, delta.readAllBytes());
+        }
+        try (InputStream range = blobRepository.openRangeStream(deltaId, content.length - 3, content.length - 1)) {
+            assertArrayEquals(new byte[]{'a', 'a', 'b'}, range.readAllBytes());
+        }
+        blobRepository.release(baseId);
+        blobRepository.release(deltaId);
+    }
+
+    private void runOwnerStatsQueries(String owner) {
+        ownerStatsRepository.findByOwner(owner);
+        try (MongoCursor<String> owners = ownerStatsRepository.openOwnerCursor()) {
+            owners.forEachRemaining(found -> { });
+        }
+        ownerStatsRepository.beginChange(owner);
+        ownerStatsRepository.findOwnersWithInterruptedChanges(Instant.now().plus(OwnerStatsRepository.PENDING_TIMEOUT).plusSeconds(1));
+        ownerStatsRepository.reconcile(owner);
+    }
+
+    private void runUploadSessionQueries(String owner) throws Exception {
+        String sessionId = UUID.randomUUID().toString();
+        Instant now = Instant.now();
+        uploadSessionRepository.insert(new UploadSession(sessionId, owner, "big.bin", AccessLevel.PRIVATE, null, null, null,
+                now, now.plus(Duration.ofHours(1)), false));
+        uploadSessionRepository.findByIdAndOwner(sessionId, owner);
+        uploadSessionRepository.storePart(sessionId, 1, new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        uploadSessionRepository.storePart(sessionId, 1, new ByteArrayInputStream(new byte[]{4, 5, 6}));
+        uploadSessionRepository.extendExpiry(sessionId, now.plus(Duration.ofHours(2)));
+        uploadSessionRepository.markCommitting(sessionId, owner);
+        uploadSessionRepository.markOpen(sessionId);
+        uploadSessionRepository.findParts(sessionId);
+        uploadSessionRepository.findExpiredSessionIds(now.plus(Duration.ofDays(1)), now);
+        uploadSessionRepository.delete(sessionId);
+        uploadSessionRepository.deleteOrphanedParts(now.plus(Duration.ofDays(1)));
+    }
+
+    private List<FileOrderBy> cursorOrders() {
+        List<FileOrderBy> orders = new ArrayList<>(List.of(FileOrderBy.values()));
+        orders.add(null);
+        return orders;
+    }
+
+    private BsonDocument withoutSessionFields(BsonDocument command) {
+        BsonDocument explainable = new BsonDocument();
+        command.forEach((key, value) -> {
+            if (!key.startsWith("$") && !key.equals("lsid") && !key.equals("txnNumber")) {
+                explainable.append(key, value);
+            }
+        });
+        return explainable;
+    }
+
+    private boolean containsStage(Object node, String stage) {
+        if (node instanceof Document document) {
+            if (stage.equals(document.get("stage"))) {
+                return true;
+            }
+            return document.entrySet().stream()
+                    .filter(entry -> !entry.getKey().equals("rejectedPlans"))
+                    .anyMatch(entry -> containsStage(entry.getValue(), stage));
+        }
+        if (node instanceof List<?> list) {
+            return list.stream().anyMatch(element -> containsStage(element, stage));
+        }
+        return false;
+    }
+}
@@ -0,0 +1,36 @@
+package com.filestorage.demo;
+
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.MongoDBContainer;
+
+/**
+ * MongoDB for the tests that need a real server: the one given by a system property, or else a disposable container
+ * started once per test run when Docker is available. The container is removed when the JVM exits.
+ */
+public final class TestMongo {
+    private static final String IMAGE = "mongo:7.0";
+
+    private static MongoDBContainer container;
+
+    private TestMongo() {
+    }
+
+    /**
+     * Returns the connection string of the server to test against, or null if there is neither a configured server
+     * nor Docker to start one.
+     */
+    public static synchronized String connectionString(String property) {
+        String configured = System.getProperty(property);
+        if (configured != null && !configured.isBlank()) {
+            return configured;
+        }
+        if (container == null) {
+            if (!DockerClientFactory.instance().isDockerAvailable()) {
+                return null;
+            }
+            container = new MongoDBContainer(IMAGE);
+            container.start();
+        }
+        return container.getConnectionString();
+    }
+}
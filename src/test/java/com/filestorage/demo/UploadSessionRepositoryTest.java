@@ -0,0 +1,160 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.config.MongoIndexes;
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.exception.DuplicateEntryException;
+import com.filestorage.demo.repository.UploadPart;
+import com.filestorage.demo.repository.UploadSession;
+import com.filestorage.demo.repository.UploadSessionRepository;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Part uploads racing with a commit, against a real MongoDB: {@code -Dtest.mongo.uri} if given, otherwise a MongoDB
+ * container when Docker is available, and skipped if neither is.
+ */
+public class UploadSessionRepositoryTest {
+    private static final String DATABASE_NAME = "fileserver_upload_session_test";
+
+    private static MongoClient client;
+    private static MongoDatabase database;
+    private static UploadSessionRepository uploadSessionRepository;
+
+    private final String owner = "user@example.com";
+    private String sessionId;
+
+    @BeforeAll
+    static void connect() {
+        String connectionString = TestMongo.connectionString("test.mongo.uri");
+        assumeTrue(connectionString != null, "No MongoDB, set -Dtest.mongo.uri or make Docker available");
+        client = MongoClients.create(connectionString);
+        database = client.getDatabase(DATABASE_NAME);
+        database.drop();
+        new MongoIndexes(database, true).createIndexes();
+        uploadSessionRepository = new UploadSessionRepository(database);
+    }
+
+    @AfterAll
+    static void dropDatabase() {
+        if (client == null) {
+            return;
+        }
+        database.drop();
+        client.close();
+    }
+
+    @BeforeEach
+    void openSession() {
+        sessionId = UUID.randomUUID().toString();
+        Instant now = Instant.now();
+        uploadSessionRepository.insert(new UploadSession(sessionId, owner, "big.bin", AccessLevel.PRIVATE, null, null, null,
+                now, now.plus(Duration.ofHours(1)), false));
+    }
+
+    private InputStream content(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read(UploadPart part) throws IOException {
+        try (InputStream stream = uploadSessionRepository.openPart(part.getObjectId())) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private long storedParts() {
+        return database.getCollection("upload_parts.files").countDocuments(Filters.regex("filename", "^" + sessionId + "/"));
+    }
+
+    @Test
+    void shouldReplaceEarlierUpload_WhileSessionIsOpen() throws Exception {
+        uploadSessionRepository.storePart(sessionId, 1, content("old"));
+        UploadPart replacement = uploadSessionRepository.storePart(sessionId, 1, content("new"));
+
+        List<UploadPart> parts = uploadSessionRepository.findParts(sessionId);
+
+        assertEquals(1, parts.size());
+        assertEquals(replacement.getObjectId(), parts.get(0).getObjectId());
+        assertEquals("new", read(parts.get(0)));
+        assertEquals(1, storedParts());
+    }
+
+    @Test
+    void shouldDropReupload_WhenCommitStartedWhileItWasWritten() throws Exception {
+        uploadSessionRepository.storePart(sessionId, 1, content("old"));
+        // The commit starts once the re-upload is under way, after it passed the open session check
+        InputStream reupload = new FilterInputStream(content("new")) {
+            private boolean committed;
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (!committed) {
+                    committed = true;
+                    assertTrue(uploadSessionRepository.markCommitting(sessionId, owner));
+                }
+                return super.read(buffer, offset, length);
+            }
+        };
+
+        assertThrows(DuplicateEntryException.class, () -> uploadSessionRepository.storePart(sessionId, 1, reupload));
+
+        List<UploadPart> parts = uploadSessionRepository.findParts(sessionId);
+        assertEquals(1, parts.size());
+        assertEquals("old", read(parts.get(0)));
+        assertEquals(1, storedParts());
+    }
+
+    @Test
+    void shouldNotStartCommit_WhileAPartIsBeingPublished() {
+        database.getCollection("upload_sessions").updateOne(Filters.eq("_id", sessionId), Updates.combine(
+                Updates.set("storing", 1),
+                Updates.set("storingUntil", Date.from(Instant.now().plus(Duration.ofMinutes(1))))));
+
+        assertFalse(uploadSessionRepository.markCommitting(sessionId, owner));
+    }
+
+    @Test
+    void shouldStartCommit_WhenAPartStoreWasInterrupted() {
+        database.getCollection("upload_sessions").updateOne(Filters.eq("_id", sessionId), Updates.combine(
+                Updates.set("storing", 1),
+                Updates.set("storingUntil", Date.from(Instant.now().minus(Duration.ofMinutes(1))))));
+
+        assertTrue(uploadSessionRepository.markCommitting(sessionId, owner));
+        assertEquals(Boolean.TRUE, database.getCollection("upload_sessions")
+                .find(Filters.eq("_id", sessionId)).first().getBoolean("committing"));
+    }
+
+    @Test
+    void shouldSweepUnpublishedParts() throws Exception {
+        uploadSessionRepository.storePart(sessionId, 1, content("kept"));
+        database.getCollection("upload_parts.files").insertOne(new Document("filename", sessionId + "/2")
+                .append("length", 0L)
+                .append("chunkSize", 1024)
+                .append("uploadDate", Date.from(Instant.now().minus(Duration.ofHours(2))))
+                .append("metadata", new Document("storedFor", sessionId).append("partNumber", 2)));
+
+        assertEquals(1, uploadSessionRepository.deleteOrphanedParts(Instant.now().minus(Duration.ofHours(1))));
+        assertEquals(1, storedParts());
+    }
+}
@@ -0,0 +1,123 @@
+package com.filestorage.demo;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.dto.FileUploadResponse;
+import com.filestorage.demo.exception.BadRequestException;
+import com.filestorage.demo.exception.DuplicateEntryException;
+import com.filestorage.demo.repository.UploadPart;
+import com.filestorage.demo.repository.UploadSession;
+import com.filestorage.demo.repository.UploadSessionRepository;
+import com.filestorage.demo.service.FileService;
+import com.filestorage.demo.service.UploadSessionService;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class UploadSessionServiceTest {
+    @Mock
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Mock
+    private FileService fileService;
+
+    private UploadSessionService uploadSessionService;
+
+    private final String email = "user@example.com";
+    private final String sessionId = "session-1";
+
+    @BeforeEach
+    void setUp() {
+        uploadSessionService = new UploadSessionService(uploadSessionRepository, fileService, Duration.ofHours(1), Duration.ofHours(6));
+    }
+
+    private UploadSession openSession() {
+        Instant now = Instant.now();
+        return new UploadSession(sessionId, email, "big.bin", AccessLevel.PRIVATE, null, null, null,
+                now, now.plus(Duration.ofHours(1)), false);
+    }
+
+    private UploadPart part(int number, String content) {
+        ObjectId objectId = new ObjectId();
+        when(uploadSessionRepository.openPart(objectId))
+                .thenReturn(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        return new UploadPart(number, content.length(), "hash", objectId);
+    }
+
+    @Test
+    void commit_ShouldStitchPartsInOrder() throws Exception {
+        when(uploadSessionRepository.findByIdAndOwner(sessionId, email)).thenReturn(openSession());
+        when(uploadSessionRepository.markCommitting(sessionId, email)).thenReturn(true);
+        List<UploadPart> parts = List.of(part(1, "hello "), part(2, "world"));
+        when(uploadSessionRepository.findParts(sessionId)).thenReturn(parts);
+        when(fileService.uploadFromStream(any(InputStream.class), isNull(), any(), eq(email), eq("/files/download"), isNull()))
+                .thenAnswer(invocation -> {
+                    InputStream content = invocation.getArgument(0);
+                    assertEquals("hello world", new String(content.readAllBytes(), StandardCharsets.UTF_8));
+                    return FileUploadResponse.builder().fileId("id").build();
+                });
+
+        FileUploadResponse response = uploadSessionService.commit(email, sessionId, "/files/download");
+
+        assertEquals("id", response.getFileId());
+        verify(uploadSessionRepository).delete(sessionId);
+    }
+
+    @Test
+    void commit_ShouldRejectMissingParts() {
+        when(uploadSessionRepository.findByIdAndOwner(sessionId, email)).thenReturn(openSession());
+        when(uploadSessionRepository.markCommitting(sessionId, email)).thenReturn(true);
+        when(uploadSessionRepository.findParts(sessionId))
+                .thenReturn(List.of(new UploadPart(1, 1, "h", new ObjectId()), new UploadPart(3, 1, "h", new ObjectId())));
+
+        BadRequestException ex = assertThrows(BadRequestException.class,
+                () -> uploadSessionService.commit(email, sessionId, "/files/download"));
+
+        assertEquals("Missing parts: [2]", ex.getMessage());
+        verify(uploadSessionRepository).markOpen(sessionId);
+        verify(uploadSessionRepository, never()).delete(anyString());
+    }
+
+    @Test
+    void commit_ShouldRejectConcurrentCommit() {
+        when(uploadSessionRepository.findByIdAndOwner(sessionId, email)).thenReturn(openSession());
+        when(uploadSessionRepository.markCommitting(sessionId, email)).thenReturn(false);
+
+        assertThrows(DuplicateEntryException.class,
+                () -> uploadSessionService.commit(email, sessionId, "/files/download"));
+        verifyNoInteractions(fileService);
+    }
+
+    @Test
+    void uploadPart_ShouldRejectInvalidPartNumber() {
+        assertThrows(BadRequestException.class,
+                () -> uploadSessionService.uploadPart(email, sessionId, 0, new ByteArrayInputStream(new byte[0])));
+        verifyNoInteractions(uploadSessionRepository);
+    }
+
+    @Test
+    void removeExpiredSessions_ShouldRemoveAbandonedCommitsAndOrphanedParts() {
+        when(uploadSessionRepository.findExpiredSessionIds(any(Instant.class), any(Instant.class))).thenReturn(List.of(sessionId));
+
+        uploadSessionService.removeExpiredSessions();
+
+        verify(uploadSessionRepository).findExpiredSessionIds(argThat(now -> !now.isAfter(Instant.now())),
+                argThat(abandonedBefore -> abandonedBefore.isBefore(Instant.now().minus(Duration.ofHours(5)))));
+        verify(uploadSessionRepository).delete(sessionId);
+        verify(uploadSessionRepository).deleteOrphanedParts(argThat(uploadedBefore -> uploadedBefore.isBefore(Instant.now().minus(Duration.ofMinutes(59)))));
+    }
+}
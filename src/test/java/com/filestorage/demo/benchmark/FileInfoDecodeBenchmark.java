@@ -0,0 +1,160 @@
+package com.filestorage.demo.benchmark;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.repository.FileInfo;
+import com.filestorage.demo.repository.FileInfoCodec;
+import com.filestorage.demo.repository.FileMetaData;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.gridfs.codecs.GridFSFileCodec;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-row cost of turning an {@code fs.files} record into a {@link FileInfo}: the former path through
+ * {@code GridFSFile} and its metadata {@code Document}, against {@link FileInfoCodec} on the full and on the projected
+ * record. The gc profiler reports the allocation per row as {@code gc.alloc.rate.norm}. Needs no database:
+ * <pre>
+ * mvn test -Dtest=FileInfoDecodeBenchmark -Dbenchmark.jmh=true
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileInfoDecodeBenchmark {
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private GridFSFileCodec gridFSFileCodec;
+    private FileInfoCodec fileInfoCodec;
+    private byte[] fullRecord;
+    private byte[] projectedRecord;
+
+    @Setup
+    public void setUp() {
+        CodecRegistry registry = MongoClientSettings.getDefaultCodecRegistry();
+        gridFSFileCodec = new GridFSFileCodec(registry);
+        fileInfoCodec = new FileInfoCodec();
+
+        // Same shape as the records FileRepository.insertFile writes
+        Document metadata = new Document()
+                .append(FileMetaData.CONTENT_TYPE.getKey(), "application/pdf")
+                .append(FileMetaData.OWNER.getKey(), "owner@example.com")
+                .append(FileMetaData.TAGS.getKey(), List.of("document", "invoice", "2025"))
+                .append(FileMetaData.ACCESS_LEVEL.getKey(), AccessLevel.PRIVATE.name())
+                .append(FileMetaData.CREATE_TIME.getKey(), Date.from(Instant.parse("2025-01-01T00:00:00Z")))
+                .append(FileMetaData.ID.getKey(), "6f1c2b1e-6f4b-4a8e-9d1a-2c3b4d5e6f70")
+                .append(FileMetaData.FILE_NAME.getKey(), "invoice-2025-01.pdf")
+                .append(FileMetaData.FILE_HASH.getKey(), "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08")
+                .append(FileMetaData.FILE_SIZE.getKey(), 734_003L)
+                .append(FileMetaData.BLOB_ID.getKey(), new ObjectId());
+        Document record = new Document("_id", new ObjectId())
+                .append("filename", "invoice-2025-01.pdf")
+                .append("length", 734_003L)
+                .append("chunkSize", 261_120)
+                .append("uploadDate", new Date())
+                .append("metadata", metadata);
+
+        fullRecord = toBytes(record, registry);
+        projectedRecord = toBytes(project(record), registry);
+    }
+
+    @Benchmark
+    public FileInfo gridFSFile() {
+        return fromFile(gridFSFileCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(fullRecord)), DECODER_CONTEXT));
+    }
+
+    @Benchmark
+    public FileInfo codecFullRecord() {
+        return fileInfoCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(fullRecord)), DECODER_CONTEXT);
+    }
+
+    @Benchmark
+    public FileInfo codecProjectedRecord() {
+        return fileInfoCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(projectedRecord)), DECODER_CONTEXT);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark.jmh", matches = "true")
+    void compareDecodeCost() throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(FileInfoDecodeBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    // What FileInfo.fromFile did before the codec
+    @SuppressWarnings("unchecked")
+    private static FileInfo fromFile(GridFSFile file) {
+        Date rawCreateDate = (Date) file.getMetadata().get(FileMetaData.CREATE_TIME.getKey());
+        LocalDate createDate = Instant.ofEpochMilli(rawCreateDate.getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
+        LocalDate uploadDate = Instant.ofEpochMilli(file.getUploadDate().getTime()).atZone(ZoneId.systemDefault()).toLocalDate();
+        return new FileInfo(
+                (String) file.getMetadata().get(FileMetaData.ID.getKey()),
+                (String) file.getMetadata().get(FileMetaData.FILE_NAME.getKey()),
+                file.getLength(),
+                (String) file.getMetadata().get(FileMetaData.CONTENT_TYPE.getKey()),
+                (ArrayList<String>) file.getMetadata().get(FileMetaData.TAGS.getKey()),
+                createDate,
+                uploadDate,
+                (String) file.getMetadata().get(FileMetaData.OWNER.getKey()),
+                AccessLevel.valueOf((String) file.getMetadata().get(FileMetaData.ACCESS_LEVEL.getKey())),
+                file.getObjectId(),
+                file.getChunkSize(),
+                file.getUploadDate().toInstant(),
+                file.getMetadata().getString(FileMetaData.FILE_HASH.getKey()),
+                file.getMetadata().getObjectId(FileMetaData.BLOB_ID.getKey()));
+    }
+
+    // What the server returns for FileInfoCodec.PROJECTION
+    private static Document project(Document record) {
+        Document metadata = new Document(record.get("metadata", Document.class));
+        metadata.remove(FileMetaData.FILE_SIZE.getKey());
+        return new Document("_id", record.get("_id"))
+                .append("length", record.get("length"))
+                .append("chunkSize", record.get("chunkSize"))
+                .append("uploadDate", record.get("uploadDate"))
+                .append("metadata", metadata);
+    }
+
+    private static byte[] toBytes(Document document, CodecRegistry registry) {
+        BsonDocument bson = BsonDocumentWrapper.asBsonDocument(document, registry);
+        RawBsonDocument raw = new RawBsonDocument(bson, registry.get(BsonDocument.class));
+        ByteBuffer buffer = raw.getByteBuffer().asNIO();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,79 @@
+package com.filestorage.demo.benchmark;
+
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.repository.FileNameIndex;
+import com.mongodb.client.MongoDatabase;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Reports the memory used by the file name index per million names and the time of a search, for a few query kinds.
+ * Needs no database:
+ * <pre>
+ * mvn test -Dtest=FileNameIndexBenchmark -Dbenchmark.search=true [-Dbenchmark.search.files=1000000]
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark.search", matches = "true")
+public class FileNameIndexBenchmark {
+    private static final int OWNERS = 1000;
+    private static final int QUERIES = 10_000;
+    private static final List<String> WORDS = List.of("report", "invoice", "photo", "backup", "draft", "summary",
+            "contract", "budget", "meeting", "notes", "scan", "holiday", "presentation", "export", "archive");
+    private static final List<String> EXTENSIONS = List.of(".pdf", ".docx", ".jpg", ".png", ".xlsx", ".txt", ".zip");
+
+    @Test
+    void reportFootprintAndSearchTime() {
+        int files = Integer.getInteger("benchmark.search.files", 1_000_000);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        FileNameIndex index = new FileNameIndex(mock(MongoDatabase.class, RETURNS_DEEP_STUBS), true, meterRegistry);
+        index.build();
+        Random random = new Random(1);
+        for (int i = 0; i < files; i++) {
+            AccessLevel accessLevel = random.nextInt(10) == 0 ? AccessLevel.PUBLIC : AccessLevel.PRIVATE;
+            index.add(Integer.toString(i), owner(random), fileName(random), accessLevel);
+        }
+
+        double memory = meterRegistry.get("search.index.memory").gauge().value();
+        System.out.printf("%d files, %.1f MB per million names, %.0f trigrams%n", files,
+                memory / (1024.0 * 1024.0) * 1_000_000 / files, meterRegistry.get("search.index.trigrams").gauge().value());
+        System.out.printf("%-24s %12s%n", "query", "us per query");
+        report(index, "owner, word", AccessLevel.PRIVATE, "report", random);
+        report(index, "owner, two letters", AccessLevel.PRIVATE, "re", random);
+        report(index, "owner, number", AccessLevel.PRIVATE, "2024", random);
+        report(index, "public, word", AccessLevel.PUBLIC, "invoice", random);
+        report(index, "public, rare", AccessLevel.PUBLIC, "y_2019", random);
+    }
+
+    private void report(FileNameIndex index, String label, AccessLevel accessLevel, String query, Random random) {
+        String[] owners = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            owners[i] = owner(random);
+        }
+        long elapsed = 0;
+        // The first pass warms the JIT up, the second one is timed
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                index.search(owners[i], accessLevel, query, 20);
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        System.out.printf("%-24s %12.1f%n", label, elapsed / 1000.0 / QUERIES);
+    }
+
+    private String owner(Random random) {
+        return "user" + random.nextInt(OWNERS) + "@example.com";
+    }
+
+    private String fileName(Random random) {
+        return WORDS.get(random.nextInt(WORDS.size())) + "_" + (2000 + random.nextInt(25)) + "_"
+                + WORDS.get(random.nextInt(WORDS.size())) + random.nextInt(1000) + EXTENSIONS.get(random.nextInt(EXTENSIONS.size()));
+    }
+}
@@ -0,0 +1,78 @@
+package com.filestorage.demo.benchmark;
+
+import com.filestorage.demo.repository.OwnedHashFilter;
+import com.filestorage.demo.utils.Utils;
+import com.mongodb.client.MongoDatabase;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Reports the memory used by the owned hash filter per million stored hashes and its measured false positive rate,
+ * for a few configured rates. Needs no database:
+ * <pre>
+ * mvn test -Dtest=OwnedHashFilterBenchmark -Dbenchmark.hash-filter=true [-Dbenchmark.hash-filter.hashes=1000000]
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark.hash-filter", matches = "true")
+public class OwnedHashFilterBenchmark {
+    private static final int OWNERS = 1000;
+    private static final int PROBES = 1_000_000;
+
+    @Test
+    void reportFootprintAndFalsePositiveRate() {
+        int hashes = Integer.getInteger("benchmark.hash-filter.hashes", 1_000_000);
+        List<Double> rates = List.of(0.01, 0.001, 0.0001);
+
+        System.out.printf("%-12s %12s %16s %16s %14s%n", "target rate", "hashes", "MB per million", "measured rate", "ns per lookup");
+        for (double rate : rates) {
+            OwnedHashFilter filter = new OwnedHashFilter(mock(MongoDatabase.class, RETURNS_DEEP_STUBS), true, hashes, rate);
+            filter.build();
+            Random random = new Random(1);
+            for (int i = 0; i < hashes; i++) {
+                filter.add(owner(random), randomHash(random));
+            }
+
+            // Fresh random hashes were never added, every hit is a false positive
+            String[] probeOwners = new String[PROBES];
+            String[] probeHashes = new String[PROBES];
+            for (int i = 0; i < PROBES; i++) {
+                probeOwners[i] = owner(random);
+                probeHashes[i] = randomHash(random);
+            }
+            long falsePositives = 0;
+            long elapsed = 0;
+            // The first pass warms the JIT up, the second one is timed
+            for (int pass = 0; pass < 2; pass++) {
+                falsePositives = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < PROBES; i++) {
+                    if (filter.mightContain(probeOwners[i], probeHashes[i])) {
+                        falsePositives++;
+                    }
+                }
+                elapsed = System.nanoTime() - start;
+            }
+
+            double megabytesPerMillion = filter.sizeInBytes() / (1024.0 * 1024.0) * 1_000_000 / hashes;
+            System.out.printf("%-12s %12d %16.2f %16.5f %14.1f%n", rate, hashes, megabytesPerMillion,
+                    (double) falsePositives / PROBES, (double) elapsed / PROBES);
+        }
+    }
+
+    private String owner(Random random) {
+        return "user" + random.nextInt(OWNERS) + "@example.com";
+    }
+
+    private String randomHash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Utils.toHex(bytes);
+    }
+}
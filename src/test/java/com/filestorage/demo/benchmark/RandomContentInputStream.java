@@ -0,0 +1,42 @@
+package com.filestorage.demo.benchmark;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Produces {@code size} bytes of incompressible content without holding more than one block in memory.
+ */
+public class RandomContentInputStream extends InputStream {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private long remaining;
+
+    public RandomContentInputStream(long size, long seed) {
+        new Random(seed).nextBytes(block);
+        this.remaining = size;
+    }
+
+    @Override
+    public int read() {
+        if (remaining <= 0) {
+            return -1;
+        }
+        return block[(int) (remaining-- % BLOCK_SIZE)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int blockOffset = (int) (remaining % BLOCK_SIZE);
+        int toCopy = (int) Math.min(Math.min(len, BLOCK_SIZE - blockOffset), remaining);
+        System.arraycopy(block, blockOffset, b, off, toCopy);
+        remaining -= toCopy;
+        return toCopy;
+    }
+}
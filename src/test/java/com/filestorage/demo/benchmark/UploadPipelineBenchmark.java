@@ -0,0 +1,137 @@
+package com.filestorage.demo.benchmark;
+
+import com.filestorage.demo.TestMongo;
+import com.filestorage.demo.dto.AccessLevel;
+import com.filestorage.demo.repository.BlobRepository;
+import com.filestorage.demo.repository.FileInfo;
+import com.filestorage.demo.repository.FileNameIndex;
+import com.filestorage.demo.repository.FileRepository;
+import com.filestorage.demo.repository.FileVersionRepository;
+import com.filestorage.demo.repository.OwnedHashFilter;
+import com.filestorage.demo.repository.OwnerStatsRepository;
+import com.filestorage.demo.repository.StoredContent;
+import com.filestorage.demo.utils.Utils;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.tika.Tika;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares upload throughput of the former three-pass upload (hash, sniff, store) with the single-pass pipeline.
+ * Not part of the regular test run. Runs against {@code -Dbenchmark.mongo.uri} if given, otherwise in a MongoDB container:
+ * <pre>
+ * mvn test -Dtest=UploadPipelineBenchmark -Dbenchmark.upload=true [-Dbenchmark.mongo.uri=mongodb://localhost:27017] [-Dbenchmark.upload.sizes=10MB,1GB,5GB]
+ * </pre>
+ * Content is generated on the fly, so the former path is measured without the cost of spooling the multipart body to disk.
+ * Both paths store the content, record and remove the file the same way, they only differ in the passes before.
+ */
+@EnabledIfSystemProperty(named = "benchmark.upload", matches = "true")
+public class UploadPipelineBenchmark {
+    private static final String DATABASE_NAME = "fileserver_benchmark";
+    // As FileService sniffs the content type
+    private static final int CONTENT_SNIFF_LENGTH = 64 * 1024;
+    private static final Tika TIKA = new Tika();
+
+    private static MongoClient client;
+    private static MongoDatabase database;
+    private static BlobRepository blobRepository;
+    private static FileRepository fileRepository;
+
+    @BeforeAll
+    static void connect() {
+        String connectionString = TestMongo.connectionString("benchmark.mongo.uri");
+        if (connectionString == null) {
+            throw new IllegalStateException("No MongoDB to benchmark against, set -Dbenchmark.mongo.uri or make Docker available");
+        }
+        client = MongoClients.create(connectionString);
+        database = client.getDatabase(DATABASE_NAME);
+        blobRepository = new BlobRepository(database);
+        fileRepository = new FileRepository(GridFSBuckets.create(database), database, blobRepository, new FileVersionRepository(database, blobRepository),
+                new OwnedHashFilter(database, false, 1, 0.01),
+                new OwnerStatsRepository(database), new FileNameIndex(database, false, new SimpleMeterRegistry()));
+    }
+
+    @AfterAll
+    static void dropDatabase() {
+        database.drop();
+        client.close();
+    }
+
+    @Test
+    void compareUploadThroughput() throws Exception {
+        List<DataSize> sizes = Arrays.stream(System.getProperty("benchmark.upload.sizes", "10MB,1GB,5GB").split(","))
+                .map(String::trim)
+                .map(DataSize::parse)
+                .toList();
+
+        System.out.printf("%-10s %15s %15s%n", "size", "three-pass MB/s", "single-pass MB/s");
+        for (DataSize size : sizes) {
+            long bytes = size.toBytes();
+            double before = throughput(bytes, measure(() -> threePassUpload(bytes)));
+            double after = throughput(bytes, measure(() -> singlePassUpload(bytes)));
+            System.out.printf("%-10s %15.1f %15.1f%n", size, before, after);
+        }
+    }
+
+    // What FileService.uploadFile did before: the SHA-256 and the content type each read the content on their own
+    // before it was stored
+    private void threePassUpload(long bytes) throws Exception {
+        Utils.computeSHA256(new RandomContentInputStream(bytes, bytes));
+        TIKA.detect(new RandomContentInputStream(bytes, bytes), "benchmark.bin");
+        storeAndRemove(new RandomContentInputStream(bytes, bytes));
+    }
+
+    // What FileService.uploadFile does now: the content type is detected on a buffered prefix replayed into the store
+    private void singlePassUpload(long bytes) throws Exception {
+        InputStream content = new RandomContentInputStream(bytes, bytes);
+        byte[] prefix = content.readNBytes(CONTENT_SNIFF_LENGTH);
+        TIKA.detect(prefix, "benchmark.bin");
+        storeAndRemove(new SequenceInputStream(new ByteArrayInputStream(prefix), content));
+    }
+
+    // The same for both paths: store and hash the content, record the file, then remove it for the next run
+    private void storeAndRemove(InputStream content) throws Exception {
+        LocalDate today = LocalDate.now();
+        FileInfo fileInfo = new FileInfo(UUID.randomUUID().toString(), "benchmark.bin", null, "application/octet-stream",
+                null, today, today, "benchmark@example.com", AccessLevel.PRIVATE);
+        StoredContent pending = blobRepository.store(content);
+        StoredContent stored = new StoredContent(blobRepository.commit(pending), pending.getFileHash(), pending.getSize());
+        fileRepository.insertFile(fileInfo, stored, "benchmark@example.com");
+        fileRepository.deleteFile(fileInfo.getFileId(), "benchmark@example.com");
+    }
+
+    private interface Upload {
+        void run() throws Exception;
+    }
+
+    private long measure(Upload upload) throws Exception {
+        // One warm-up run, then the best of three
+        upload.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            upload.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private double throughput(long bytes, long nanos) {
+        return (bytes / 1024.0 / 1024.0) / (nanos / 1_000_000_000.0);
+    }
+}